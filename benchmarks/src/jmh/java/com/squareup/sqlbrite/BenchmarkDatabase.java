@@ -0,0 +1,53 @@
+/*
+ * Copyright (C) 2015 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.sqlbrite;
+
+import android.content.ContentValues;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/**
+ * Opens a {@link SqlBrite} over an in-memory SQLite database through the SQLite JDBC driver so
+ * that benchmarks run the real library on any machine without a device.
+ */
+final class BenchmarkDatabase {
+  static final String TABLE = "employee";
+  static final String SELECT = "SELECT username, name FROM " + TABLE;
+
+  static SqlBrite open() throws SQLException {
+    Connection connection = DriverManager.getConnection("jdbc:sqlite::memory:");
+    try (Statement statement = connection.createStatement()) {
+      statement.execute("CREATE TABLE " + TABLE + " ("
+          + "_id INTEGER NOT NULL PRIMARY KEY AUTOINCREMENT, "
+          + "username TEXT NOT NULL, "
+          + "name TEXT NOT NULL)");
+    }
+    return SqlBrite.create(connection);
+  }
+
+  static ContentValues employee(int i) {
+    ContentValues values = new ContentValues();
+    values.put("username", "user" + i);
+    values.put("name", "User " + i);
+    return values;
+  }
+
+  private BenchmarkDatabase() {
+    throw new AssertionError("No instances.");
+  }
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright (C) 2015 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.sqlbrite;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import rx.Subscription;
+import rx.functions.Consumer;
+
+import static android.database.sqlite.SQLiteDatabase.CONFLICT_NONE;
+import static com.squareup.sqlbrite.SqlBrite.Query;
+
+/**
+ * Measures subscribing to an observable query over {@code rows} rows, reading its initial result,
+ * and unsubscribing again.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class InitialEmissionBenchmark {
+  @Param({ "1", "100", "1000" })
+  int rows;
+
+  private SqlBrite db;
+  int length;
+
+  private final Consumer<Query> reader = new Consumer<Query>() {
+    @Override public void accept(Query query) {
+      Cursor cursor = query.run();
+      try {
+        while (cursor.moveToNext()) {
+          length += cursor.getString(0).length() + cursor.getString(1).length();
+        }
+      } finally {
+        cursor.close();
+      }
+    }
+  };
+
+  @Setup public void setUp() throws SQLException {
+    db = BenchmarkDatabase.open();
+    List<ContentValues> values = new ArrayList<>();
+    for (int i = 0; i < rows; i++) {
+      values.add(BenchmarkDatabase.employee(i));
+    }
+    db.insertAll(BenchmarkDatabase.TABLE, values, CONFLICT_NONE);
+  }
+
+  @TearDown public void tearDown() throws IOException {
+    db.close();
+  }
+
+  @Benchmark public int initialEmission() {
+    Subscription subscription =
+        db.createQuery(BenchmarkDatabase.TABLE, BenchmarkDatabase.SELECT).subscribe(reader);
+    subscription.unsubscribe();
+    return length;
+  }
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright (C) 2015 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.sqlbrite;
+
+import android.content.ContentValues;
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import static android.database.sqlite.SQLiteDatabase.CONFLICT_NONE;
+
+/**
+ * Compares {@link SqlBrite#insert} of one row at a time, each in its own implicit transaction,
+ * with {@link SqlBrite#insertAll} of the same rows in a single transaction. Scores are rows per
+ * second.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class InsertBenchmark {
+  private static final int ROWS = 100;
+
+  private final List<ContentValues> rows = new ArrayList<>();
+  private SqlBrite db;
+
+  @Setup public void setUp() throws SQLException {
+    db = BenchmarkDatabase.open();
+    for (int i = 0; i < ROWS; i++) {
+      rows.add(BenchmarkDatabase.employee(i));
+    }
+  }
+
+  @TearDown public void tearDown() throws IOException {
+    db.close();
+  }
+
+  @TearDown(Level.Iteration) public void clear() {
+    db.delete(BenchmarkDatabase.TABLE, null);
+  }
+
+  @Benchmark @OperationsPerInvocation(ROWS) public void single() {
+    for (int i = 0; i < ROWS; i++) {
+      db.insert(BenchmarkDatabase.TABLE, rows.get(i));
+    }
+  }
+
+  @Benchmark @OperationsPerInvocation(ROWS) public long[] batched() {
+    return db.insertAll(BenchmarkDatabase.TABLE, rows, CONFLICT_NONE);
+  }
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright (C) 2015 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.sqlbrite;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import static android.database.sqlite.SQLiteDatabase.CONFLICT_NONE;
+
+/**
+ * Compares looking up one row by ID with the ID bound as a string, as every query was before
+ * {@link QueryArgs}, against binding it as an integer.
+ * <p>
+ * Run with the {@code gc} profiler and compare {@code gc.alloc.rate.norm} to see the bytes
+ * allocated per operation. The typed lookup reuses one holder so binding allocates nothing.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class QueryArgsBenchmark {
+  private static final int ROWS = 1000;
+  private static final String SELECT_BY_ID = BenchmarkDatabase.SELECT + " WHERE _id = ?";
+
+  private SqlBrite db;
+  private final QueryArgs args = new QueryArgs(1);
+  private long id;
+
+  @Setup public void setUp() throws SQLException {
+    db = BenchmarkDatabase.open();
+    List<ContentValues> values = new ArrayList<>();
+    for (int i = 0; i < ROWS; i++) {
+      values.add(BenchmarkDatabase.employee(i));
+    }
+    db.insertAll(BenchmarkDatabase.TABLE, values, CONFLICT_NONE);
+  }
+
+  @TearDown public void tearDown() throws IOException {
+    db.close();
+  }
+
+  @Benchmark public int stringArgs() {
+    return read(db.query(SELECT_BY_ID, Long.toString(nextId())));
+  }
+
+  @Benchmark public int typedArgs() {
+    return read(db.query(SELECT_BY_ID, args.clear().addLong(nextId())));
+  }
+
+  private long nextId() {
+    id = id % ROWS + 1;
+    return id;
+  }
+
+  private static int read(Cursor cursor) {
+    try {
+      return cursor.moveToFirst() ? cursor.getString(1).length() : 0;
+    } finally {
+      cursor.close();
+    }
+  }
+}
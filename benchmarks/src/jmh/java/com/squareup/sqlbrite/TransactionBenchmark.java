@@ -0,0 +1,99 @@
+/*
+ * Copyright (C) 2015 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.sqlbrite;
+
+import android.content.ContentValues;
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Measures beginning and successfully ending {@code depth} nested transactions which each insert
+ * one row. Only the outermost transaction commits to SQLite. Neither driver uses savepoints:
+ * nested transactions only track whether they were marked successful, as on Android.
+ * <p>
+ * Run with the {@code gc} profiler and compare {@code gc.alloc.rate.norm} to see the bytes
+ * allocated per operation. The values are built once, and transaction frames, their row sets, and
+ * each insert's statement key and compiled statement are reused, so while nothing observes the
+ * table SqlBrite itself allocates nothing per operation. What remains is the JDBC driver's: it
+ * binds through {@code java.sql} and reads {@code last_insert_rowid()} with a new statement and
+ * result set for every insert. A commit which a query, the event listener, or the log observes
+ * also allocates a trigger map entry per changed table, plus whatever the queries allocate to run
+ * again.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class TransactionBenchmark {
+  @Param({ "1", "2", "5" })
+  int depth;
+
+  private SqlBrite db;
+  /** The values inserted at each depth, indexed by the number of transactions left to begin. */
+  private ContentValues[] values;
+
+  @Setup public void setUp() throws SQLException {
+    db = BenchmarkDatabase.open();
+    values = new ContentValues[depth + 1];
+    for (int i = 1; i <= depth; i++) {
+      values[i] = BenchmarkDatabase.employee(i);
+    }
+  }
+
+  @TearDown public void tearDown() throws IOException {
+    db.close();
+  }
+
+  @Benchmark public void nested() {
+    nest(depth);
+  }
+
+  @Benchmark public void handle() {
+    nestHandle(depth);
+  }
+
+  private void nestHandle(int remaining) {
+    try (SqlBrite.Transaction transaction = db.newTransaction()) {
+      db.insert(BenchmarkDatabase.TABLE, values[remaining]);
+      if (remaining > 1) {
+        nestHandle(remaining - 1);
+      }
+      transaction.markSuccessful();
+    }
+  }
+
+  private void nest(int remaining) {
+    db.beginTransaction();
+    try {
+      db.insert(BenchmarkDatabase.TABLE, values[remaining]);
+      if (remaining > 1) {
+        nest(remaining - 1);
+      }
+      db.setTransactionSuccessful();
+    } finally {
+      db.endTransaction();
+    }
+  }
+}
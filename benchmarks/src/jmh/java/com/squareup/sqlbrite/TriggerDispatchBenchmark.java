@@ -0,0 +1,85 @@
+/*
+ * Copyright (C) 2015 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.sqlbrite;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Measures the cost of delivering one trigger for a single table. Of {@code subscriptions} live
+ * listeners only {@code affected} observe the changed table; the rest are spread across other
+ * tables. Indexed dispatch should scale with {@code affected} while broadcast-and-filter, the
+ * previous strategy, scales with {@code subscriptions}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class TriggerDispatchBenchmark {
+  private static final String CHANGED_TABLE = "changed";
+  private static final int OTHER_TABLES = 50;
+
+  @Param({ "1", "10", "100", "1000", "10000" })
+  int subscriptions;
+
+  @Param({ "1", "10" })
+  int affected;
+
+  private final Map<String, RowSet> trigger =
+      Collections.singletonMap(CHANGED_TABLE, RowSet.ALL_ROWS);
+  private final TableDispatcher dispatcher = new TableDispatcher();
+  private final List<String> broadcastTables = new ArrayList<>();
+  int notified;
+
+  @Setup public void setUp() {
+    for (int i = 0; i < subscriptions; i++) {
+      String table = i < affected ? CHANGED_TABLE : "table" + (i % OTHER_TABLES);
+      // Each subscription gets its own listener instance, as each observable query does.
+      TableDispatcher.Listener listener = new TableDispatcher.Listener() {
+        @Override public void onTrigger(Map<String, RowSet> changes) {
+          notified++;
+        }
+      };
+      dispatcher.register(listener, Collections.singleton(table));
+      broadcastTables.add(table);
+    }
+  }
+
+  @Benchmark public int indexed() {
+    dispatcher.dispatch(trigger);
+    return notified;
+  }
+
+  @Benchmark public int broadcastAndFilter() {
+    List<String> tables = broadcastTables;
+    for (int i = 0, size = tables.size(); i < size; i++) {
+      if (trigger.containsKey(tables.get(i))) {
+        notified++;
+      }
+    }
+    return notified;
+  }
+}
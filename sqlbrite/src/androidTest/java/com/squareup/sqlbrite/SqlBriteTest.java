@@ -16,27 +16,42 @@
 package com.squareup.sqlbrite;
 
 import android.content.ContentValues;
+import android.content.Context;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteException;
+import android.os.Handler;
+import android.os.HandlerThread;
 import android.support.test.InstrumentationRegistry;
 import android.support.test.runner.AndroidJUnit4;
+import com.applied_duality.rxmobile_android.HandlerThreadScheduler;
 import com.google.common.collect.Range;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import rx.Observable;
+import rx.Observer;
 import rx.Subscription;
+import rx.functions.Consumer;
 
 import static android.database.sqlite.SQLiteDatabase.CONFLICT_IGNORE;
+import static android.database.sqlite.SQLiteDatabase.CONFLICT_NONE;
 import static com.google.common.truth.Truth.assertThat;
 import static com.squareup.sqlbrite.RecordingObserver.CursorAssert;
 import static com.squareup.sqlbrite.SqlBrite.Query;
@@ -50,6 +65,7 @@ import static com.squareup.sqlbrite.TestDb.TABLE_MANAGER;
 import static com.squareup.sqlbrite.TestDb.employee;
 import static com.squareup.sqlbrite.TestDb.manager;
 import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
@@ -163,6 +179,37 @@ public final class SqlBriteTest {
         .isExhausted();
   }
 
+  @Test public void queryForSqlObservesOnlyTablesItReads() {
+    db.createQueryForSql(SELECT_EMPLOYEES + " WHERE " + USERNAME + " != ?", "bob").subscribe(o);
+    o.assertCursor()
+        .hasRow("alice", "Alice Allison")
+        .hasRow("eve", "Eve Evenson")
+        .isExhausted();
+
+    db.insert(TABLE_MANAGER, manager(helper.bobId, helper.eveId));
+    o.assertNoMoreEvents();
+
+    db.insert(TABLE_EMPLOYEE, employee("john", "John Johnson"));
+    o.assertCursor()
+        .hasRow("alice", "Alice Allison")
+        .hasRow("eve", "Eve Evenson")
+        .hasRow("john", "John Johnson")
+        .isExhausted();
+  }
+
+  @Test public void queryForSqlObservesJoinedTables() {
+    db.createQueryForSql(SELECT_MANAGER_LIST).subscribe(o);
+    o.assertCursor()
+        .hasRow("Eve Evenson", "Alice Allison")
+        .isExhausted();
+
+    db.insert(TABLE_MANAGER, manager(helper.bobId, helper.eveId));
+    o.assertCursor()
+        .hasRow("Eve Evenson", "Alice Allison")
+        .hasRow("Bob Bobberson", "Eve Evenson")
+        .isExhausted();
+  }
+
   @Test public void queryObservesInsertDebounced() {
     db.createQuery(TABLE_EMPLOYEE, SELECT_EMPLOYEES)
         .throttle(500, MILLISECONDS)
@@ -173,35 +220,1221 @@ public final class SqlBriteTest {
         .hasRow("eve", "Eve Evenson")
         .isExhausted();
 
-    long startNs = System.nanoTime();
+    long startNs = System.nanoTime();
+
+    // Shotgun 10 inserts which will cause 10 triggers. DO NOT DO THIS IRL! Use a transaction!
+    for (int i = 0; i < 10; i++) {
+      db.insert(TABLE_EMPLOYEE, employee("john" + i, "John Johnson " + i));
+    }
+
+    // Only one trigger should have been observed.
+    o.assertCursor()
+        .hasRow("alice", "Alice Allison")
+        .hasRow("bob", "Bob Bobberson")
+        .hasRow("eve", "Eve Evenson")
+        .hasRow("john0", "John Johnson 0")
+        .hasRow("john1", "John Johnson 1")
+        .hasRow("john2", "John Johnson 2")
+        .hasRow("john3", "John Johnson 3")
+        .hasRow("john4", "John Johnson 4")
+        .hasRow("john5", "John Johnson 5")
+        .hasRow("john6", "John Johnson 6")
+        .hasRow("john7", "John Johnson 7")
+        .hasRow("john8", "John Johnson 8")
+        .hasRow("john9", "John Johnson 9")
+        .isExhausted();
+
+    long tookNs = System.nanoTime() - startNs;
+    assertThat(TimeUnit.NANOSECONDS.toMillis(tookNs)).isIn(Range.atLeast(500L));
+  }
+
+  @Test public void insertAllOnlyNotifiesOnce() {
+    db.createQuery(TABLE_EMPLOYEE, SELECT_EMPLOYEES).subscribe(o);
+    o.assertCursor()
+        .hasRow("alice", "Alice Allison")
+        .hasRow("bob", "Bob Bobberson")
+        .hasRow("eve", "Eve Evenson")
+        .isExhausted();
+
+    long[] rowIds = db.insertAll(TABLE_EMPLOYEE, Arrays.asList(
+        employee("john", "John Johnson"),
+        employee("nick", "Nick Nickers")), CONFLICT_NONE);
+    assertThat(rowIds).hasLength(2);
+    assertThat(rowIds[0]).isNotEqualTo(-1L);
+    assertThat(rowIds[1]).isNotEqualTo(-1L);
+
+    o.assertCursor()
+        .hasRow("alice", "Alice Allison")
+        .hasRow("bob", "Bob Bobberson")
+        .hasRow("eve", "Eve Evenson")
+        .hasRow("john", "John Johnson")
+        .hasRow("nick", "Nick Nickers")
+        .isExhausted();
+  }
+
+  @Test public void insertAllWithDifferentColumns() {
+    ContentValues nameOnly = new ContentValues();
+    nameOnly.put(USERNAME, "nick");
+    nameOnly.put(NAME, "Nick Nickers");
+    ContentValues withId = employee("john", "John Johnson");
+    withId.put(ID, 100L);
+
+    long[] rowIds = db.insertAll(TABLE_EMPLOYEE, Arrays.asList(withId, nameOnly), CONFLICT_NONE);
+    assertThat(rowIds[0]).isEqualTo(100L);
+    assertThat(rowIds[1]).isEqualTo(101L);
+  }
+
+  @Test public void insertAllReportsIgnoredRows() {
+    db.createQuery(TABLE_EMPLOYEE, SELECT_EMPLOYEES).subscribe(o);
+    o.assertCursor()
+        .hasRow("alice", "Alice Allison")
+        .hasRow("bob", "Bob Bobberson")
+        .hasRow("eve", "Eve Evenson")
+        .isExhausted();
+
+    long[] rowIds = db.insertAll(TABLE_EMPLOYEE, Arrays.asList(
+        employee("bob", "Bob Bobberson"),
+        employee("john", "John Johnson")), CONFLICT_IGNORE);
+    assertThat(rowIds[0]).isEqualTo(-1L);
+    assertThat(rowIds[1]).isNotEqualTo(-1L);
+
+    o.assertCursor()
+        .hasRow("alice", "Alice Allison")
+        .hasRow("bob", "Bob Bobberson")
+        .hasRow("eve", "Eve Evenson")
+        .hasRow("john", "John Johnson")
+        .isExhausted();
+  }
+
+  @Test public void insertAllNotNotifiedWhenAllInsertsFail() {
+    db.createQuery(TABLE_EMPLOYEE, SELECT_EMPLOYEES).subscribe(o);
+    o.assertCursor()
+        .hasRow("alice", "Alice Allison")
+        .hasRow("bob", "Bob Bobberson")
+        .hasRow("eve", "Eve Evenson")
+        .isExhausted();
+
+    Iterator<ContentValues> values = Arrays.asList(
+        employee("alice", "Alice Allison"),
+        employee("bob", "Bob Bobberson")).iterator();
+    assertThat(db.insertAll(TABLE_EMPLOYEE, values, CONFLICT_IGNORE)).isEqualTo(0);
+    o.assertNoMoreEvents();
+  }
+
+  @Test public void upsertInsertsOrUpdates() {
+    assertUpsertInsertsOrUpdates();
+  }
+
+  @Test public void upsertFallbackInsertsOrUpdates() {
+    db.upsertSupport = -1;
+    assertUpsertInsertsOrUpdates();
+  }
+
+  private void assertUpsertInsertsOrUpdates() {
+    db.createQuery(TABLE_EMPLOYEE, SELECT_EMPLOYEES).subscribe(o);
+    o.assertCursor()
+        .hasRow("alice", "Alice Allison")
+        .hasRow("bob", "Bob Bobberson")
+        .hasRow("eve", "Eve Evenson")
+        .isExhausted();
+
+    String[] conflictColumns = { USERNAME };
+    assertThat(db.upsert(TABLE_EMPLOYEE, employee("bob", "Robert Bobberson"), conflictColumns,
+        null)).isEqualTo(1);
+    o.assertCursor()
+        .hasRow("alice", "Alice Allison")
+        .hasRow("bob", "Robert Bobberson")
+        .hasRow("eve", "Eve Evenson")
+        .isExhausted();
+
+    assertThat(db.upsert(TABLE_EMPLOYEE, employee("john", "John Johnson"), conflictColumns,
+        null)).isEqualTo(1);
+    o.assertCursor()
+        .hasRow("alice", "Alice Allison")
+        .hasRow("bob", "Robert Bobberson")
+        .hasRow("eve", "Eve Evenson")
+        .hasRow("john", "John Johnson")
+        .isExhausted();
+
+    // No columns to update leaves the existing row alone and sends no notification.
+    assertThat(db.upsert(TABLE_EMPLOYEE, employee("eve", "Evelyn Evenson"), conflictColumns,
+        new String[0])).isEqualTo(0);
+    o.assertNoMoreEvents();
+  }
+
+  @Test public void upsertAllOnlyNotifiesOnce() {
+    db.createQuery(TABLE_EMPLOYEE, SELECT_EMPLOYEES).subscribe(o);
+    o.assertCursor()
+        .hasRow("alice", "Alice Allison")
+        .hasRow("bob", "Bob Bobberson")
+        .hasRow("eve", "Eve Evenson")
+        .isExhausted();
+
+    int changed = db.upsertAll(TABLE_EMPLOYEE, Arrays.asList(
+        employee("alice", "Alice Allison-Smith"),
+        employee("john", "John Johnson")), new String[] { USERNAME }, new String[] { NAME });
+    assertThat(changed).isEqualTo(2);
+
+    o.assertCursor()
+        .hasRow("alice", "Alice Allison-Smith")
+        .hasRow("bob", "Bob Bobberson")
+        .hasRow("eve", "Eve Evenson")
+        .hasRow("john", "John Johnson")
+        .isExhausted();
+    o.assertNoMoreEvents();
+  }
+
+  @Test public void upsertRequiresConflictColumnValues() {
+    ContentValues values = new ContentValues();
+    values.put(NAME, "Nick Nickers");
+    try {
+      db.upsert(TABLE_EMPLOYEE, values, new String[] { USERNAME }, null);
+      fail();
+    } catch (IllegalArgumentException e) {
+      assertThat(e).hasMessage("Values [name] missing conflict columns [username]");
+    }
+  }
+
+  @Test public void insertAllFailureRollsBack() {
+    db.createQuery(TABLE_EMPLOYEE, SELECT_EMPLOYEES).subscribe(o);
+    o.assertCursor()
+        .hasRow("alice", "Alice Allison")
+        .hasRow("bob", "Bob Bobberson")
+        .hasRow("eve", "Eve Evenson")
+        .isExhausted();
+
+    try {
+      db.insertAll(TABLE_EMPLOYEE, Arrays.asList(
+          employee("john", "John Johnson"),
+          employee("bob", "Bob Bobberson")), CONFLICT_NONE);
+      fail();
+    } catch (SQLiteException ignored) {
+    }
+    o.assertNoMoreEvents();
+
+    assertCursor(db.query(SELECT_EMPLOYEES))
+        .hasRow("alice", "Alice Allison")
+        .hasRow("bob", "Bob Bobberson")
+        .hasRow("eve", "Eve Evenson")
+        .isExhausted();
+  }
+
+  @Test public void queryNotNotifiedWhenInsertFails() {
+    db.createQuery(TABLE_EMPLOYEE, SELECT_EMPLOYEES).subscribe(o);
+    o.assertCursor()
+        .hasRow("alice", "Alice Allison")
+        .hasRow("bob", "Bob Bobberson")
+        .hasRow("eve", "Eve Evenson")
+        .isExhausted();
+
+    db.insert(TABLE_EMPLOYEE, employee("bob", "Bob Bobberson"), CONFLICT_IGNORE);
+    o.assertNoMoreEvents();
+  }
+
+  @Test public void queryObservesUpdate() {
+    db.createQuery(TABLE_EMPLOYEE, SELECT_EMPLOYEES).subscribe(o);
+    o.assertCursor()
+        .hasRow("alice", "Alice Allison")
+        .hasRow("bob", "Bob Bobberson")
+        .hasRow("eve", "Eve Evenson")
+        .isExhausted();
+
+    ContentValues values = new ContentValues();
+    values.put(NAME, "Robert Bobberson");
+    db.update(TABLE_EMPLOYEE, values, USERNAME + " = 'bob'");
+    o.assertCursor()
+        .hasRow("alice", "Alice Allison")
+        .hasRow("bob", "Robert Bobberson")
+        .hasRow("eve", "Eve Evenson")
+        .isExhausted();
+  }
+
+  @Test public void queryNotNotifiedWhenUpdateAffectsZeroRows() {
+    db.createQuery(TABLE_EMPLOYEE, SELECT_EMPLOYEES).subscribe(o);
+    o.assertCursor()
+        .hasRow("alice", "Alice Allison")
+        .hasRow("bob", "Bob Bobberson")
+        .hasRow("eve", "Eve Evenson")
+        .isExhausted();
+
+    ContentValues values = new ContentValues();
+    values.put(NAME, "John Johnson");
+    db.update(TABLE_EMPLOYEE, values, USERNAME + " = 'john'");
+    o.assertNoMoreEvents();
+  }
+
+  @Test public void queryObservesDelete() {
+    db.createQuery(TABLE_EMPLOYEE, SELECT_EMPLOYEES).subscribe(o);
+    o.assertCursor()
+        .hasRow("alice", "Alice Allison")
+        .hasRow("bob", "Bob Bobberson")
+        .hasRow("eve", "Eve Evenson")
+        .isExhausted();
+
+    db.delete(TABLE_EMPLOYEE, USERNAME + " = 'bob'");
+    o.assertCursor()
+        .hasRow("alice", "Alice Allison")
+        .hasRow("eve", "Eve Evenson")
+        .isExhausted();
+  }
+
+  @Test public void queryNotNotifiedWhenDeleteAffectsZeroRows() {
+    db.createQuery(TABLE_EMPLOYEE, SELECT_EMPLOYEES).subscribe(o);
+    o.assertCursor()
+        .hasRow("alice", "Alice Allison")
+        .hasRow("bob", "Bob Bobberson")
+        .hasRow("eve", "Eve Evenson")
+        .isExhausted();
+
+    db.delete(TABLE_EMPLOYEE, USERNAME + " = 'john'");
+    o.assertNoMoreEvents();
+  }
+
+  @Test public void queryObservesExecuteUpdateDelete() {
+    db.createQuery(TABLE_EMPLOYEE, SELECT_EMPLOYEES).subscribe(o);
+    o.assertCursor()
+        .hasRow("alice", "Alice Allison")
+        .hasRow("bob", "Bob Bobberson")
+        .hasRow("eve", "Eve Evenson")
+        .isExhausted();
+
+    int rows = db.executeUpdateDelete(Collections.singleton(TABLE_EMPLOYEE), ""
+        + "INSERT INTO " + TABLE_EMPLOYEE + " (" + USERNAME + ", " + NAME + ") "
+        + "SELECT " + USERNAME + " || '2', " + NAME + " FROM " + TABLE_EMPLOYEE + " "
+        + "WHERE " + USERNAME + " != ?", "eve");
+    assertThat(rows).isEqualTo(2);
+    o.assertCursor()
+        .hasRow("alice", "Alice Allison")
+        .hasRow("bob", "Bob Bobberson")
+        .hasRow("eve", "Eve Evenson")
+        .hasRow("alice2", "Alice Allison")
+        .hasRow("bob2", "Bob Bobberson")
+        .isExhausted();
+
+    rows = db.executeUpdateDelete(Collections.singleton(TABLE_EMPLOYEE),
+        "DELETE FROM " + TABLE_EMPLOYEE + " WHERE " + USERNAME + " = ?", "john");
+    assertThat(rows).isEqualTo(0);
+    o.assertNoMoreEvents();
+  }
+
+  @Test public void queryObservesExecute() {
+    db.createQuery(TABLE_EMPLOYEE, SELECT_EMPLOYEES).subscribe(o);
+    o.assertCursor()
+        .hasRow("alice", "Alice Allison")
+        .hasRow("bob", "Bob Bobberson")
+        .hasRow("eve", "Eve Evenson")
+        .isExhausted();
+
+    db.execute(Collections.<String>emptySet(), "CREATE INDEX name_index ON "
+        + TABLE_EMPLOYEE + " (" + NAME + ")");
+    o.assertNoMoreEvents();
+
+    db.execute(Collections.singleton(TABLE_EMPLOYEE), "DELETE FROM " + TABLE_EMPLOYEE);
+    o.assertCursor()
+        .isExhausted();
+  }
+
+  @Test public void queryMultipleTables() {
+    db.createQuery(BOTH_TABLES, SELECT_MANAGER_LIST).subscribe(o);
+    o.assertCursor()
+        .hasRow("Eve Evenson", "Alice Allison")
+        .isExhausted();
+  }
+
+  @Test public void queryMultipleTablesObservesChanges() {
+    db.createQuery(BOTH_TABLES, SELECT_MANAGER_LIST).subscribe(o);
+    o.assertCursor()
+        .hasRow("Eve Evenson", "Alice Allison")
+        .isExhausted();
+
+    // A new employee triggers, despite the fact that it's not in our result set.
+    db.insert(TABLE_EMPLOYEE, employee("john", "John Johnson"));
+    o.assertCursor()
+        .hasRow("Eve Evenson", "Alice Allison")
+        .isExhausted();
+
+    // A new manager also triggers and it is in our result set.
+    db.insert(TABLE_MANAGER, manager(helper.bobId, helper.eveId));
+    o.assertCursor()
+        .hasRow("Eve Evenson", "Alice Allison")
+        .hasRow("Bob Bobberson", "Eve Evenson")
+        .isExhausted();
+  }
+
+  @Test public void queryMultipleTablesObservesChangesOnlyOnce() {
+    // Employee table is in this list twice. We should still only be notified once for a change.
+    List<String> tables = Arrays.asList(TABLE_EMPLOYEE, TABLE_MANAGER, TABLE_EMPLOYEE);
+    db.createQuery(tables, SELECT_MANAGER_LIST).subscribe(o);
+    o.assertCursor()
+        .hasRow("Eve Evenson", "Alice Allison")
+        .isExhausted();
+
+    ContentValues values = new ContentValues();
+    values.put(NAME, "Even Evenson");
+    db.update(TABLE_EMPLOYEE, values, USERNAME + " = 'eve'");
+    o.assertCursor()
+        .hasRow("Even Evenson", "Alice Allison")
+        .isExhausted();
+  }
+
+  @Test public void dispatcherNotifiesListenerOfManyChangedTablesOnce() {
+    // More tables than fit in a mask, so some ids fall back to the slow path.
+    Map<String, RowSet> changes = new LinkedHashMap<>();
+    for (int i = 0; i < 100; i++) {
+      changes.put("table" + i, RowSet.ALL_ROWS);
+    }
+    final List<String> notified = new ArrayList<>();
+    TableDispatcher dispatcher = new TableDispatcher();
+    dispatcher.register(recordingListener("low", notified),
+        new LinkedHashSet<>(Arrays.asList("table1", "table2")));
+    dispatcher.register(recordingListener("high", notified),
+        new LinkedHashSet<>(Arrays.asList("table70", "table99")));
+    dispatcher.register(recordingListener("all", notified), changes.keySet());
+
+    dispatcher.dispatch(changes);
+    assertThat(notified).containsExactly("all", "low", "high");
+  }
+
+  private static TableDispatcher.Listener recordingListener(final String name,
+      final List<String> notified) {
+    return new TableDispatcher.Listener() {
+      @Override public void onTrigger(Map<String, RowSet> changes) {
+        notified.add(name);
+      }
+    };
+  }
+
+  @Test public void queryNotNotifiedAfterUnsubscribe() {
+    Subscription subscription = o;
+    db.createQuery(TABLE_EMPLOYEE, SELECT_EMPLOYEES).subscribe(o);
+    o.assertCursor()
+        .hasRow("alice", "Alice Allison")
+        .hasRow("bob", "Bob Bobberson")
+        .hasRow("eve", "Eve Evenson")
+        .isExhausted();
+    subscription.unsubscribe();
+
+    db.insert(TABLE_EMPLOYEE, employee("john", "John Johnson"));
+    o.assertNoMoreEvents();
+  }
+
+  @Test public void queryUnregistersFromTablesAfterUnsubscribe() {
+    db.createQuery(BOTH_TABLES, SELECT_MANAGER_LIST).subscribe(o);
+    o.assertCursor()
+        .hasRow("Eve Evenson", "Alice Allison")
+        .isExhausted();
+    assertThat(db.dispatcher.listenerCount(TABLE_EMPLOYEE)).isEqualTo(1);
+    assertThat(db.dispatcher.listenerCount(TABLE_MANAGER)).isEqualTo(1);
+
+    o.unsubscribe();
+    assertThat(db.dispatcher.listenerCount(TABLE_EMPLOYEE)).isEqualTo(0);
+    assertThat(db.dispatcher.listenerCount(TABLE_MANAGER)).isEqualTo(0);
+  }
+
+  @Test public void queryNotNotifiedForOtherTables() {
+    db.createQuery(TABLE_MANAGER, "SELECT " + EMPLOYEE_ID + " FROM " + TABLE_MANAGER).subscribe(o);
+    o.assertCursor()
+        .hasRow(String.valueOf(helper.eveId))
+        .isExhausted();
+
+    db.insert(TABLE_EMPLOYEE, employee("john", "John Johnson"));
+    o.assertNoMoreEvents();
+  }
+
+  @Test public void sharedQueriesRegisterOnce() {
+    db.setQuerySharingEnabled(true);
+    RecordingObserver other = new RecordingObserver();
+
+    db.createQuery(TABLE_EMPLOYEE, SELECT_EMPLOYEES).subscribe(o);
+    o.assertCursor()
+        .hasRow("alice", "Alice Allison")
+        .hasRow("bob", "Bob Bobberson")
+        .hasRow("eve", "Eve Evenson")
+        .isExhausted();
+    db.createQuery(TABLE_EMPLOYEE, SELECT_EMPLOYEES).subscribe(other);
+    other.assertCursor()
+        .hasRow("alice", "Alice Allison")
+        .hasRow("bob", "Bob Bobberson")
+        .hasRow("eve", "Eve Evenson")
+        .isExhausted();
+    assertThat(db.dispatcher.listenerCount(TABLE_EMPLOYEE)).isEqualTo(1);
+
+    db.insert(TABLE_EMPLOYEE, employee("john", "John Johnson"));
+    o.assertCursor()
+        .hasRow("alice", "Alice Allison")
+        .hasRow("bob", "Bob Bobberson")
+        .hasRow("eve", "Eve Evenson")
+        .hasRow("john", "John Johnson")
+        .isExhausted();
+    other.assertCursor()
+        .hasRow("alice", "Alice Allison")
+        .hasRow("bob", "Bob Bobberson")
+        .hasRow("eve", "Eve Evenson")
+        .hasRow("john", "John Johnson")
+        .isExhausted();
+
+    o.unsubscribe();
+    assertThat(db.dispatcher.listenerCount(TABLE_EMPLOYEE)).isEqualTo(1);
+    other.unsubscribe();
+    assertThat(db.dispatcher.listenerCount(TABLE_EMPLOYEE)).isEqualTo(0);
+    other.assertNoMoreEvents();
+  }
+
+  @Test public void sharedQueryRunsOncePerTrigger() {
+    final List<String> logs = new ArrayList<>();
+    db.setLogger(new SqlBrite.Logger() {
+      @Override public void log(String message) {
+        if (message.startsWith("QUERY RUN")) {
+          logs.add(message);
+        }
+      }
+    });
+    db.setQuerySharingEnabled(true);
+    RecordingObserver other = new RecordingObserver();
+
+    db.createQuery(TABLE_EMPLOYEE, SELECT_EMPLOYEES).subscribe(o);
+    db.createQuery(TABLE_EMPLOYEE, SELECT_EMPLOYEES).subscribe(other);
+    o.assertCursor()
+        .hasRow("alice", "Alice Allison")
+        .hasRow("bob", "Bob Bobberson")
+        .hasRow("eve", "Eve Evenson")
+        .isExhausted();
+    other.assertCursor()
+        .hasRow("alice", "Alice Allison")
+        .hasRow("bob", "Bob Bobberson")
+        .hasRow("eve", "Eve Evenson")
+        .isExhausted();
+    assertThat(logs).hasSize(1);
+
+    db.delete(TABLE_EMPLOYEE, USERNAME + " = 'bob'");
+    o.assertCursor()
+        .hasRow("alice", "Alice Allison")
+        .hasRow("eve", "Eve Evenson")
+        .isExhausted();
+    other.assertCursor()
+        .hasRow("alice", "Alice Allison")
+        .hasRow("eve", "Eve Evenson")
+        .isExhausted();
+    assertThat(logs).hasSize(2);
+    other.assertNoMoreEvents();
+  }
+
+  @Test public void sharedQueriesWithDifferentArgsAreSeparate() {
+    db.setQuerySharingEnabled(true);
+    RecordingObserver other = new RecordingObserver();
+
+    db.createQuery(TABLE_EMPLOYEE, SELECT_EMPLOYEES + " WHERE " + USERNAME + " = ?", "bob")
+        .subscribe(o);
+    db.createQuery(TABLE_EMPLOYEE, SELECT_EMPLOYEES + " WHERE " + USERNAME + " = ?", "eve")
+        .subscribe(other);
+    o.assertCursor()
+        .hasRow("bob", "Bob Bobberson")
+        .isExhausted();
+    other.assertCursor()
+        .hasRow("eve", "Eve Evenson")
+        .isExhausted();
+    assertThat(db.dispatcher.listenerCount(TABLE_EMPLOYEE)).isEqualTo(2);
+    other.assertNoMoreEvents();
+  }
+
+  @Test public void rowFilteredQueryIgnoresOtherRows() {
+    db.createQuery(TABLE_EMPLOYEE, rowIs(helper.bobId),
+        SELECT_EMPLOYEES + " WHERE " + ID + " = ?", String.valueOf(helper.bobId)).subscribe(o);
+    o.assertCursor()
+        .hasRow("bob", "Bob Bobberson")
+        .isExhausted();
+
+    db.update(TABLE_EMPLOYEE, employee("alice", "Alice Smith"), ID + " = ?",
+        String.valueOf(helper.aliceId));
+    db.delete(TABLE_EMPLOYEE, USERNAME + " = 'eve'");
+    db.insert(TABLE_EMPLOYEE, employee("john", "John Johnson"));
+    o.assertNoMoreEvents();
+
+    db.update(TABLE_EMPLOYEE, employee("bob", "Bob Smith"), USERNAME + " = 'bob'");
+    o.assertCursor()
+        .hasRow("bob", "Bob Smith")
+        .isExhausted();
+
+    db.delete(TABLE_EMPLOYEE, NAME + " LIKE '%Smith'");
+    o.assertCursor()
+        .isExhausted();
+  }
+
+  @Test public void rowFilteredQueryNotifiedOfReplace() {
+    db.createQuery(TABLE_EMPLOYEE, rowIs(helper.bobId),
+        SELECT_EMPLOYEES + " WHERE " + ID + " = ?", String.valueOf(helper.bobId)).subscribe(o);
+    o.assertCursor()
+        .hasRow("bob", "Bob Bobberson")
+        .isExhausted();
+
+    // Replacing on the unique username deletes Bob's row even though a new ID is inserted.
+    db.insert(TABLE_EMPLOYEE, employee("bob", "Bob Smith"), SQLiteDatabase.CONFLICT_REPLACE);
+    o.assertCursor()
+        .isExhausted();
+  }
+
+  @Test public void rowFilteredQueryNotifiedWhenRowMovesOntoItsId() {
+    db.execute(Collections.<String>emptySet(),
+        "CREATE TABLE item (item_key INTEGER PRIMARY KEY, name TEXT NOT NULL)");
+    db.execute(Collections.singleton("item"), "INSERT INTO item VALUES (2, 'two')");
+    db.createQuery("item", rowIs(1L), "SELECT name FROM item WHERE item_key = 1").subscribe(o);
+    o.assertCursor()
+        .isExhausted();
+
+    // Assigning the rowid alias moves row 2 to ID 1.
+    ContentValues values = new ContentValues();
+    values.put("item_key", 1L);
+    db.update("item", values, "item_key = 2");
+    o.assertCursor()
+        .hasRow("two")
+        .isExhausted();
+  }
+
+  @Test public void rowFilteredQueryNotifiedOfWritesToTableWithoutRowId() {
+    db.execute(Collections.<String>emptySet(),
+        "CREATE TABLE tag (name TEXT NOT NULL PRIMARY KEY) WITHOUT ROWID");
+    db.execute(Collections.singleton("tag"), "INSERT INTO tag VALUES ('a')");
+    db.createQuery("tag", rowIs(1L), "SELECT name FROM tag").subscribe(o);
+    o.assertCursor()
+        .hasRow("a")
+        .isExhausted();
+
+    db.delete("tag", "name = 'a'");
+    o.assertCursor()
+        .isExhausted();
+  }
+
+  @Test public void rowFilteredQueryInTransactionNotifiedOnceForMergedRows() {
+    db.createQuery(TABLE_EMPLOYEE, rowIs(helper.eveId),
+        SELECT_EMPLOYEES + " WHERE " + ID + " = ?", String.valueOf(helper.eveId)).subscribe(o);
+    o.assertCursor()
+        .hasRow("eve", "Eve Evenson")
+        .isExhausted();
+
+    db.beginTransaction();
+    try {
+      db.update(TABLE_EMPLOYEE, employee("alice", "Alice Smith"), USERNAME + " = 'alice'");
+      db.insert(TABLE_EMPLOYEE, employee("john", "John Johnson"));
+      o.assertNoMoreEvents();
+      db.update(TABLE_EMPLOYEE, employee("eve", "Eve Smith"), USERNAME + " = 'eve'");
+      o.assertNoMoreEvents();
+      db.setTransactionSuccessful();
+    } finally {
+      db.endTransaction();
+    }
+    o.assertCursor()
+        .hasRow("eve", "Eve Smith")
+        .isExhausted();
+  }
+
+  @Test public void rowChangeLimitFallsBackToRange() {
+    db.setRowChangeLimit(1);
+    db.createQuery(TABLE_EMPLOYEE, rowIs(helper.bobId),
+        SELECT_EMPLOYEES + " WHERE " + ID + " = ?", String.valueOf(helper.bobId)).subscribe(o);
+    o.assertCursor()
+        .hasRow("bob", "Bob Bobberson")
+        .isExhausted();
+
+    // Alice and Eve are more rows than the limit and Bob's ID lies between theirs.
+    db.delete(TABLE_EMPLOYEE, USERNAME + " IN ('alice', 'eve')");
+    o.assertCursor()
+        .hasRow("bob", "Bob Bobberson")
+        .isExhausted();
+  }
+
+  @Test public void changeSetsReportRowDifferences() {
+    final List<ChangeSet> changes = new ArrayList<>();
+    Subscription subscription = db.createQuery(TABLE_EMPLOYEE,
+        "SELECT " + ID + ", " + USERNAME + ", " + NAME + " FROM " + TABLE_EMPLOYEE
+            + " ORDER BY " + USERNAME)
+        .lift(ChangeSet.diffById(ID))
+        .subscribe(new Consumer<ChangeSet>() {
+          @Override public void accept(ChangeSet changeSet) {
+            changeSet.cursor().close();
+            changes.add(changeSet);
+          }
+        });
+    assertThat(changes).hasSize(1);
+    assertThat(changes.get(0).inserted()).isEqualTo(new int[] { 0, 1, 2 });
+
+    db.insert(TABLE_EMPLOYEE, employee("carol", "Carol Carlson"));
+    assertThat(changes).hasSize(2);
+    assertThat(changes.get(1).inserted()).isEqualTo(new int[] { 2 });
+    assertThat(changes.get(1).removed()).isEmpty();
+
+    db.update(TABLE_EMPLOYEE, employee("bob", "Bob Smith"), USERNAME + " = 'bob'");
+    assertThat(changes).hasSize(3);
+    assertThat(changes.get(2).changed()).isEqualTo(new int[] { 1 });
+    assertThat(changes.get(2).inserted()).isEmpty();
+
+    db.delete(TABLE_EMPLOYEE, USERNAME + " = 'alice'");
+    assertThat(changes).hasSize(4);
+    assertThat(changes.get(3).removed()).isEqualTo(new int[] { 0 });
+    assertThat(changes.get(3).changed()).isEmpty();
+
+    // Bob, Carol, Eve becomes Eve, Bob, Carol.
+    db.update(TABLE_EMPLOYEE, employee("aaron", "Eve Evenson"), USERNAME + " = 'eve'");
+    assertThat(changes).hasSize(5);
+    assertThat(changes.get(4).movedFrom()).isEqualTo(new int[] { 2 });
+    assertThat(changes.get(4).movedTo()).isEqualTo(new int[] { 0 });
+    assertThat(changes.get(4).changed()).isEqualTo(new int[] { 0 });
+
+    subscription.unsubscribe();
+    db.insert(TABLE_EMPLOYEE, employee("dave", "Dave Davidson"));
+    assertThat(changes).hasSize(5);
+  }
+
+  @Test public void changeSetCursorClosedOnUnsubscribe() {
+    final List<Cursor> cursors = new ArrayList<>();
+    Subscription subscription = db.createQuery(TABLE_EMPLOYEE,
+        "SELECT " + ID + ", " + USERNAME + " FROM " + TABLE_EMPLOYEE)
+        .lift(ChangeSet.diffById(ID))
+        .subscribe(new Consumer<ChangeSet>() {
+          @Override public void accept(ChangeSet changeSet) {
+            cursors.add(changeSet.cursor());
+          }
+        });
+    db.insert(TABLE_EMPLOYEE, employee("carol", "Carol Carlson"));
+    assertThat(cursors).hasSize(2);
+    cursors.get(0).close();
+    assertThat(cursors.get(1).isClosed()).isFalse();
+
+    subscription.unsubscribe();
+    assertThat(cursors.get(1).isClosed()).isTrue();
+  }
+
+  @Test public void queriesRunOnScheduler() {
+    final List<Thread> runThreads = new CopyOnWriteArrayList<>();
+    db.setLogger(new SqlBrite.Logger() {
+      @Override public void log(String message) {
+        if (message.startsWith("QUERY RUN")) {
+          runThreads.add(Thread.currentThread());
+        }
+      }
+    });
+    HandlerThread thread = new HandlerThread("queries");
+    thread.start();
+    try {
+      db.setQueryScheduler(new HandlerThreadScheduler(new Handler(thread.getLooper())));
+
+      db.createQuery(TABLE_EMPLOYEE, SELECT_EMPLOYEES).subscribe(o);
+      o.assertCursor()
+          .hasRow("alice", "Alice Allison")
+          .hasRow("bob", "Bob Bobberson")
+          .hasRow("eve", "Eve Evenson")
+          .isExhausted();
+
+      db.insert(TABLE_EMPLOYEE, employee("john", "John Johnson"));
+      o.assertCursor()
+          .hasRow("alice", "Alice Allison")
+          .hasRow("bob", "Bob Bobberson")
+          .hasRow("eve", "Eve Evenson")
+          .hasRow("john", "John Johnson")
+          .isExhausted();
+      o.unsubscribe();
+
+      assertThat(runThreads).containsExactly(thread, thread);
+    } finally {
+      thread.quit();
+    }
+  }
+
+  @Test public void writeAheadLoggingUnsupportedInMemory() {
+    try {
+      db.enableWriteAheadLogging(2, 30, SECONDS);
+      fail();
+    } catch (IllegalStateException e) {
+      assertThat(e.getMessage()).contains("Write-ahead logging is not supported");
+    }
+  }
+
+  @Test public void readConnectionPoolReadsCommittedDataOutsideTransaction() throws Exception {
+    Context context = InstrumentationRegistry.getContext();
+    context.deleteDatabase("pool.db");
+    final SqlBrite pooled = SqlBrite.create(new TestDb(context, "pool.db"));
+    try {
+      pooled.enableWriteAheadLogging(2, 30, SECONDS);
+      pooled.beginTransaction();
+      try {
+        pooled.insert(TABLE_EMPLOYEE, employee("john", "John Johnson"));
+
+        // Queries on the transaction's thread see its changes.
+        assertCursor(pooled.query(SELECT_EMPLOYEES))
+            .hasRow("alice", "Alice Allison")
+            .hasRow("bob", "Bob Bobberson")
+            .hasRow("eve", "Eve Evenson")
+            .hasRow("john", "John Johnson")
+            .isExhausted();
+
+        // Other threads read from the pool without waiting for the transaction.
+        final AtomicReference<Cursor> other = new AtomicReference<>();
+        Thread reader = new Thread() {
+          @Override public void run() {
+            Cursor cursor = pooled.query(SELECT_EMPLOYEES);
+            cursor.getCount(); // Execute the query on this thread.
+            other.set(cursor);
+          }
+        };
+        reader.start();
+        reader.join(SECONDS.toMillis(5));
+        assertCursor(other.get())
+            .hasRow("alice", "Alice Allison")
+            .hasRow("bob", "Bob Bobberson")
+            .hasRow("eve", "Eve Evenson")
+            .isExhausted();
+
+        pooled.setTransactionSuccessful();
+      } finally {
+        pooled.endTransaction();
+      }
+
+      assertCursor(pooled.query(SELECT_EMPLOYEES))
+          .hasRow("alice", "Alice Allison")
+          .hasRow("bob", "Bob Bobberson")
+          .hasRow("eve", "Eve Evenson")
+          .hasRow("john", "John Johnson")
+          .isExhausted();
+    } finally {
+      pooled.close();
+      context.deleteDatabase("pool.db");
+    }
+  }
+
+  @Test public void readConnectionPoolQueriesSeeCommittedTransaction() {
+    Context context = InstrumentationRegistry.getContext();
+    context.deleteDatabase("pool.db");
+    SqlBrite pooled = SqlBrite.create(new TestDb(context, "pool.db"));
+    try {
+      pooled.enableWriteAheadLogging(2, 30, SECONDS);
+      pooled.createQuery(TABLE_EMPLOYEE, SELECT_EMPLOYEES).subscribe(o);
+      o.assertCursor()
+          .hasRow("alice", "Alice Allison")
+          .hasRow("bob", "Bob Bobberson")
+          .hasRow("eve", "Eve Evenson")
+          .isExhausted();
+
+      // The query runs again on a pooled connection which must see the committed rows.
+      pooled.insertAll(TABLE_EMPLOYEE, Arrays.asList(
+          employee("john", "John Johnson"),
+          employee("nick", "Nick Nickers")), CONFLICT_NONE);
+      o.assertCursor()
+          .hasRow("alice", "Alice Allison")
+          .hasRow("bob", "Bob Bobberson")
+          .hasRow("eve", "Eve Evenson")
+          .hasRow("john", "John Johnson")
+          .hasRow("nick", "Nick Nickers")
+          .isExhausted();
+    } finally {
+      o.unsubscribe();
+      pooled.close();
+      context.deleteDatabase("pool.db");
+    }
+  }
+
+  @Test public void conflationCollapsesTriggersDuringDelivery() {
+    db.setQueryConflationEnabled(true);
+    final List<Integer> counts = new ArrayList<>();
+    Subscription subscription = db.createQuery(TABLE_EMPLOYEE, SELECT_EMPLOYEES)
+        .subscribe(new Consumer<Query>() {
+          @Override public void accept(Query query) {
+            Cursor cursor = query.run();
+            counts.add(cursor.getCount());
+            cursor.close();
+            if (counts.size() == 1) {
+              // A burst of writes while this subscriber is still handling its emission.
+              db.insert(TABLE_EMPLOYEE, employee("john", "John Johnson"));
+              db.insert(TABLE_EMPLOYEE, employee("jane", "Jane Johnson"));
+              db.insert(TABLE_EMPLOYEE, employee("joe", "Joe Johnson"));
+            }
+          }
+        });
+    assertThat(counts).containsExactly(3, 6).inOrder();
+
+    db.insert(TABLE_EMPLOYEE, employee("jim", "Jim Johnson"));
+    assertThat(counts).containsExactly(3, 6, 7).inOrder();
+    subscription.unsubscribe();
+  }
+
+  @Test public void withoutConflationEveryTriggerIsDelivered() {
+    final List<Integer> counts = new ArrayList<>();
+    Subscription subscription = db.createQuery(TABLE_EMPLOYEE, SELECT_EMPLOYEES)
+        .subscribe(new Consumer<Query>() {
+          @Override public void accept(Query query) {
+            Cursor cursor = query.run();
+            counts.add(cursor.getCount());
+            cursor.close();
+            if (counts.size() == 1) {
+              db.insert(TABLE_EMPLOYEE, employee("john", "John Johnson"));
+              db.insert(TABLE_EMPLOYEE, employee("jane", "Jane Johnson"));
+            }
+          }
+        });
+    assertThat(counts).hasSize(3);
+    subscription.unsubscribe();
+  }
+
+  @Test public void distinctQueryResultsSkipUnchangedResults() {
+    db.setDistinctQueryResultsEnabled(true);
+    db.createQuery(TABLE_EMPLOYEE, SELECT_EMPLOYEES).subscribe(o);
+    o.assertCursor()
+        .hasRow("alice", "Alice Allison")
+        .hasRow("bob", "Bob Bobberson")
+        .hasRow("eve", "Eve Evenson")
+        .isExhausted();
+
+    ContentValues values = new ContentValues();
+    values.put(NAME, "Bob Bobberson");
+    db.update(TABLE_EMPLOYEE, values, USERNAME + " = 'bob'");
+    o.assertNoMoreEvents();
+
+    values.put(NAME, "Robert Bobberson");
+    db.update(TABLE_EMPLOYEE, values, USERNAME + " = 'bob'");
+    o.assertCursor()
+        .hasRow("alice", "Alice Allison")
+        .hasRow("bob", "Robert Bobberson")
+        .hasRow("eve", "Eve Evenson")
+        .isExhausted();
+  }
+
+  @Test public void aggregateQueryAppliesRowChanges() {
+    final List<Aggregate> aggregates = new ArrayList<>();
+    Subscription subscription = db.createAggregateQuery(TABLE_EMPLOYEE, ID, NAME + " != ?", "x")
+        .subscribe(new Consumer<Aggregate>() {
+          @Override public void accept(Aggregate aggregate) {
+            aggregates.add(aggregate);
+          }
+        });
+    assertThat(aggregates).containsExactly(new Aggregate(3, 6, 1, 3));
+
+    long johnId = db.insert(TABLE_EMPLOYEE, employee("john", "John Johnson"));
+    assertThat(johnId).isEqualTo(4);
+    assertThat(aggregates.get(1)).isEqualTo(new Aggregate(4, 10, 1, 4));
+
+    ContentValues values = new ContentValues();
+    values.put(NAME, "x");
+    db.update(TABLE_EMPLOYEE, values, USERNAME + " = 'alice'");
+    assertThat(aggregates.get(2)).isEqualTo(new Aggregate(3, 9, 2, 4));
+
+    db.delete(TABLE_EMPLOYEE, USERNAME + " = 'john'");
+    assertThat(aggregates.get(3)).isEqualTo(new Aggregate(2, 5, 2, 3));
+
+    // Changing a row which does not match leaves the aggregate unchanged.
+    values.put(USERNAME, "alicia");
+    db.update(TABLE_EMPLOYEE, values, USERNAME + " = 'alice'");
+    assertThat(aggregates).hasSize(4);
+
+    db.executeUpdateDelete(Collections.singleton(TABLE_EMPLOYEE),
+        "DELETE FROM " + TABLE_EMPLOYEE + " WHERE " + USERNAME + " = ?", "bob");
+    assertThat(aggregates.get(4)).isEqualTo(new Aggregate(1, 3, 3, 3));
+    subscription.unsubscribe();
+  }
+
+  @Test public void aggregateQueryAppliesWritesWithoutRunningAgain() {
+    Metrics metrics = new Metrics();
+    db.setEventListener(metrics);
+    final List<Aggregate> aggregates = new ArrayList<>();
+    Subscription subscription = db.createAggregateQuery(TABLE_EMPLOYEE, ID, null)
+        .subscribe(new Consumer<Aggregate>() {
+          @Override public void accept(Aggregate aggregate) {
+            aggregates.add(aggregate);
+          }
+        });
+    assertThat(aggregates).containsExactly(new Aggregate(3, 6, 1, 3));
+
+    db.update(TABLE_EMPLOYEE, employee("bob", "Robert"), USERNAME + " = 'bob'");
+    assertThat(aggregates).hasSize(1);
+    db.delete(TABLE_EMPLOYEE, USERNAME + " = 'bob'");
+    assertThat(aggregates.get(1)).isEqualTo(new Aggregate(2, 4, 1, 3));
+    db.insert(TABLE_EMPLOYEE, employee("john", "John Johnson"));
+    assertThat(aggregates.get(2)).isEqualTo(new Aggregate(3, 8, 1, 4));
+    assertThat(seedCount(metrics)).isEqualTo(1);
+
+    // Row IDs are bound, so further writes run no new SQL.
+    int queryCount = metrics.queries().size();
+    db.insert(TABLE_EMPLOYEE, employee("nick", "Nick Nickers"));
+    assertThat(aggregates.get(3)).isEqualTo(new Aggregate(4, 13, 1, 5));
+    assertThat(metrics.queries()).hasSize(queryCount);
+
+    // Removing the minimum leaves the next one unknown.
+    db.delete(TABLE_EMPLOYEE, USERNAME + " = 'alice'");
+    assertThat(aggregates.get(4)).isEqualTo(new Aggregate(3, 12, 3, 5));
+    assertThat(seedCount(metrics)).isEqualTo(2);
+    subscription.unsubscribe();
+  }
+
+  /** The number of times any aggregate query ran over every matching row. */
+  private static long seedCount(Metrics metrics) {
+    long count = 0;
+    for (String sql : metrics.queries()) {
+      if (sql.startsWith("SELECT COUNT(") && !sql.contains("_rowid_ IN")) {
+        count += metrics.queryTime(sql).count();
+      }
+    }
+    return count;
+  }
+
+  @Test public void aggregateQueryKeepsIntegerSumExact() {
+    final List<Aggregate> aggregates = new ArrayList<>();
+    Subscription subscription = db.createAggregateQuery(TABLE_EMPLOYEE, ID, null)
+        .subscribe(new Consumer<Aggregate>() {
+          @Override public void accept(Aggregate aggregate) {
+            aggregates.add(aggregate);
+          }
+        });
+    ContentValues values = employee("john", "John Johnson");
+    values.put(ID, (1L << 53) + 1);
+    db.insert(TABLE_EMPLOYEE, values);
+
+    // The sum cannot be represented as a double.
+    Aggregate aggregate = aggregates.get(1);
+    assertThat(aggregate.isIntegral()).isTrue();
+    assertThat(aggregate.longSum()).isEqualTo((1L << 53) + 7);
+    subscription.unsubscribe();
+  }
+
+  @Test public void aggregateQuerySubscribedToDuringTransactionSeedsAfterCommit() {
+    final List<Aggregate> aggregates = new ArrayList<>();
+    Subscription subscription;
+    db.beginTransaction();
+    try {
+      subscription = db.createAggregateQuery(TABLE_EMPLOYEE, ID, null)
+          .subscribe(new Consumer<Aggregate>() {
+            @Override public void accept(Aggregate aggregate) {
+              aggregates.add(aggregate);
+            }
+          });
+      db.insert(TABLE_EMPLOYEE, employee("john", "John Johnson"));
+      assertThat(aggregates).isEmpty();
+      db.setTransactionSuccessful();
+    } finally {
+      db.endTransaction();
+    }
+    assertThat(aggregates).containsExactly(new Aggregate(4, 10, 1, 4));
+
+    db.insert(TABLE_EMPLOYEE, employee("nick", "Nick Nickers"));
+    assertThat(aggregates.get(1)).isEqualTo(new Aggregate(5, 15, 1, 5));
+    subscription.unsubscribe();
+  }
+
+  @Test public void queryBindsTypedArgs() {
+    QueryArgs args = new QueryArgs().addLong(helper.bobId).addNull();
+    Cursor cursor = db.query(SELECT_EMPLOYEES + " WHERE " + ID + " = ? AND ? IS NULL", args);
+    try {
+      assertThat(cursor.moveToNext()).isTrue();
+      assertThat(cursor.getString(0)).isEqualTo("bob");
+      assertThat(cursor.moveToNext()).isFalse();
+    } finally {
+      cursor.close();
+    }
+  }
+
+  @Test public void queryObservesWithTypedArgs() {
+    QueryArgs args = new QueryArgs().addLong(helper.eveId);
+    db.createQuery(TABLE_EMPLOYEE, SELECT_EMPLOYEES + " WHERE " + ID + " >= ?", args)
+        .subscribe(o);
+    // The query copied its arguments.
+    args.clear().addLong(helper.aliceId);
+    o.assertCursor()
+        .hasRow("eve", "Eve Evenson")
+        .isExhausted();
+
+    db.insert(TABLE_EMPLOYEE, employee("john", "John Johnson"));
+    o.assertCursor()
+        .hasRow("eve", "Eve Evenson")
+        .hasRow("john", "John Johnson")
+        .isExhausted();
+  }
+
+  @Test public void queryRecompiledAfterSchemaChange() {
+    final List<Integer> columnCounts = new ArrayList<>();
+    Subscription subscription = db.createQuery(TABLE_EMPLOYEE, "SELECT * FROM " + TABLE_EMPLOYEE)
+        .subscribe(new Consumer<Query>() {
+          @Override public void accept(Query query) {
+            Cursor cursor = query.run();
+            columnCounts.add(cursor.getColumnCount());
+            cursor.close();
+          }
+        });
+    db.insert(TABLE_EMPLOYEE, employee("john", "John Johnson"));
+    assertThat(columnCounts).containsExactly(3, 3).inOrder();
+
+    db.execute(Collections.singleton(TABLE_EMPLOYEE),
+        "ALTER TABLE " + TABLE_EMPLOYEE + " ADD COLUMN age INTEGER");
+    assertThat(columnCounts).containsExactly(3, 3, 4).inOrder();
+    subscription.unsubscribe();
+  }
+
+  @Test public void metricsRecordQueriesWritesTriggersAndTransactions() {
+    Metrics metrics = new Metrics();
+    db.setEventListener(metrics);
+
+    db.createQuery(TABLE_EMPLOYEE, SELECT_EMPLOYEES).subscribe(o);
+    o.assertCursor()
+        .hasRow("alice", "Alice Allison")
+        .hasRow("bob", "Bob Bobberson")
+        .hasRow("eve", "Eve Evenson")
+        .isExhausted();
+    assertThat(metrics.queries()).containsExactly(SELECT_EMPLOYEES);
+    assertThat(metrics.queryRowCount(SELECT_EMPLOYEES).max()).isEqualTo(3);
+
+    db.beginTransaction();
+    try {
+      db.beginTransaction();
+      try {
+        db.insert(TABLE_EMPLOYEE, employee("john", "John Johnson"));
+        db.setTransactionSuccessful();
+      } finally {
+        db.endTransaction();
+      }
+      db.setTransactionSuccessful();
+    } finally {
+      db.endTransaction();
+    }
+    o.assertCursor()
+        .hasRow("alice", "Alice Allison")
+        .hasRow("bob", "Bob Bobberson")
+        .hasRow("eve", "Eve Evenson")
+        .hasRow("john", "John Johnson")
+        .isExhausted();
+
+    assertThat(metrics.queryTime(SELECT_EMPLOYEES).count()).isEqualTo(2);
+    assertThat(metrics.queryRowCount(SELECT_EMPLOYEES).max()).isEqualTo(4);
+    assertThat(metrics.writeTime(TABLE_EMPLOYEE).count()).isEqualTo(1);
+    assertThat(metrics.triggerFanOut(TABLE_EMPLOYEE).count()).isEqualTo(1);
+    assertThat(metrics.triggerFanOut(TABLE_EMPLOYEE).max()).isEqualTo(1);
+    assertThat(metrics.transactionTime().count()).isEqualTo(2);
+    assertThat(metrics.transactionDepth().max()).isEqualTo(2);
+    assertThat(metrics.commitCount()).isEqualTo(2);
+    assertThat(metrics.rollbackCount()).isEqualTo(0);
+  }
+
+  @Test public void transactionEndReportedBeforeDeferredTransactionsReuseItsFrame() {
+    Metrics metrics = new Metrics();
+    db.setEventListener(metrics);
+
+    Subscription subscription;
+    db.beginTransaction();
+    try {
+      // Runs once the transaction ends, in a transaction of its own which rolls back.
+      subscription = db.createQuery(TABLE_EMPLOYEE, SELECT_EMPLOYEES).subscribe(
+          new Consumer<Query>() {
+            @Override public void accept(Query query) {
+              db.beginTransaction();
+              db.endTransaction();
+            }
+          });
+      db.insert(TABLE_EMPLOYEE, employee("john", "John Johnson"));
+      db.setTransactionSuccessful();
+    } finally {
+      db.endTransaction();
+    }
+
+    assertThat(metrics.commitCount()).isEqualTo(1);
+    assertThat(metrics.rollbackCount()).isEqualTo(1);
+    subscription.unsubscribe();
+  }
+
+  @Test public void pagedQueryLoadsPagesAndReloadsWindow() {
+    HandlerThread thread = new HandlerThread("pages");
+    thread.start();
+    try {
+      PagedQuery paged = db.createPagedQuery(TABLE_EMPLOYEE, ID, false, 2,
+          new HandlerThreadScheduler(new Handler(thread.getLooper())),
+          "SELECT " + ID + ", " + USERNAME + " FROM " + TABLE_EMPLOYEE);
+      paged.windows().subscribe(o);
+      o.assertCursor()
+          .hasRow(String.valueOf(helper.aliceId), "alice")
+          .hasRow(String.valueOf(helper.bobId), "bob")
+          .isExhausted();
+
+      // Nearing the end of the window loads the next page.
+      paged.onPositionVisible(1);
+      o.assertCursor()
+          .hasRow(String.valueOf(helper.aliceId), "alice")
+          .hasRow(String.valueOf(helper.bobId), "bob")
+          .hasRow(String.valueOf(helper.eveId), "eve")
+          .isExhausted();
+
+      // A change reloads both loaded pages.
+      long johnId = db.insert(TABLE_EMPLOYEE, employee("john", "John Johnson"));
+      o.assertCursor()
+          .hasRow(String.valueOf(helper.aliceId), "alice")
+          .hasRow(String.valueOf(helper.bobId), "bob")
+          .hasRow(String.valueOf(helper.eveId), "eve")
+          .hasRow(String.valueOf(johnId), "john")
+          .isExhausted();
+
+      paged.moveTo(helper.eveId);
+      o.assertCursor()
+          .hasRow(String.valueOf(helper.eveId), "eve")
+          .hasRow(String.valueOf(johnId), "john")
+          .isExhausted();
+      o.unsubscribe();
+    } finally {
+      thread.quit();
+    }
+  }
+
+  @Test public void pagedQueryStopsObservingAfterError() {
+    db.execute(Collections.<String>emptySet(),
+        "CREATE TABLE item (_id INTEGER PRIMARY KEY, name TEXT NOT NULL)");
+    HandlerThread thread = new HandlerThread("pages");
+    thread.start();
+    try {
+      PagedQuery paged = db.createPagedQuery("item", "_id", false, 2,
+          new HandlerThreadScheduler(new Handler(thread.getLooper())), "SELECT name FROM item");
+      paged.windows().subscribe(o);
+      o.assertCursor()
+          .isExhausted();
 
-    // Shotgun 10 inserts which will cause 10 triggers. DO NOT DO THIS IRL! Use a transaction!
-    for (int i = 0; i < 10; i++) {
-      db.insert(TABLE_EMPLOYEE, employee("john" + i, "John Johnson " + i));
+      db.execute(Collections.singleton("item"), "DROP TABLE item");
+      o.assertErrorContains("no such table");
+      assertThat(db.dispatcher.listenerCount("item")).isEqualTo(0);
+
+      db.execute(Collections.<String>emptySet(),
+          "CREATE TABLE item (_id INTEGER PRIMARY KEY, name TEXT NOT NULL)");
+      db.execute(Collections.singleton("item"), "INSERT INTO item (name) VALUES ('one')");
+      o.assertNoMoreEvents();
+    } finally {
+      thread.quit();
     }
+  }
 
-    // Only one trigger should have been observed.
-    o.assertCursor()
-        .hasRow("alice", "Alice Allison")
-        .hasRow("bob", "Bob Bobberson")
-        .hasRow("eve", "Eve Evenson")
-        .hasRow("john0", "John Johnson 0")
-        .hasRow("john1", "John Johnson 1")
-        .hasRow("john2", "John Johnson 2")
-        .hasRow("john3", "John Johnson 3")
-        .hasRow("john4", "John Johnson 4")
-        .hasRow("john5", "John Johnson 5")
-        .hasRow("john6", "John Johnson 6")
-        .hasRow("john7", "John Johnson 7")
-        .hasRow("john8", "John Johnson 8")
-        .hasRow("john9", "John Johnson 9")
+  @Test public void streamRowsEmitsChunksUntilUnsubscribed() {
+    String sql = "SELECT " + ID + ", " + USERNAME + " FROM " + TABLE_EMPLOYEE;
+    final List<Cursor> chunks = new ArrayList<>();
+    db.streamRows(ID, 2, Long.MAX_VALUE, sql).subscribe(new Consumer<Cursor>() {
+      @Override public void accept(Cursor chunk) {
+        chunks.add(chunk);
+      }
+    });
+    assertThat(chunks).hasSize(2);
+    assertCursor(chunks.get(0))
+        .hasRow(String.valueOf(helper.aliceId), "alice")
+        .hasRow(String.valueOf(helper.bobId), "bob")
+        .isExhausted();
+    assertCursor(chunks.get(1))
+        .hasRow(String.valueOf(helper.eveId), "eve")
         .isExhausted();
 
-    long tookNs = System.nanoTime() - startNs;
-    assertThat(TimeUnit.NANOSECONDS.toMillis(tookNs)).isIn(Range.atLeast(500L));
+    // A byte cap smaller than one row yields a chunk per row. Unsubscribing stops the scan.
+    final List<Cursor> capped = new ArrayList<>();
+    db.streamRows(ID, 2, 1, sql).subscribe(new Observer<Cursor>() {
+      @Override public void onNext(Cursor chunk) {
+        capped.add(chunk);
+        if (capped.size() == 2) unsubscribe();
+      }
+    });
+    assertThat(capped).hasSize(2);
+    assertCursor(capped.get(0))
+        .hasRow(String.valueOf(helper.aliceId), "alice")
+        .isExhausted();
+    assertCursor(capped.get(1))
+        .hasRow(String.valueOf(helper.bobId), "bob")
+        .isExhausted();
   }
 
-  @Test public void queryNotNotifiedWhenInsertFails() {
+  @Test public void writeQueueCommitsBatchWithSingleNotification() {
     db.createQuery(TABLE_EMPLOYEE, SELECT_EMPLOYEES).subscribe(o);
     o.assertCursor()
         .hasRow("alice", "Alice Allison")
@@ -209,43 +1442,105 @@ public final class SqlBriteTest {
         .hasRow("eve", "Eve Evenson")
         .isExhausted();
 
-    db.insert(TABLE_EMPLOYEE, employee("bob", "Bob Bobberson"), CONFLICT_IGNORE);
-    o.assertNoMoreEvents();
-  }
+    WriteQueue queue = db.createWriteQueue(10, 60, SECONDS);
+    Observable<Long> john = queue.insert(TABLE_EMPLOYEE, employee("john", "John Johnson"));
+    Observable<Long> nick = queue.insert(TABLE_EMPLOYEE, employee("nick", "Nick Nickers"));
+    Observable<Long> duplicate = queue.insert(TABLE_EMPLOYEE, employee("alice", "Alice Again"));
+    queue.close(); // Applies the pending batch without waiting for the delay.
 
-  @Test public void queryObservesUpdate() {
-    db.createQuery(TABLE_EMPLOYEE, SELECT_EMPLOYEES).subscribe(o);
+    // The duplicate fails the batch, which is retried a write at a time.
     o.assertCursor()
         .hasRow("alice", "Alice Allison")
         .hasRow("bob", "Bob Bobberson")
         .hasRow("eve", "Eve Evenson")
+        .hasRow("john", "John Johnson")
         .isExhausted();
-
-    ContentValues values = new ContentValues();
-    values.put(NAME, "Robert Bobberson");
-    db.update(TABLE_EMPLOYEE, values, USERNAME + " = 'bob'");
     o.assertCursor()
         .hasRow("alice", "Alice Allison")
-        .hasRow("bob", "Robert Bobberson")
+        .hasRow("bob", "Bob Bobberson")
         .hasRow("eve", "Eve Evenson")
+        .hasRow("john", "John Johnson")
+        .hasRow("nick", "Nick Nickers")
         .isExhausted();
+    o.assertNoMoreEvents();
+
+    final List<Long> ids = new ArrayList<>();
+    Consumer<Long> addId = new Consumer<Long>() {
+      @Override public void accept(Long id) {
+        ids.add(id);
+      }
+    };
+    john.subscribe(addId);
+    nick.subscribe(addId);
+    assertThat(ids).hasSize(2);
+    final AtomicReference<Throwable> error = new AtomicReference<>();
+    duplicate.subscribe(new Observer<Long>() {
+      @Override public void onError(Throwable e) {
+        error.set(e);
+      }
+    });
+    assertThat(error.get()).isInstanceOf(SQLiteException.class);
+
+    try {
+      queue.insert(TABLE_EMPLOYEE, employee("john", "John Johnson"));
+      fail();
+    } catch (IllegalStateException e) {
+      assertThat(e).hasMessage("WriteQueue closed.");
+    }
   }
 
-  @Test public void queryNotNotifiedWhenUpdateAffectsZeroRows() {
-    db.createQuery(TABLE_EMPLOYEE, SELECT_EMPLOYEES).subscribe(o);
+  @Test public void writeQueueTerminatesEveryWriteAcceptedBeforeClose() throws Exception {
+    final WriteQueue queue = db.createWriteQueue(10, 0, SECONDS);
+    final List<Observable<Integer>> accepted = new CopyOnWriteArrayList<>();
+    final CountDownLatch started = new CountDownLatch(1);
+    Thread writer = new Thread() {
+      @Override public void run() {
+        try {
+          while (true) {
+            accepted.add(queue.delete(TABLE_EMPLOYEE, "0"));
+            started.countDown();
+          }
+        } catch (IllegalStateException expected) {
+        }
+      }
+    };
+    writer.start();
+    assertThat(started.await(5, SECONDS)).isTrue();
+    queue.close();
+    writer.join(SECONDS.toMillis(5));
+
+    final AtomicInteger terminated = new AtomicInteger();
+    for (Observable<Integer> write : accepted) {
+      write.subscribe(new Observer<Integer>() {
+        @Override public void onCompleted() {
+          terminated.incrementAndGet();
+        }
+
+        @Override public void onError(Throwable e) {
+          terminated.incrementAndGet();
+        }
+      });
+    }
+    assertThat(terminated.get()).isEqualTo(accepted.size());
+  }
+
+  @Test public void queryOnlyNotifiedAfterSubscribe() {
+    Observable<Query> query = db.createQuery(TABLE_EMPLOYEE, SELECT_EMPLOYEES);
+    o.assertNoMoreEvents();
+
+    db.insert(TABLE_EMPLOYEE, employee("john", "John Johnson"));
+    o.assertNoMoreEvents();
+
+    query.subscribe(o);
     o.assertCursor()
         .hasRow("alice", "Alice Allison")
         .hasRow("bob", "Bob Bobberson")
         .hasRow("eve", "Eve Evenson")
+        .hasRow("john", "John Johnson")
         .isExhausted();
-
-    ContentValues values = new ContentValues();
-    values.put(NAME, "John Johnson");
-    db.update(TABLE_EMPLOYEE, values, USERNAME + " = 'john'");
-    o.assertNoMoreEvents();
   }
 
-  @Test public void queryObservesDelete() {
+  @Test public void transactionOnlyNotifiesOnce() {
     db.createQuery(TABLE_EMPLOYEE, SELECT_EMPLOYEES).subscribe(o);
     o.assertCursor()
         .hasRow("alice", "Alice Allison")
@@ -253,14 +1548,27 @@ public final class SqlBriteTest {
         .hasRow("eve", "Eve Evenson")
         .isExhausted();
 
-    db.delete(TABLE_EMPLOYEE, USERNAME + " = 'bob'");
+    db.beginTransaction();
+    try {
+      db.insert(TABLE_EMPLOYEE, employee("john", "John Johnson"));
+      db.insert(TABLE_EMPLOYEE, employee("nick", "Nick Nickers"));
+      o.assertNoMoreEvents();
+
+      db.setTransactionSuccessful();
+    } finally {
+      db.endTransaction();
+    }
+
     o.assertCursor()
         .hasRow("alice", "Alice Allison")
+        .hasRow("bob", "Bob Bobberson")
         .hasRow("eve", "Eve Evenson")
+        .hasRow("john", "John Johnson")
+        .hasRow("nick", "Nick Nickers")
         .isExhausted();
   }
 
-  @Test public void queryNotNotifiedWhenDeleteAffectsZeroRows() {
+  @Test public void transactionHandleEndsOnClose() {
     db.createQuery(TABLE_EMPLOYEE, SELECT_EMPLOYEES).subscribe(o);
     o.assertCursor()
         .hasRow("alice", "Alice Allison")
@@ -268,98 +1576,76 @@ public final class SqlBriteTest {
         .hasRow("eve", "Eve Evenson")
         .isExhausted();
 
-    db.delete(TABLE_EMPLOYEE, USERNAME + " = 'john'");
-    o.assertNoMoreEvents();
-  }
-
-  @Test public void queryMultipleTables() {
-    db.createQuery(BOTH_TABLES, SELECT_MANAGER_LIST).subscribe(o);
-    o.assertCursor()
-        .hasRow("Eve Evenson", "Alice Allison")
-        .isExhausted();
-  }
-
-  @Test public void queryMultipleTablesObservesChanges() {
-    db.createQuery(BOTH_TABLES, SELECT_MANAGER_LIST).subscribe(o);
-    o.assertCursor()
-        .hasRow("Eve Evenson", "Alice Allison")
-        .isExhausted();
-
-    // A new employee triggers, despite the fact that it's not in our result set.
-    db.insert(TABLE_EMPLOYEE, employee("john", "John Johnson"));
-    o.assertCursor()
-        .hasRow("Eve Evenson", "Alice Allison")
-        .isExhausted();
-
-    // A new manager also triggers and it is in our result set.
-    db.insert(TABLE_MANAGER, manager(helper.bobId, helper.eveId));
-    o.assertCursor()
-        .hasRow("Eve Evenson", "Alice Allison")
-        .hasRow("Bob Bobberson", "Eve Evenson")
-        .isExhausted();
-  }
-
-  @Test public void queryMultipleTablesObservesChangesOnlyOnce() {
-    // Employee table is in this list twice. We should still only be notified once for a change.
-    List<String> tables = Arrays.asList(TABLE_EMPLOYEE, TABLE_MANAGER, TABLE_EMPLOYEE);
-    db.createQuery(tables, SELECT_MANAGER_LIST).subscribe(o);
-    o.assertCursor()
-        .hasRow("Eve Evenson", "Alice Allison")
-        .isExhausted();
+    SqlBrite.Transaction transaction = db.newTransaction();
+    try {
+      db.insert(TABLE_EMPLOYEE, employee("john", "John Johnson"));
+      db.insert(TABLE_EMPLOYEE, employee("nick", "Nick Nickers"));
+      o.assertNoMoreEvents();
 
-    ContentValues values = new ContentValues();
-    values.put(NAME, "Even Evenson");
-    db.update(TABLE_EMPLOYEE, values, USERNAME + " = 'eve'");
-    o.assertCursor()
-        .hasRow("Even Evenson", "Alice Allison")
-        .isExhausted();
-  }
+      transaction.markSuccessful();
+    } finally {
+      transaction.close();
+    }
 
-  @Test public void queryNotNotifiedAfterUnsubscribe() {
-    Subscription subscription = o;
-    db.createQuery(TABLE_EMPLOYEE, SELECT_EMPLOYEES).subscribe(o);
     o.assertCursor()
         .hasRow("alice", "Alice Allison")
         .hasRow("bob", "Bob Bobberson")
         .hasRow("eve", "Eve Evenson")
+        .hasRow("john", "John Johnson")
+        .hasRow("nick", "Nick Nickers")
         .isExhausted();
-    subscription.unsubscribe();
 
-    db.insert(TABLE_EMPLOYEE, employee("john", "John Johnson"));
+    // The next transaction at the same depth reuses the handle and starts with no changes.
+    SqlBrite.Transaction next = db.newTransaction();
+    assertThat(next).isSameAs(transaction);
+    next.end();
     o.assertNoMoreEvents();
+
+    try {
+      next.end();
+      fail();
+    } catch (IllegalStateException e) {
+      assertThat(e).hasMessage("Not the current transaction.");
+    }
   }
 
-  @Test public void queryOnlyNotifiedAfterSubscribe() {
-    Observable<Query> query = db.createQuery(TABLE_EMPLOYEE, SELECT_EMPLOYEES);
-    o.assertNoMoreEvents();
+  @Test public void querySubscribedToDuringTransactionEmitsAfterCommit() {
+    db.beginTransaction();
+    try {
+      db.createQuery(TABLE_EMPLOYEE, SELECT_EMPLOYEES).subscribe(o);
+      db.insert(TABLE_EMPLOYEE, employee("john", "John Johnson"));
+      db.beginTransaction();
+      try {
+        db.insert(TABLE_EMPLOYEE, employee("nick", "Nick Nickers"));
+        db.setTransactionSuccessful();
+      } finally {
+        db.endTransaction();
+      }
+      o.assertNoMoreEvents();
 
-    db.insert(TABLE_EMPLOYEE, employee("john", "John Johnson"));
-    o.assertNoMoreEvents();
+      db.setTransactionSuccessful();
+    } finally {
+      db.endTransaction();
+    }
 
-    query.subscribe(o);
     o.assertCursor()
         .hasRow("alice", "Alice Allison")
         .hasRow("bob", "Bob Bobberson")
         .hasRow("eve", "Eve Evenson")
         .hasRow("john", "John Johnson")
+        .hasRow("nick", "Nick Nickers")
         .isExhausted();
+    o.assertNoMoreEvents();
   }
 
-  @Test public void transactionOnlyNotifiesOnce() {
-    db.createQuery(TABLE_EMPLOYEE, SELECT_EMPLOYEES).subscribe(o);
-    o.assertCursor()
-        .hasRow("alice", "Alice Allison")
-        .hasRow("bob", "Bob Bobberson")
-        .hasRow("eve", "Eve Evenson")
-        .isExhausted();
+  @Test public void querySubscribedToDuringTransactionEmitsAfterRollback() {
+    Observable<Query> query = db.createQuery(TABLE_EMPLOYEE, SELECT_EMPLOYEES);
 
     db.beginTransaction();
     try {
+      query.subscribe(o);
       db.insert(TABLE_EMPLOYEE, employee("john", "John Johnson"));
-      db.insert(TABLE_EMPLOYEE, employee("nick", "Nick Nickers"));
       o.assertNoMoreEvents();
-
-      db.setTransactionSuccessful();
     } finally {
       db.endTransaction();
     }
@@ -368,27 +1654,62 @@ public final class SqlBriteTest {
         .hasRow("alice", "Alice Allison")
         .hasRow("bob", "Bob Bobberson")
         .hasRow("eve", "Eve Evenson")
-        .hasRow("john", "John Johnson")
-        .hasRow("nick", "Nick Nickers")
         .isExhausted();
+    o.assertNoMoreEvents();
   }
 
-  @Test public void queryCreatedDuringTransactionThrows() {
+  @Test public void failingDeferredSubscriberDoesNotSkipOthers() {
+    Observable<Query> query = db.createQuery(TABLE_EMPLOYEE, SELECT_EMPLOYEES);
+
     db.beginTransaction();
+    query.subscribe(new Observer<Query>() {
+      @Override public void onNext(Query query) {
+        throw new IllegalStateException("Boom!");
+      }
+    });
+    query.subscribe(o);
+    db.setTransactionSuccessful();
     try {
-      db.createQuery(TABLE_EMPLOYEE, SELECT_EMPLOYEES);
+      db.endTransaction();
       fail();
     } catch (IllegalStateException e) {
-      assertThat(e.getMessage()).startsWith("Cannot create observable query in transaction.");
+      assertThat(e).hasMessage("Boom!");
     }
+
+    o.assertCursor()
+        .hasRow("alice", "Alice Allison")
+        .hasRow("bob", "Bob Bobberson")
+        .hasRow("eve", "Eve Evenson")
+        .isExhausted();
   }
 
-  @Test public void querySubscribedToDuringTransactionThrows() {
-    Observable<Query> query = db.createQuery(TABLE_EMPLOYEE, SELECT_EMPLOYEES);
+  @Test public void pagedQuerySubscribedToDuringTransactionLoadsAfterCommit() {
+    HandlerThread thread = new HandlerThread("pages");
+    thread.start();
+    try {
+      PagedQuery paged = db.createPagedQuery(TABLE_EMPLOYEE, ID, false, 10,
+          new HandlerThreadScheduler(new Handler(thread.getLooper())),
+          "SELECT " + ID + ", " + USERNAME + " FROM " + TABLE_EMPLOYEE);
+      long johnId;
+      db.beginTransaction();
+      try {
+        paged.windows().subscribe(o);
+        johnId = db.insert(TABLE_EMPLOYEE, employee("john", "John Johnson"));
+        db.setTransactionSuccessful();
+      } finally {
+        db.endTransaction();
+      }
 
-    db.beginTransaction();
-    query.subscribe(o);
-    o.assertErrorContains("Cannot subscribe to observable query in a transaction.");
+      o.assertCursor()
+          .hasRow(String.valueOf(helper.aliceId), "alice")
+          .hasRow(String.valueOf(helper.bobId), "bob")
+          .hasRow(String.valueOf(helper.eveId), "eve")
+          .hasRow(String.valueOf(johnId), "john")
+          .isExhausted();
+      o.unsubscribe();
+    } finally {
+      thread.quit();
+    }
   }
 
   @Test public void endTransactionWithNoBeginFails() {
@@ -593,6 +1914,81 @@ public final class SqlBriteTest {
     o.assertNoMoreEvents();
   }
 
+  @Test public void writesReuseCompiledStatements() {
+    StatementCache cache = db.statementCache();
+    db.insert(TABLE_EMPLOYEE, employee("john", "John Johnson"));
+    assertThat(cache.missCount()).isEqualTo(1);
+    assertThat(cache.hitCount()).isEqualTo(0);
+
+    db.insert(TABLE_EMPLOYEE, employee("nick", "Nick Nickers"));
+    assertThat(cache.missCount()).isEqualTo(1);
+    assertThat(cache.hitCount()).isEqualTo(1);
+    assertThat(cache.size()).isEqualTo(1);
+
+    db.delete(TABLE_EMPLOYEE, USERNAME + " = ?", "john");
+    db.delete(TABLE_EMPLOYEE, USERNAME + " = ?", "nick");
+    assertThat(cache.missCount()).isEqualTo(2);
+    assertThat(cache.hitCount()).isEqualTo(2);
+    assertThat(cache.size()).isEqualTo(2);
+
+    assertCursor(db.query(SELECT_EMPLOYEES))
+        .hasRow("alice", "Alice Allison")
+        .hasRow("bob", "Bob Bobberson")
+        .hasRow("eve", "Eve Evenson")
+        .isExhausted();
+  }
+
+  @Test public void statementCacheKeyIgnoresColumnOrder() {
+    ContentValues first = new ContentValues();
+    first.put(USERNAME, "john");
+    first.put(NAME, "John Johnson");
+    ContentValues second = new ContentValues();
+    second.put(NAME, "Nick Nickers");
+    second.put(USERNAME, "nick");
+
+    db.insert(TABLE_EMPLOYEE, first);
+    db.insert(TABLE_EMPLOYEE, second);
+    assertThat(db.statementCache().missCount()).isEqualTo(1);
+    assertThat(db.statementCache().hitCount()).isEqualTo(1);
+  }
+
+  @Test public void statementCacheReusesKeysOfRepeatedWrites() {
+    StatementCache cache = db.statementCache();
+    ContentValues first = employee("john", "John Johnson");
+    ContentValues second = employee("nick", "Nick Nickers");
+    StatementCache.Key key = cache.insertKey(TABLE_EMPLOYEE, first.keySet(), CONFLICT_NONE);
+    assertThat(cache.insertKey(TABLE_EMPLOYEE, second.keySet(), CONFLICT_NONE)).isSameAs(key);
+    assertThat(cache.insertKey(TABLE_EMPLOYEE, second.keySet(), CONFLICT_IGNORE))
+        .isNotSameAs(key);
+    assertThat(cache.deleteKey(TABLE_EMPLOYEE, USERNAME + " = ?"))
+        .isSameAs(cache.deleteKey(TABLE_EMPLOYEE, USERNAME + " = ?"));
+  }
+
+  @Test public void statementCacheEvictsLeastRecentlyUsed() {
+    StatementCache cache = db.statementCache();
+    cache.resize(1);
+
+    db.insert(TABLE_EMPLOYEE, employee("john", "John Johnson"));
+    ContentValues values = new ContentValues();
+    values.put(NAME, "Robert Bobberson");
+    db.update(TABLE_EMPLOYEE, values, USERNAME + " = ?", "bob");
+    assertThat(cache.size()).isEqualTo(1);
+    assertThat(cache.evictionCount()).isEqualTo(1);
+
+    db.insert(TABLE_EMPLOYEE, employee("nick", "Nick Nickers"));
+    assertThat(cache.missCount()).isEqualTo(3);
+    assertThat(cache.evictionCount()).isEqualTo(2);
+  }
+
+  @Test public void closeEvictsCachedStatements() throws IOException {
+    db.insert(TABLE_EMPLOYEE, employee("john", "John Johnson"));
+    assertThat(db.statementCache().size()).isEqualTo(1);
+
+    db.close();
+    assertThat(db.statementCache().size()).isEqualTo(0);
+    assertThat(db.statementCache().evictionCount()).isEqualTo(1);
+  }
+
   @Test public void badQueryThrows() {
     try {
       db.query("SELECT * FROM missing");
@@ -629,6 +2025,14 @@ public final class SqlBriteTest {
     }
   }
 
+  private static SqlBrite.RowFilter rowIs(final long rowId) {
+    return new SqlBrite.RowFilter() {
+      @Override public boolean affects(long firstRowId, long lastRowId) {
+        return firstRowId <= rowId && rowId <= lastRowId;
+      }
+    };
+  }
+
   private static CursorAssert assertCursor(Cursor cursor) {
     return new CursorAssert(cursor);
   }
@@ -50,7 +50,11 @@ final class TestDb extends SQLiteOpenHelper {
   long eveId;
 
   TestDb(Context context) {
-    super(context, null /* memory */, null /* cursor factory */, 1 /* version */);
+    this(context, null /* memory */);
+  }
+
+  TestDb(Context context, String name) {
+    super(context, name, null /* cursor factory */, 1 /* version */);
   }
 
   @Override public void onCreate(SQLiteDatabase db) {
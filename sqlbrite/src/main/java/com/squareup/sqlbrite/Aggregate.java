@@ -0,0 +1,122 @@
+/*
+ * Copyright (C) 2015 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.sqlbrite;
+
+/**
+ * The count, sum, minimum, and maximum of a column over the rows which match an aggregate query.
+ * Like SQLite's aggregate functions, rows whose value is null are ignored. Create an observable
+ * of them with {@link SqlBrite#createAggregateQuery}.
+ */
+public final class Aggregate {
+  private final long count;
+  private final boolean integral;
+  private final long longSum;
+  private final double sum;
+  private final double min;
+  private final double max;
+
+  /** An aggregate of integer values whose sum is exactly {@code sum}. */
+  Aggregate(long count, long sum, double min, double max) {
+    this(count, true, sum, sum, min, max);
+  }
+
+  /** An aggregate with values which are not all integers. */
+  Aggregate(long count, double sum, double min, double max) {
+    this(count, false, 0L, sum, min, max);
+  }
+
+  private Aggregate(long count, boolean integral, long longSum, double sum, double min,
+      double max) {
+    this.count = count;
+    this.integral = integral;
+    this.longSum = longSum;
+    this.sum = sum;
+    this.min = min;
+    this.max = max;
+  }
+
+  /** The number of rows with a value, like {@code COUNT(column)}. */
+  public long count() {
+    return count;
+  }
+
+  /**
+   * True if every value is an integer and their sum fits in a {@code long}, so that
+   * {@link #longSum()} is exact.
+   */
+  public boolean isIntegral() {
+    return integral;
+  }
+
+  /**
+   * The exact sum of the values, like {@code SUM(column)}.
+   *
+   * @throws IllegalStateException if the aggregate is not {@linkplain #isIntegral() integral}.
+   */
+  public long longSum() {
+    if (!integral) throw new IllegalStateException("Sum is not integral: " + sum);
+    return longSum;
+  }
+
+  /**
+   * The sum of the values, or 0.0 if there are none, like {@code TOTAL(column)}. Integral sums
+   * beyond 2<sup>53</sup> are rounded; use {@link #longSum()} for those.
+   */
+  public double sum() {
+    return sum;
+  }
+
+  /** The smallest value, or NaN if there are none. */
+  public double min() {
+    return min;
+  }
+
+  /** The largest value, or NaN if there are none. */
+  public double max() {
+    return max;
+  }
+
+  @Override public boolean equals(Object o) {
+    if (o == this) return true;
+    if (!(o instanceof Aggregate)) return false;
+    Aggregate other = (Aggregate) o;
+    return count == other.count
+        && integral == other.integral
+        && longSum == other.longSum
+        && Double.compare(sum, other.sum) == 0
+        && Double.compare(min, other.min) == 0
+        && Double.compare(max, other.max) == 0;
+  }
+
+  @Override public int hashCode() {
+    int result = (int) (count ^ (count >>> 32));
+    result = 31 * result + (integral ? 1 : 0);
+    result = 31 * result + (int) (longSum ^ (longSum >>> 32));
+    long bits = Double.doubleToLongBits(sum);
+    result = 31 * result + (int) (bits ^ (bits >>> 32));
+    bits = Double.doubleToLongBits(min);
+    result = 31 * result + (int) (bits ^ (bits >>> 32));
+    bits = Double.doubleToLongBits(max);
+    result = 31 * result + (int) (bits ^ (bits >>> 32));
+    return result;
+  }
+
+  @Override public String toString() {
+    return "Aggregate{count=" + count
+        + ", sum=" + (integral ? String.valueOf(longSum) : String.valueOf(sum))
+        + ", min=" + min + ", max=" + max + '}';
+  }
+}
@@ -0,0 +1,419 @@
+/*
+ * Copyright (C) 2015 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.sqlbrite;
+
+import android.database.Cursor;
+import android.database.SQLException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import rx.Observer;
+import rx.Scheduler;
+
+/**
+ * Maintains an {@link Aggregate} for one subscriber from the difference each write makes rather
+ * than by running the aggregate again.
+ * <p>
+ * The aggregate is seeded by SQLite's {@code COUNT}, {@code SUM}, {@code MIN}, and {@code MAX}.
+ * This registers a row filter so that updates and deletes determine the rows they change, and as
+ * a change listener aggregates those rows just before and just after each write, inside the
+ * write's transaction. The difference is applied when that transaction commits, before any other
+ * transaction can begin. Seeds run in a transaction too, so each difference applies to exactly
+ * the seeds which did not already see it. Only the aggregate itself is kept.
+ * <p>
+ * Changes whose rows are not known, such as raw SQL, replaces, or more rows than the row change
+ * limit, seed the aggregate again. So does removing the only known minimum or maximum.
+ * <p>
+ * The sum is kept exactly as a {@code long} while every value is an integer, like {@code SUM}.
+ * Once a value is not, or the sum would overflow, it continues as a {@code double} until the
+ * aggregate is seeded again from {@code TOTAL}.
+ */
+final class AggregateQuery implements TableDispatcher.ChangeListener {
+  /** Row IDs are bound in groups of at most this many, padded to a power of two. */
+  static final int MAX_BOUND_IDS = 64;
+  private static final String[] NO_ARGS = new String[0];
+
+  /** Matches every row so that writers determine the rows they change. */
+  private static final SqlBrite.RowFilter EVERY_ROW = new SqlBrite.RowFilter() {
+    @Override public boolean affects(long firstRowId, long lastRowId) {
+      return true;
+    }
+  };
+
+  private final SqlBrite db;
+  private final String table;
+  private final Set<String> tables;
+  private final String[] whereArgs;
+  /** Aggregates every matching row. */
+  private final String seedSql;
+  /** Like {@link #seedSql} using {@code TOTAL}, which cannot overflow. */
+  private final String seedTotalSql;
+  /** At index i, aggregates the matching rows among 2<sup>i</sup> bound row IDs. */
+  private final String[] rowsSql;
+  private final Observer<? super Aggregate> observer;
+  private final Scheduler scheduler;
+  // Non-null while started if a scheduler was given.
+  private volatile Scheduler.Worker worker;
+  /** True while an update is scheduled on the worker which has not started. */
+  private final AtomicBoolean scheduled = new AtomicBoolean();
+
+  // Guarded by 'this'.
+  /** True if the aggregate must be seeded again. */
+  private boolean stale = true;
+  /** False if the table was created {@code WITHOUT ROWID}, so no write's rows can be read. */
+  private boolean hasRowIds;
+  private Values current = new Values();
+  private Aggregate last;
+  /** The rows a write is changing and their values before it, between its two callbacks. */
+  private RowSet changing;
+  private Values before;
+  private Aggregate queued;
+  private Throwable queuedError;
+  /** True while a thread delivers queued events. */
+  private boolean emitting;
+
+  AggregateQuery(SqlBrite db, String table, String column, String whereClause,
+      String[] whereArgs, Observer<? super Aggregate> observer, Scheduler scheduler) {
+    this.db = db;
+    this.table = table;
+    this.tables = Collections.singleton(table);
+    this.whereArgs = whereArgs != null ? whereArgs : NO_ARGS;
+    this.observer = observer;
+    this.scheduler = scheduler;
+
+    // Without a column every row counts with a value of zero.
+    String value = column != null ? column : "0";
+    String count = "SELECT COUNT(" + value + "), ";
+    String rest = "(" + value + "), MIN(" + value + "), MAX(" + value + ") FROM " + table;
+    String where = whereClause != null && whereClause.length() > 0 ? whereClause : null;
+    seedSql = count + "SUM" + rest + (where != null ? " WHERE " + where : "");
+    seedTotalSql = count + "TOTAL" + rest + (where != null ? " WHERE " + where : "");
+    rowsSql = new String[Integer.numberOfTrailingZeros(MAX_BOUND_IDS) + 1];
+    StringBuilder ids = new StringBuilder("?");
+    for (int i = 0; i < rowsSql.length; i++) {
+      for (int id = i == 0 ? 1 : 1 << (i - 1); id < 1 << i; id++) {
+        ids.append(", ?");
+      }
+      rowsSql[i] = count + "SUM" + rest + " WHERE _rowid_ IN (" + ids + ")"
+          + (where != null ? " AND (" + where + ")" : "");
+    }
+  }
+
+  /** Start observing the table and emit the initial aggregate. */
+  void start() {
+    if (scheduler != null) {
+      worker = scheduler.createWorker();
+    }
+    // Register before seeding so no change is missed. Differences applied before the seed are
+    // replaced by it.
+    db.dispatcher.register(this, table, EVERY_ROW);
+    schedule();
+  }
+
+  void stop() {
+    db.dispatcher.unregister(this, tables);
+    Scheduler.Worker worker = this.worker;
+    if (worker != null) {
+      worker.unsubscribe();
+      this.worker = null;
+    }
+  }
+
+  @Override public void beforeChange(String table, RowSet rows) {
+    Values values = read(rows);
+    synchronized (this) {
+      changing = rows;
+      before = values;
+    }
+  }
+
+  @Override public void afterChange(String table, RowSet rows) {
+    final Values before;
+    synchronized (this) {
+      // Inserts are not shown beforehand since their rows did not exist.
+      before = changing == rows ? this.before : new Values();
+      changing = null;
+      this.before = null;
+    }
+    if (before == null) return; // Stale.
+    final Values after = read(rows);
+    if (after == null) return;
+    db.runWhenCommitted(new Runnable() {
+      @Override public void run() {
+        apply(before, after);
+      }
+    });
+  }
+
+  @Override public void onTrigger(Map<String, RowSet> changes) {
+    if (!changes.get(table).isExact()) {
+      synchronized (this) {
+        stale = true;
+      }
+    }
+    // Exact changes were already applied when they committed.
+    schedule();
+  }
+
+  private void schedule() {
+    if (scheduler == null) {
+      update();
+      return;
+    }
+    Scheduler.Worker worker = this.worker;
+    if (worker == null || !scheduled.compareAndSet(false, true)) {
+      // Stopped, or the pending update has not started yet and will see this change.
+      return;
+    }
+    worker.schedule(new Runnable() {
+      @Override public void run() {
+        scheduled.set(false);
+        update();
+      }
+    });
+  }
+
+  private void update() {
+    if (observer.isUnsubscribed()) return;
+    boolean seed;
+    synchronized (this) {
+      seed = stale;
+      stale = false;
+    }
+    if (seed) {
+      try {
+        seed();
+      } catch (RuntimeException e) {
+        // Seed again on the next change.
+        synchronized (this) {
+          stale = true;
+        }
+        emit(null, e);
+        return;
+      }
+    }
+
+    Aggregate aggregate = null;
+    synchronized (this) {
+      // A stale aggregate may be missing a change. The update which seeds it emits instead.
+      if (!stale) {
+        Aggregate latest = current.toAggregate();
+        if (!latest.equals(last)) {
+          last = latest;
+          aggregate = latest;
+        }
+      }
+    }
+    emit(aggregate, null);
+  }
+
+  /** Run the aggregate over every matching row inside a transaction. */
+  private void seed() {
+    boolean hasRowIds = db.hasRowId(table);
+    db.beginTransaction();
+    try {
+      Cursor cursor;
+      try {
+        cursor = db.read(seedSql, whereArgs);
+      } catch (SQLException e) {
+        // SUM fails if the integers overflow. TOTAL does not.
+        cursor = db.read(seedTotalSql, whereArgs);
+      }
+      Values values = new Values();
+      try {
+        cursor.moveToNext();
+        values.add(cursor);
+      } finally {
+        cursor.close();
+      }
+      synchronized (this) {
+        current = values;
+        this.hasRowIds = hasRowIds;
+      }
+      db.setTransactionSuccessful();
+    } finally {
+      db.endTransaction();
+    }
+  }
+
+  /**
+   * Aggregate the matching rows among {@code rows} on the writer's connection, or return null and
+   * mark the aggregate stale if that is not possible.
+   */
+  private Values read(RowSet rows) {
+    synchronized (this) {
+      if (stale || !hasRowIds) {
+        stale = true;
+        return null;
+      }
+    }
+    Values values = new Values();
+    QueryArgs args = new QueryArgs(MAX_BOUND_IDS + whereArgs.length);
+    try {
+      for (int start = 0, size = rows.size(); start < size; start += MAX_BOUND_IDS) {
+        int count = Math.min(MAX_BOUND_IDS, size - start);
+        int arity = Integer.highestOneBit(count);
+        if (arity < count) arity <<= 1;
+        args.clear();
+        for (int i = 0; i < arity; i++) {
+          // Repeat the last ID as padding, which IN ignores.
+          args.addLong(rows.get(start + Math.min(i, count - 1)));
+        }
+        for (String arg : whereArgs) {
+          args.addString(arg);
+        }
+        Cursor cursor = db.read(rowsSql[Integer.numberOfTrailingZeros(arity)], NO_ARGS, args);
+        try {
+          cursor.moveToNext();
+          values.add(cursor);
+        } finally {
+          cursor.close();
+        }
+      }
+    } catch (RuntimeException e) {
+      // Seed again rather than fail the write.
+      synchronized (this) {
+        stale = true;
+      }
+      return null;
+    }
+    return values;
+  }
+
+  /** Replace the values of rows which a committed write changed from {@code before}. */
+  private synchronized void apply(Values before, Values after) {
+    Values current = this.current;
+    long remaining = current.count - before.count;
+    if (remaining == 0L) {
+      current.min = Double.NaN;
+      current.max = Double.NaN;
+    } else if (current.min != current.max
+        && (before.min <= current.min && !(after.min <= current.min)
+        || before.max >= current.max && !(after.max >= current.max))) {
+      // Removed the minimum or maximum and the next one is unknown.
+      stale = true;
+      return;
+    }
+    if (after.count != 0L) {
+      if (!(after.min >= current.min)) current.min = after.min; // Also replaces NaN.
+      if (!(after.max <= current.max)) current.max = after.max;
+    }
+    current.count = remaining + after.count;
+
+    if (current.integral && before.integral && after.integral) {
+      long difference = current.integerSum - before.integerSum;
+      long sum = difference + after.integerSum;
+      if (((current.integerSum ^ before.integerSum) & (current.integerSum ^ difference)) >= 0
+          && ((difference ^ sum) & (after.integerSum ^ sum)) >= 0) {
+        current.integerSum = sum;
+        return;
+      }
+    }
+    current.sum = current.total() - before.total() + after.total();
+    current.integral = false;
+  }
+
+  private void emit(Aggregate aggregate, Throwable error) {
+    synchronized (this) {
+      if (aggregate != null) queued = aggregate;
+      if (error != null) queuedError = error;
+      if (emitting) return;
+      emitting = true;
+    }
+    // One thread at a time delivers the latest events without holding the lock, so that a slow
+    // observer does not block writers and one which writes cannot deadlock.
+    boolean drained = false;
+    try {
+      while (true) {
+        Aggregate next = null;
+        Throwable nextError;
+        synchronized (this) {
+          nextError = queuedError;
+          queuedError = null;
+          if (nextError == null) {
+            next = queued;
+            queued = null;
+            if (next == null) {
+              emitting = false;
+              drained = true;
+              return;
+            }
+          }
+        }
+        if (nextError != null) {
+          observer.onError(nextError);
+        } else {
+          observer.onNext(next);
+        }
+      }
+    } finally {
+      if (!drained) {
+        synchronized (this) {
+          emitting = false;
+        }
+      }
+    }
+  }
+
+  /** The count, sum, minimum, and maximum of some rows. */
+  private static final class Values {
+    long count;
+    /** True while {@link #integerSum} holds the sum. */
+    boolean integral = true;
+    long integerSum;
+    double sum;
+    double min = Double.NaN;
+    double max = Double.NaN;
+
+    /** Add the {@code COUNT}, {@code SUM}, {@code MIN}, and {@code MAX} of {@code cursor}. */
+    void add(Cursor cursor) {
+      long count = cursor.getLong(0);
+      if (count == 0L) return;
+      if (integral && cursor.getType(1) == Cursor.FIELD_TYPE_INTEGER) {
+        long value = cursor.getLong(1);
+        long result = integerSum + value;
+        if (((integerSum ^ result) & (value ^ result)) >= 0) {
+          integerSum = result;
+        } else {
+          integral = false;
+          sum = (double) integerSum + value;
+        }
+      } else {
+        if (integral) {
+          integral = false;
+          sum = integerSum;
+        }
+        sum += cursor.getDouble(1);
+      }
+      this.count += count;
+      double min = cursor.getDouble(2);
+      double max = cursor.getDouble(3);
+      if (!(min >= this.min)) this.min = min; // Also replaces NaN.
+      if (!(max <= this.max)) this.max = max;
+    }
+
+    double total() {
+      return integral ? integerSum : sum;
+    }
+
+    Aggregate toAggregate() {
+      return integral
+          ? new Aggregate(count, integerSum, min, max)
+          : new Aggregate(count, sum, min, max);
+    }
+  }
+}
@@ -0,0 +1,206 @@
+/*
+ * Copyright (C) 2015 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.sqlbrite;
+
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteCursor;
+import android.database.sqlite.SQLiteCursorDriver;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteQuery;
+import android.database.sqlite.SQLiteStatement;
+import android.database.sqlite.SQLiteTransactionListener;
+import android.util.Log;
+
+import static android.database.sqlite.SQLiteDatabase.OPEN_READONLY;
+
+/** A {@link Driver} over the databases of an Android {@link SQLiteOpenHelper}. */
+final class AndroidDriver implements Driver {
+  private final SQLiteOpenHelper helper;
+
+  AndroidDriver(SQLiteOpenHelper helper) {
+    this.helper = helper;
+  }
+
+  @Override public Database openReadable() {
+    return new AndroidDatabase(helper.getReadableDatabase());
+  }
+
+  @Override public Database openWritable() {
+    return new AndroidDatabase(helper.getWritableDatabase());
+  }
+
+  @Override public Database openReadOnly() {
+    String path = helper.getWritableDatabase().getPath();
+    return new AndroidDatabase(SQLiteDatabase.openDatabase(path, null, OPEN_READONLY));
+  }
+
+  @Override public SqlBrite.Logger defaultLogger() {
+    return new SqlBrite.Logger() {
+      @Override public void log(String message) {
+        Log.v("SqlBrite", message);
+      }
+    };
+  }
+
+  @Override public void close() {
+    helper.close();
+  }
+
+  private static final class AndroidDatabase implements Database {
+    private final SQLiteDatabase db;
+
+    AndroidDatabase(SQLiteDatabase db) {
+      this.db = db;
+    }
+
+    @Override public Cursor rawQuery(String sql, String[] args) {
+      return db.rawQuery(sql, args);
+    }
+
+    @Override public Cursor rawQueryTyped(String sql, QueryArgs args) {
+      return db.rawQueryWithFactory(new BindingCursorFactory(args), sql, null, null);
+    }
+
+    @Override public PreparedQuery prepareQuery(String sql) {
+      return new AndroidPreparedQuery(this, sql);
+    }
+
+    @Override public Statement compileStatement(String sql) {
+      return new AndroidStatement(db.compileStatement(sql));
+    }
+
+    @Override public void beginTransactionWithListener(SQLiteTransactionListener listener) {
+      db.beginTransactionWithListener(listener);
+    }
+
+    @Override public void setTransactionSuccessful() {
+      db.setTransactionSuccessful();
+    }
+
+    @Override public void endTransaction() {
+      db.endTransaction();
+    }
+
+    @Override public boolean yieldIfContendedSafely(long sleepMillis) {
+      return db.yieldIfContendedSafely(sleepMillis);
+    }
+
+    @Override public boolean enableWriteAheadLogging() {
+      return db.enableWriteAheadLogging();
+    }
+
+    @Override public void close() {
+      db.close();
+    }
+
+    @Override public String toString() {
+      return db.getPath();
+    }
+  }
+
+  /**
+   * Runs one query through {@code SQLiteDatabase}, which has no public way to hold a compiled
+   * query. Each connection instead keeps its compiled statements in a cache keyed by SQL, so runs
+   * after the first re-bind the cached statement rather than compiling it again.
+   */
+  private static final class AndroidPreparedQuery implements PreparedQuery {
+    private final AndroidDatabase database;
+    private final String sql;
+
+    AndroidPreparedQuery(AndroidDatabase database, String sql) {
+      this.database = database;
+      this.sql = sql;
+    }
+
+    @Override public Cursor run(String[] args, QueryArgs typedArgs) {
+      return typedArgs != null
+          ? database.rawQueryTyped(sql, typedArgs)
+          : database.rawQuery(sql, args);
+    }
+
+    @Override public void close() {
+    }
+  }
+
+  /**
+   * Binds typed arguments to the compiled query before its cursor is created, which is the only
+   * point at which {@code SQLiteDatabase} exposes the program of a raw query.
+   */
+  private static final class BindingCursorFactory implements SQLiteDatabase.CursorFactory {
+    private final QueryArgs args;
+
+    BindingCursorFactory(QueryArgs args) {
+      this.args = args;
+    }
+
+    @Override public Cursor newCursor(SQLiteDatabase db, SQLiteCursorDriver driver,
+        String editTable, SQLiteQuery query) {
+      for (int i = 0, size = args.size(); i < size; i++) {
+        int index = i + 1;
+        switch (args.type(i)) {
+          case Cursor.FIELD_TYPE_NULL:
+            query.bindNull(index);
+            break;
+          case Cursor.FIELD_TYPE_INTEGER:
+            query.bindLong(index, args.getLong(i));
+            break;
+          case Cursor.FIELD_TYPE_FLOAT:
+            query.bindDouble(index, args.getDouble(i));
+            break;
+          case Cursor.FIELD_TYPE_STRING:
+            query.bindString(index, args.getString(i));
+            break;
+          case Cursor.FIELD_TYPE_BLOB:
+            query.bindBlob(index, args.getBlob(i));
+            break;
+          default:
+            throw new AssertionError();
+        }
+      }
+      return new SQLiteCursor(driver, editTable, query);
+    }
+  }
+
+  private static final class AndroidStatement implements Statement {
+    private final SQLiteStatement statement;
+
+    AndroidStatement(SQLiteStatement statement) {
+      this.statement = statement;
+    }
+
+    @Override public void bind(int index, Object value) {
+      DatabaseUtils.bindObjectToProgram(statement, index, value);
+    }
+
+    @Override public void clearBindings() {
+      statement.clearBindings();
+    }
+
+    @Override public long executeInsert() {
+      return statement.executeInsert();
+    }
+
+    @Override public int executeUpdateDelete() {
+      return statement.executeUpdateDelete();
+    }
+
+    @Override public void close() {
+      statement.close();
+    }
+  }
+}
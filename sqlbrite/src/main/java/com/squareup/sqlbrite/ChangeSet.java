@@ -0,0 +1,374 @@
+/*
+ * Copyright (C) 2015 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.sqlbrite;
+
+import android.database.Cursor;
+import android.support.annotation.NonNull;
+import java.util.Arrays;
+import rx.Observer;
+import rx.Subscription;
+import rx.functions.Function;
+
+import static com.squareup.sqlbrite.SqlBrite.Query;
+
+/**
+ * The difference between two consecutive results of an observable query, along with a cursor
+ * over the newer result. Rows are matched between results by a unique, stable ID column.
+ * <p>
+ * Positions of {@linkplain #removed() removed} rows and the {@linkplain #movedFrom() origin of
+ * moved rows} refer to the previous result. All other positions refer to the new result. The
+ * first change set of a subscription reports every row as inserted.
+ * <p>
+ * Create change sets by lifting a query observable with {@link #diffById(String)}:
+ * <pre>{@code
+ * db.createQuery("users", "SELECT _id, name FROM users ORDER BY name")
+ *     .lift(ChangeSet.diffById("_id"))
+ *     .subscribe(new Consumer<ChangeSet>() {
+ *       @Override public void accept(ChangeSet changes) {
+ *         adapter.apply(changes);
+ *       }
+ *     });
+ * }</pre>
+ */
+public final class ChangeSet {
+  private static final int[] NONE = new int[0];
+  private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+  private static final long FNV_PRIME = 0x100000001b3L;
+
+  /**
+   * An operator for {@link rx.Observable#lift} which runs each {@link Query} and emits its
+   * {@link ChangeSet} against the previous result. Only the IDs and a 64-bit content hash of each
+   * row of the previous result are retained between runs.
+   *
+   * @param idColumn the name of a column which uniquely identifies each row of the result.
+   */
+  public static Function<Observer<? super ChangeSet>, Observer<? super Query>> diffById(
+      @NonNull final String idColumn) {
+    if (idColumn == null) throw new NullPointerException("idColumn == null");
+    return new Function<Observer<? super ChangeSet>, Observer<? super Query>>() {
+      @Override public Observer<? super Query> apply(Observer<? super ChangeSet> downstream) {
+        return new DiffObserver(downstream, idColumn);
+      }
+    };
+  }
+
+  private final Cursor cursor;
+  private final int[] removed;
+  private final int[] inserted;
+  private final int[] changed;
+  private final int[] movedFrom;
+  private final int[] movedTo;
+
+  ChangeSet(Cursor cursor, int[] removed, int[] inserted, int[] changed, int[] movedFrom,
+      int[] movedTo) {
+    this.cursor = cursor;
+    this.removed = removed;
+    this.inserted = inserted;
+    this.changed = changed;
+    this.movedFrom = movedFrom;
+    this.movedTo = movedTo;
+  }
+
+  /**
+   * The new result, positioned before its first row. The caller is responsible for closing it. The
+   * cursor of the latest change set is also closed when the subscription is unsubscribed.
+   */
+  public Cursor cursor() {
+    return cursor;
+  }
+
+  /** Ascending positions in the previous result of rows which are no longer present. */
+  public int[] removed() {
+    return removed;
+  }
+
+  /** Ascending positions in the new result of rows which were not previously present. */
+  public int[] inserted() {
+    return inserted;
+  }
+
+  /** Ascending positions in the new result of rows whose column values changed. */
+  public int[] changed() {
+    return changed;
+  }
+
+  /**
+   * Positions in the previous result of rows which changed their order relative to the other
+   * retained rows. Parallel to {@link #movedTo()}. The fewest possible rows are reported.
+   */
+  public int[] movedFrom() {
+    return movedFrom;
+  }
+
+  /** The new positions of the rows reported by {@link #movedFrom()}. */
+  public int[] movedTo() {
+    return movedTo;
+  }
+
+  /** True if the new result holds the same rows in the same order with the same values. */
+  public boolean isEmpty() {
+    return removed.length == 0 && inserted.length == 0 && changed.length == 0
+        && movedFrom.length == 0;
+  }
+
+  @Override public String toString() {
+    return "ChangeSet{removed=" + Arrays.toString(removed)
+        + ", inserted=" + Arrays.toString(inserted)
+        + ", changed=" + Arrays.toString(changed)
+        + ", movedFrom=" + Arrays.toString(movedFrom)
+        + ", movedTo=" + Arrays.toString(movedTo)
+        + '}';
+  }
+
+  /**
+   * Compare the previous and the new result. {@code oldIndex} locates the previous rows by ID and
+   * the hash and ID arrays hold each row's values in result order.
+   */
+  static ChangeSet diff(Cursor cursor, IdIndex oldIndex, long[] oldHashes, long[] newIds,
+      long[] newHashes) {
+    // Walk the new result once, sorting rows into inserted or retained.
+    int[] inserted = new int[newIds.length];
+    int insertedCount = 0;
+    int[] changed = new int[newIds.length];
+    int changedCount = 0;
+    int[] retainedNew = new int[newIds.length];
+    int[] retainedOld = new int[newIds.length];
+    int retainedCount = 0;
+    boolean[] oldRetained = new boolean[oldHashes.length];
+    for (int i = 0; i < newIds.length; i++) {
+      int oldPosition = oldIndex.get(newIds[i]);
+      if (oldPosition == -1) {
+        inserted[insertedCount++] = i;
+        continue;
+      }
+      oldRetained[oldPosition] = true;
+      retainedNew[retainedCount] = i;
+      retainedOld[retainedCount] = oldPosition;
+      retainedCount++;
+      if (oldHashes[oldPosition] != newHashes[i]) {
+        changed[changedCount++] = i;
+      }
+    }
+
+    int removedCount = oldHashes.length - retainedCount;
+    int[] removed = removedCount == 0 ? NONE : new int[removedCount];
+    for (int i = 0, r = 0; r < removedCount; i++) {
+      if (!oldRetained[i]) removed[r++] = i;
+    }
+
+    // Retained rows which are part of the longest run kept in their old relative order stay put.
+    // Every other retained row moved.
+    boolean[] stationary = longestIncreasingSubsequence(retainedOld, retainedCount);
+    int movedCount = 0;
+    for (int i = 0; i < retainedCount; i++) {
+      if (!stationary[i]) movedCount++;
+    }
+    int[] movedFrom = movedCount == 0 ? NONE : new int[movedCount];
+    int[] movedTo = movedCount == 0 ? NONE : new int[movedCount];
+    for (int i = 0, m = 0; m < movedCount; i++) {
+      if (!stationary[i]) {
+        movedFrom[m] = retainedOld[i];
+        movedTo[m] = retainedNew[i];
+        m++;
+      }
+    }
+
+    return new ChangeSet(cursor, removed, trim(inserted, insertedCount),
+        trim(changed, changedCount), movedFrom, movedTo);
+  }
+
+  /** Marks the members of one longest strictly increasing subsequence of {@code values}. */
+  private static boolean[] longestIncreasingSubsequence(int[] values, int count) {
+    boolean[] members = new boolean[count];
+    if (count == 0) return members;
+    // tails[k] is the index of the smallest tail of an increasing run of length k + 1.
+    int[] tails = new int[count];
+    int[] previous = new int[count];
+    int length = 0;
+    for (int i = 0; i < count; i++) {
+      int low = 0;
+      int high = length;
+      while (low < high) {
+        int mid = (low + high) >>> 1;
+        if (values[tails[mid]] < values[i]) {
+          low = mid + 1;
+        } else {
+          high = mid;
+        }
+      }
+      previous[i] = low > 0 ? tails[low - 1] : -1;
+      tails[low] = i;
+      if (low == length) length++;
+    }
+    for (int i = tails[length - 1]; i != -1; i = previous[i]) {
+      members[i] = true;
+    }
+    return members;
+  }
+
+  private static int[] trim(int[] positions, int count) {
+    if (count == 0) return NONE;
+    return count == positions.length ? positions : Arrays.copyOf(positions, count);
+  }
+
+  /** A 64-bit hash of every column of the cursor's current row. */
+  static long hashRow(Cursor cursor) {
+    long hash = FNV_OFFSET;
+    for (int column = 0, count = cursor.getColumnCount(); column < count; column++) {
+      int type = cursor.getType(column);
+      hash = (hash ^ type) * FNV_PRIME;
+      switch (type) {
+        case Cursor.FIELD_TYPE_NULL:
+          break;
+        case Cursor.FIELD_TYPE_INTEGER:
+          hash = (hash ^ cursor.getLong(column)) * FNV_PRIME;
+          break;
+        case Cursor.FIELD_TYPE_FLOAT:
+          hash = (hash ^ Double.doubleToLongBits(cursor.getDouble(column))) * FNV_PRIME;
+          break;
+        case Cursor.FIELD_TYPE_STRING:
+          String string = cursor.getString(column);
+          for (int i = 0, length = string.length(); i < length; i++) {
+            hash = (hash ^ string.charAt(i)) * FNV_PRIME;
+          }
+          // Separate adjacent strings so ("ab", "c") and ("a", "bc") differ.
+          hash = (hash ^ string.length()) * FNV_PRIME;
+          break;
+        case Cursor.FIELD_TYPE_BLOB:
+          byte[] blob = cursor.getBlob(column);
+          for (byte b : blob) {
+            hash = (hash ^ (b & 0xff)) * FNV_PRIME;
+          }
+          hash = (hash ^ blob.length) * FNV_PRIME;
+          break;
+        default:
+          throw new AssertionError("Unknown column type: " + type);
+      }
+    }
+    return hash;
+  }
+
+  /** Maps IDs to their position using open addressing over primitive arrays. */
+  static final class IdIndex {
+    static final IdIndex EMPTY = new IdIndex(new long[0]);
+
+    private final long[] keys;
+    private final int[] positions;
+    private final int mask;
+
+    IdIndex(long[] ids) {
+      int capacity = Integer.highestOneBit(Math.max(ids.length * 2, 2) - 1) << 1;
+      keys = new long[capacity];
+      positions = new int[capacity];
+      mask = capacity - 1;
+      Arrays.fill(positions, -1);
+      for (int i = 0; i < ids.length; i++) {
+        int slot = slot(ids[i]);
+        while (positions[slot] != -1) {
+          if (keys[slot] == ids[i]) {
+            throw new IllegalStateException("Duplicate ID " + ids[i] + " at rows "
+                + positions[slot] + " and " + i);
+          }
+          slot = (slot + 1) & mask;
+        }
+        keys[slot] = ids[i];
+        positions[slot] = i;
+      }
+    }
+
+    /** The position of {@code id} or -1. */
+    int get(long id) {
+      for (int slot = slot(id); positions[slot] != -1; slot = (slot + 1) & mask) {
+        if (keys[slot] == id) return positions[slot];
+      }
+      return -1;
+    }
+
+    private int slot(long id) {
+      long hash = id * 0x9e3779b97f4a7c15L;
+      return (int) (hash ^ (hash >>> 32)) & mask;
+    }
+  }
+
+  /** Runs each query, remembers the compact form of its result, and emits the difference. */
+  private static final class DiffObserver extends Observer<Query> {
+    private final Observer<? super ChangeSet> downstream;
+    private final String idColumn;
+    // Guarded by 'this'.
+    private IdIndex index = IdIndex.EMPTY;
+    private long[] hashes = new long[0];
+    /** The cursor of the latest change set, closed on unsubscribe. */
+    private Cursor last;
+
+    DiffObserver(Observer<? super ChangeSet> downstream, String idColumn) {
+      this.downstream = downstream;
+      this.idColumn = idColumn;
+      _subscription = downstream;
+      downstream.add(new Subscription(new Runnable() {
+        @Override public void run() {
+          release();
+        }
+      }));
+    }
+
+    @Override public void onNext(Query query) {
+      ChangeSet changes;
+      synchronized (this) {
+        if (downstream.isUnsubscribed()) return;
+        Cursor cursor = query.run();
+        try {
+          int idIndex = cursor.getColumnIndexOrThrow(idColumn);
+          int count = cursor.getCount();
+          long[] newIds = new long[count];
+          long[] newHashes = new long[count];
+          for (int i = 0; cursor.moveToNext(); i++) {
+            newIds[i] = cursor.getLong(idIndex);
+            newHashes[i] = hashRow(cursor);
+          }
+          cursor.moveToPosition(-1);
+          IdIndex newIndex = new IdIndex(newIds);
+          changes = diff(cursor, index, hashes, newIds, newHashes);
+          index = newIndex;
+          hashes = newHashes;
+          last = cursor;
+        } catch (RuntimeException e) {
+          cursor.close();
+          downstream.onError(e);
+          return;
+        }
+      }
+      downstream.onNext(changes);
+    }
+
+    /** Close the latest cursor and drop the previous result. */
+    synchronized void release() {
+      if (last != null) {
+        last.close();
+        last = null;
+      }
+      index = IdIndex.EMPTY;
+      hashes = new long[0];
+    }
+
+    @Override public void onError(Throwable e) {
+      downstream.onError(e);
+    }
+
+    @Override public void onCompleted() {
+      downstream.onCompleted();
+    }
+  }
+}
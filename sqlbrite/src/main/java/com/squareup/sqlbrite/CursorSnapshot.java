@@ -0,0 +1,405 @@
+/*
+ * Copyright (C) 2015 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.sqlbrite;
+
+import android.database.AbstractCursor;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteException;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * An immutable copy of a query's result held in plain Java arrays. Any number of independent
+ * cursors can be opened over one snapshot. It is released once the owner has
+ * {@linkplain #release() released} it and every cursor has been closed.
+ * <p>
+ * Cells are stored in row-major order across three parallel arrays: the type of each cell,
+ * integers and the bits of floats, and strings and blobs. Reading a value neither allocates nor
+ * crosses into native code.
+ * <p>
+ * Each snapshot has a 64-bit {@linkplain #fingerprint() fingerprint} of its column names and cells,
+ * computed as cells are added. Snapshots with equal contents have equal fingerprints; snapshots
+ * with different contents almost certainly do not.
+ */
+final class CursorSnapshot {
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+  private static final long FINGERPRINT_SEED = 0x9e3779b97f4a7c15L;
+
+  /** Copy every row of {@code cursor} into a new snapshot and close it. */
+  static CursorSnapshot create(Cursor cursor) {
+    try {
+      Builder builder = new Builder(cursor.getColumnNames(), cursor.getCount());
+      builder.addRows(cursor);
+      return builder.build();
+    } finally {
+      cursor.close();
+    }
+  }
+
+  private final String[] columnNames;
+  private final int count;
+  private final byte[] types;
+  private final long[] numbers;
+  private final Object[] objects;
+  private final long fingerprint;
+  // Guarded by 'this'. One for the owner plus one for each open cursor.
+  private int references = 1;
+
+  private CursorSnapshot(String[] columnNames, int count, byte[] types, long[] numbers,
+      Object[] objects, long fingerprint) {
+    this.columnNames = columnNames;
+    this.count = count;
+    this.types = types;
+    this.numbers = numbers;
+    this.objects = objects;
+    this.fingerprint = fingerprint;
+  }
+
+  /** The number of rows. */
+  int count() {
+    return count;
+  }
+
+  /** A hash of the column names and every cell in order. */
+  long fingerprint() {
+    return fingerprint;
+  }
+
+  /** Open a new cursor positioned before the first row. */
+  Cursor newCursor() {
+    synchronized (this) {
+      if (references == 0) throw new IllegalStateException("Snapshot already released.");
+      references++;
+    }
+    return new SnapshotCursor();
+  }
+
+  /** Release the owner's reference. */
+  synchronized void release() {
+    if (references == 0) throw new IllegalStateException("Snapshot already released.");
+    references--;
+  }
+
+  /** Accumulates cells in row order. Used to snapshot results which are not cursors. */
+  static final class Builder {
+    private final String[] columnNames;
+    private byte[] types;
+    private long[] numbers;
+    private Object[] objects;
+    private int size;
+    private long byteCount;
+    private long fingerprint = FINGERPRINT_SEED;
+
+    /** @param rows the expected number of rows. More may be added. */
+    Builder(String[] columnNames, int rows) {
+      this.columnNames = columnNames;
+      int capacity = Math.max(rows * columnNames.length, 16);
+      types = new byte[capacity];
+      numbers = new long[capacity];
+      objects = new Object[capacity];
+      for (String columnName : columnNames) {
+        mixString(columnName);
+      }
+    }
+
+    /** Start with the rows of {@code snapshot}, expecting {@code rows} more. */
+    Builder(CursorSnapshot snapshot, int rows) {
+      this(snapshot.columnNames, snapshot.count + rows);
+      size = snapshot.count * columnNames.length;
+      System.arraycopy(snapshot.types, 0, types, 0, size);
+      System.arraycopy(snapshot.numbers, 0, numbers, 0, size);
+      System.arraycopy(snapshot.objects, 0, objects, 0, size);
+      fingerprint = snapshot.fingerprint;
+    }
+
+    void addNull() {
+      add(Cursor.FIELD_TYPE_NULL, 0L, null);
+    }
+
+    void addLong(long value) {
+      add(Cursor.FIELD_TYPE_INTEGER, value, null);
+    }
+
+    void addDouble(double value) {
+      add(Cursor.FIELD_TYPE_FLOAT, Double.doubleToRawLongBits(value), null);
+    }
+
+    void addString(String value) {
+      if (value == null) {
+        addNull();
+      } else {
+        add(Cursor.FIELD_TYPE_STRING, 0L, value);
+        byteCount += 2L * value.length();
+      }
+    }
+
+    void addBlob(byte[] value) {
+      if (value == null) {
+        addNull();
+      } else {
+        add(Cursor.FIELD_TYPE_BLOB, 0L, value);
+        byteCount += value.length;
+      }
+    }
+
+    /** Add the remaining rows of {@code cursor}, which must have the same columns. */
+    void addRows(Cursor cursor) {
+      while (cursor.moveToNext()) {
+        addRow(cursor);
+      }
+    }
+
+    /** Add the current row of {@code cursor}, which must have the same columns. */
+    void addRow(Cursor cursor) {
+      for (int column = 0, columns = columnNames.length; column < columns; column++) {
+        switch (cursor.getType(column)) {
+          case Cursor.FIELD_TYPE_NULL:
+            addNull();
+            break;
+          case Cursor.FIELD_TYPE_INTEGER:
+            addLong(cursor.getLong(column));
+            break;
+          case Cursor.FIELD_TYPE_FLOAT:
+            addDouble(cursor.getDouble(column));
+            break;
+          case Cursor.FIELD_TYPE_STRING:
+            addString(cursor.getString(column));
+            break;
+          case Cursor.FIELD_TYPE_BLOB:
+            addBlob(cursor.getBlob(column));
+            break;
+          default:
+            throw new AssertionError();
+        }
+      }
+    }
+
+    /**
+     * An estimate of the heap used by the values added so far: nine bytes per cell plus two bytes
+     * per string character and one per blob byte.
+     */
+    long byteCount() {
+      return byteCount;
+    }
+
+    private void add(int type, long number, Object object) {
+      if (size == types.length) {
+        int capacity = size * 2;
+        types = Arrays.copyOf(types, capacity);
+        numbers = Arrays.copyOf(numbers, capacity);
+        objects = Arrays.copyOf(objects, capacity);
+      }
+      types[size] = (byte) type;
+      numbers[size] = number;
+      objects[size] = object;
+      size++;
+      byteCount += 9;
+
+      mix(type);
+      switch (type) {
+        case Cursor.FIELD_TYPE_INTEGER:
+        case Cursor.FIELD_TYPE_FLOAT:
+          mix(number);
+          break;
+        case Cursor.FIELD_TYPE_STRING:
+          mixString((String) object);
+          break;
+        case Cursor.FIELD_TYPE_BLOB:
+          mixBlob((byte[]) object);
+          break;
+      }
+    }
+
+    /** Mix the length and then the characters of {@code value}, four to a word. */
+    private void mixString(String value) {
+      int length = value.length();
+      mix(length);
+      long word = 0L;
+      for (int i = 0; i < length; i++) {
+        word = word << 16 | value.charAt(i);
+        if ((i & 3) == 3) {
+          mix(word);
+          word = 0L;
+        }
+      }
+      if ((length & 3) != 0) mix(word);
+    }
+
+    /** Mix the length and then the bytes of {@code value}, eight to a word. */
+    private void mixBlob(byte[] value) {
+      int length = value.length;
+      mix(length);
+      long word = 0L;
+      for (int i = 0; i < length; i++) {
+        word = word << 8 | (value[i] & 0xff);
+        if ((i & 7) == 7) {
+          mix(word);
+          word = 0L;
+        }
+      }
+      if ((length & 7) != 0) mix(word);
+    }
+
+    /** One round of MurmurHash3's 64-bit mixing. */
+    private void mix(long value) {
+      value *= 0x87c37b91114253d5L;
+      value = Long.rotateLeft(value, 31);
+      value *= 0x4cf5ad432745937fL;
+      fingerprint ^= value;
+      fingerprint = Long.rotateLeft(fingerprint, 27) * 5 + 0x52dce729;
+    }
+
+    CursorSnapshot build() {
+      int columns = columnNames.length;
+      if (columns == 0) {
+        return new CursorSnapshot(columnNames, 0, types, numbers, objects, fingerprint);
+      }
+      if (size % columns != 0) {
+        throw new IllegalStateException("Incomplete row: " + size % columns + " of " + columns);
+      }
+      return new CursorSnapshot(columnNames, size / columns, types, numbers, objects, fingerprint);
+    }
+  }
+
+  /**
+   * Reads cells with the same conversions as Android's {@code CursorWindow}: numbers convert to
+   * strings and back, null reads as zero, and blobs only read as blobs.
+   */
+  private final class SnapshotCursor extends AbstractCursor {
+    private final int columns = columnNames.length;
+
+    @Override public int getCount() {
+      return count;
+    }
+
+    @Override public String[] getColumnNames() {
+      return columnNames;
+    }
+
+    private int cell(int column) {
+      checkPosition();
+      if (column < 0 || column >= columns) {
+        throw new IllegalStateException("Invalid column " + column);
+      }
+      return mPos * columns + column;
+    }
+
+    @Override public int getType(int column) {
+      return types[cell(column)];
+    }
+
+    @Override public String getString(int column) {
+      int cell = cell(column);
+      switch (types[cell]) {
+        case Cursor.FIELD_TYPE_NULL:
+          return null;
+        case Cursor.FIELD_TYPE_INTEGER:
+          return Long.toString(numbers[cell]);
+        case Cursor.FIELD_TYPE_FLOAT:
+          return Double.toString(Double.longBitsToDouble(numbers[cell]));
+        case Cursor.FIELD_TYPE_STRING:
+          return (String) objects[cell];
+        default:
+          throw new SQLiteException("Unable to convert BLOB to string");
+      }
+    }
+
+    @Override public byte[] getBlob(int column) {
+      int cell = cell(column);
+      switch (types[cell]) {
+        case Cursor.FIELD_TYPE_NULL:
+          return null;
+        case Cursor.FIELD_TYPE_STRING:
+          return ((String) objects[cell]).getBytes(UTF_8);
+        case Cursor.FIELD_TYPE_BLOB:
+          return (byte[]) objects[cell];
+        default:
+          throw new SQLiteException("Unable to convert a number to a BLOB");
+      }
+    }
+
+    @Override public long getLong(int column) {
+      int cell = cell(column);
+      switch (types[cell]) {
+        case Cursor.FIELD_TYPE_NULL:
+          return 0L;
+        case Cursor.FIELD_TYPE_INTEGER:
+          return numbers[cell];
+        case Cursor.FIELD_TYPE_FLOAT:
+          return (long) Double.longBitsToDouble(numbers[cell]);
+        case Cursor.FIELD_TYPE_STRING:
+          return parseLong((String) objects[cell]);
+        default:
+          throw new SQLiteException("Unable to convert BLOB to long");
+      }
+    }
+
+    @Override public double getDouble(int column) {
+      int cell = cell(column);
+      switch (types[cell]) {
+        case Cursor.FIELD_TYPE_NULL:
+          return 0.0;
+        case Cursor.FIELD_TYPE_INTEGER:
+          return numbers[cell];
+        case Cursor.FIELD_TYPE_FLOAT:
+          return Double.longBitsToDouble(numbers[cell]);
+        case Cursor.FIELD_TYPE_STRING:
+          return parseDouble((String) objects[cell]);
+        default:
+          throw new SQLiteException("Unable to convert BLOB to double");
+      }
+    }
+
+    @Override public short getShort(int column) {
+      return (short) getLong(column);
+    }
+
+    @Override public int getInt(int column) {
+      return (int) getLong(column);
+    }
+
+    @Override public float getFloat(int column) {
+      return (float) getDouble(column);
+    }
+
+    @Override public boolean isNull(int column) {
+      return types[cell(column)] == Cursor.FIELD_TYPE_NULL;
+    }
+
+    @Override public void close() {
+      if (isClosed()) return;
+      super.close();
+      release();
+    }
+  }
+
+  /** Like SQLite, strings which are not numbers read as zero. */
+  private static long parseLong(String value) {
+    try {
+      return Long.parseLong(value.trim());
+    } catch (NumberFormatException e) {
+      return (long) parseDouble(value);
+    }
+  }
+
+  private static double parseDouble(String value) {
+    try {
+      return Double.parseDouble(value.trim());
+    } catch (NumberFormatException e) {
+      return 0.0;
+    }
+  }
+}
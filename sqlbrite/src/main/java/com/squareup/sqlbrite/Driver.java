@@ -0,0 +1,92 @@
+/*
+ * Copyright (C) 2015 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.sqlbrite;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteTransactionListener;
+
+/**
+ * The platform's SQLite as seen by {@link SqlBrite}. There is one implementation over Android's
+ * {@code SQLiteOpenHelper} and one over JDBC for use on the JVM. Operations mirror those of
+ * {@code SQLiteDatabase} and have the same semantics, including its nested transactions.
+ */
+interface Driver {
+  /** Open the connection used for reads outside of a read pool. May return the writable one. */
+  Database openReadable();
+
+  /** Open the connection used for writes and transactions. */
+  Database openWritable();
+
+  /** Open an additional read-only connection for a {@link ReadConnectionPool}. */
+  Database openReadOnly();
+
+  /** Where debug messages go unless the caller sets a {@link SqlBrite.Logger}. */
+  SqlBrite.Logger defaultLogger();
+
+  /** Close every connection opened by {@link #openReadable()} and {@link #openWritable()}. */
+  void close();
+
+  interface Database {
+    Cursor rawQuery(String sql, String[] args);
+
+    /** Run {@code sql} binding each of {@code args} with its own type. */
+    Cursor rawQueryTyped(String sql, QueryArgs args);
+
+    Statement compileStatement(String sql);
+
+    /** Compile {@code sql} for any number of runs. The query may be compiled lazily. */
+    PreparedQuery prepareQuery(String sql);
+
+    void beginTransactionWithListener(SQLiteTransactionListener listener);
+
+    void setTransactionSuccessful();
+
+    void endTransaction();
+
+    /** @param sleepMillis if positive, sleep this long after actually yielding. */
+    boolean yieldIfContendedSafely(long sleepMillis);
+
+    /** Returns false if the database does not support write-ahead logging. */
+    boolean enableWriteAheadLogging();
+
+    void close();
+  }
+
+  /** A compiled query. May be used by any number of threads. */
+  interface PreparedQuery {
+    /** Run the query binding {@code typedArgs} if it is non-null and {@code args} otherwise. */
+    Cursor run(String[] args, QueryArgs typedArgs);
+
+    /** Release the compiled query. Runs after this may compile it each time. */
+    void close();
+  }
+
+  /** A compiled statement. Only used by one thread at a time. */
+  interface Statement {
+    /** Bind a value of any type supported by {@code ContentValues}, or null. */
+    void bind(int index, Object value);
+
+    void clearBindings();
+
+    /** Returns the row ID of the inserted row, or -1 if no row was inserted. */
+    long executeInsert();
+
+    /** Returns the number of rows changed. */
+    int executeUpdateDelete();
+
+    void close();
+  }
+}
@@ -0,0 +1,486 @@
+/*
+ * Copyright (C) 2015 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.sqlbrite;
+
+import android.database.Cursor;
+import android.database.SQLException;
+import android.database.sqlite.SQLiteTransactionListener;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.Types;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Logger;
+
+/**
+ * A {@link Driver} over a JDBC connection to a SQLite database, for use on the JVM.
+ * <p>
+ * Like Android's primary connection, the connection is used by one thread at a time and a thread
+ * holds it exclusively from the start of its outermost transaction to the end. Query results are
+ * read completely into a {@link CursorSnapshot} before the connection is released.
+ */
+final class JdbcDriver implements Driver {
+  private final JdbcDatabase primary;
+  private final String url;
+
+  JdbcDriver(Connection connection) {
+    this.primary = new JdbcDatabase(connection);
+    try {
+      this.url = connection.getMetaData().getURL();
+    } catch (java.sql.SQLException e) {
+      throw new SQLException(e.getMessage(), e);
+    }
+  }
+
+  @Override public Database openReadable() {
+    return primary;
+  }
+
+  @Override public Database openWritable() {
+    return primary;
+  }
+
+  @Override public Database openReadOnly() {
+    try {
+      JdbcDatabase database = new JdbcDatabase(DriverManager.getConnection(url));
+      database.execute("PRAGMA query_only = 1");
+      return database;
+    } catch (java.sql.SQLException e) {
+      throw new SQLException(e.getMessage(), e);
+    }
+  }
+
+  @Override public SqlBrite.Logger defaultLogger() {
+    final Logger logger = Logger.getLogger("SqlBrite");
+    return new SqlBrite.Logger() {
+      @Override public void log(String message) {
+        logger.info(message);
+      }
+    };
+  }
+
+  @Override public void close() {
+    primary.close();
+  }
+
+  private static final class JdbcDatabase implements Database {
+    private final Connection connection;
+    private final ReentrantLock lock = new ReentrantLock();
+    // Guarded by 'lock'.
+    private TransactionFrame transaction;
+    /** Frames of ended transactions, kept for reuse. Guarded by 'lock'. */
+    private TransactionFrame spare;
+
+    JdbcDatabase(Connection connection) {
+      this.connection = connection;
+    }
+
+    @Override public Cursor rawQuery(String sql, String[] args) {
+      return query(sql, args, null);
+    }
+
+    @Override public Cursor rawQueryTyped(String sql, QueryArgs args) {
+      return query(sql, null, args);
+    }
+
+    @Override public PreparedQuery prepareQuery(String sql) {
+      return new JdbcPreparedQuery(this, sql);
+    }
+
+    /** Run {@code sql} binding either {@code args} as strings or {@code typedArgs}. */
+    private Cursor query(String sql, String[] args, QueryArgs typedArgs) {
+      lock.lock();
+      try {
+        PreparedStatement statement = connection.prepareStatement(sql);
+        try {
+          return execute(statement, args, typedArgs);
+        } finally {
+          statement.close();
+        }
+      } catch (java.sql.SQLException e) {
+        throw new SQLException(e.getMessage(), e);
+      } finally {
+        lock.unlock();
+      }
+    }
+
+    /** Bind and run {@code statement} and read its result. Must hold 'lock'. */
+    private static Cursor execute(PreparedStatement statement, String[] args, QueryArgs typedArgs)
+        throws java.sql.SQLException {
+      if (args != null) {
+        for (int i = 0; i < args.length; i++) {
+          statement.setString(i + 1, args[i]);
+        }
+      }
+      if (typedArgs != null) {
+        for (int i = 0, size = typedArgs.size(); i < size; i++) {
+          bind(statement, i + 1, typedArgs, i);
+        }
+      }
+      CursorSnapshot snapshot = snapshot(statement.executeQuery());
+      Cursor cursor = snapshot.newCursor();
+      snapshot.release();
+      return cursor;
+    }
+
+    private static void bind(PreparedStatement statement, int index, QueryArgs args, int i)
+        throws java.sql.SQLException {
+      switch (args.type(i)) {
+        case Cursor.FIELD_TYPE_NULL:
+          statement.setNull(index, Types.NULL);
+          break;
+        case Cursor.FIELD_TYPE_INTEGER:
+          statement.setLong(index, args.getLong(i));
+          break;
+        case Cursor.FIELD_TYPE_FLOAT:
+          statement.setDouble(index, args.getDouble(i));
+          break;
+        case Cursor.FIELD_TYPE_STRING:
+          statement.setString(index, args.getString(i));
+          break;
+        case Cursor.FIELD_TYPE_BLOB:
+          statement.setBytes(index, args.getBlob(i));
+          break;
+        default:
+          throw new AssertionError();
+      }
+    }
+
+    /** Read every row of {@code results} and close it. */
+    private static CursorSnapshot snapshot(ResultSet results) throws java.sql.SQLException {
+      try {
+        return read(results);
+      } finally {
+        results.close();
+      }
+    }
+
+    private static CursorSnapshot read(ResultSet results) throws java.sql.SQLException {
+      ResultSetMetaData metaData = results.getMetaData();
+      int columns = metaData.getColumnCount();
+      String[] columnNames = new String[columns];
+      for (int i = 0; i < columns; i++) {
+        columnNames[i] = metaData.getColumnLabel(i + 1);
+      }
+      CursorSnapshot.Builder builder = new CursorSnapshot.Builder(columnNames, 0);
+      while (results.next()) {
+        for (int i = 1; i <= columns; i++) {
+          // SQLite is dynamically typed so the type of each value is only known per row.
+          Object value = results.getObject(i);
+          if (value == null) {
+            builder.addNull();
+          } else if (value instanceof Integer || value instanceof Long) {
+            builder.addLong(((Number) value).longValue());
+          } else if (value instanceof Number) {
+            builder.addDouble(((Number) value).doubleValue());
+          } else if (value instanceof byte[]) {
+            builder.addBlob((byte[]) value);
+          } else {
+            builder.addString(value.toString());
+          }
+        }
+      }
+      return builder.build();
+    }
+
+    @Override public Driver.Statement compileStatement(String sql) {
+      lock.lock();
+      try {
+        return new JdbcStatement(this, connection.prepareStatement(sql));
+      } catch (java.sql.SQLException e) {
+        throw new SQLException(e.getMessage(), e);
+      } finally {
+        lock.unlock();
+      }
+    }
+
+    @Override public void beginTransactionWithListener(SQLiteTransactionListener listener) {
+      lock.lock();
+      boolean began = false;
+      try {
+        if (transaction == null) {
+          execute("BEGIN EXCLUSIVE");
+        }
+        TransactionFrame frame = spare;
+        if (frame != null) {
+          spare = frame.parent;
+        } else {
+          frame = new TransactionFrame();
+        }
+        frame.reset(transaction, listener);
+        transaction = frame;
+        began = true;
+        if (listener != null) {
+          listener.onBegin();
+        }
+      } finally {
+        // The lock stays held until the matching endTransaction.
+        if (!began) lock.unlock();
+      }
+    }
+
+    @Override public void setTransactionSuccessful() {
+      TransactionFrame top = top();
+      if (top.successful) {
+        throw new IllegalStateException("Transaction already marked successful.");
+      }
+      top.successful = true;
+    }
+
+    @Override public void endTransaction() {
+      TransactionFrame top = top();
+      boolean successful = top.successful && !top.childFailed;
+      RuntimeException listenerException = null;
+      try {
+        if (top.listener != null) {
+          try {
+            if (successful) {
+              top.listener.onCommit();
+            } else {
+              top.listener.onRollback();
+            }
+          } catch (RuntimeException e) {
+            listenerException = e;
+            successful = false;
+          }
+        }
+        transaction = top.parent;
+        top.reset(spare, null);
+        spare = top;
+        if (transaction != null) {
+          if (!successful) transaction.childFailed = true;
+        } else {
+          execute(successful ? "COMMIT" : "ROLLBACK");
+        }
+      } finally {
+        lock.unlock();
+      }
+      if (listenerException != null) throw listenerException;
+    }
+
+    @Override public boolean yieldIfContendedSafely(long sleepMillis) {
+      TransactionFrame top = top();
+      if (top.parent != null) {
+        throw new IllegalStateException("Cannot yield a nested transaction.");
+      }
+      if (top.childFailed || !lock.hasQueuedThreads()) {
+        return false;
+      }
+      SQLiteTransactionListener listener = top.listener;
+      top.successful = true;
+      endTransaction();
+      if (sleepMillis > 0) {
+        try {
+          Thread.sleep(sleepMillis);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }
+      beginTransactionWithListener(listener);
+      return true;
+    }
+
+    @Override public boolean enableWriteAheadLogging() {
+      Cursor cursor = rawQuery("PRAGMA journal_mode = WAL", null);
+      try {
+        return cursor.moveToNext() && "wal".equalsIgnoreCase(cursor.getString(0));
+      } finally {
+        cursor.close();
+      }
+    }
+
+    @Override public void close() {
+      try {
+        connection.close();
+      } catch (java.sql.SQLException e) {
+        throw new SQLException(e.getMessage(), e);
+      }
+    }
+
+    private TransactionFrame top() {
+      if (transaction == null || !lock.isHeldByCurrentThread()) {
+        throw new IllegalStateException("No transaction in progress on this thread.");
+      }
+      return transaction;
+    }
+
+    void execute(String sql) {
+      try {
+        java.sql.Statement statement = connection.createStatement();
+        try {
+          statement.execute(sql);
+        } finally {
+          statement.close();
+        }
+      } catch (java.sql.SQLException e) {
+        throw new SQLException(e.getMessage(), e);
+      }
+    }
+
+    @Override public String toString() {
+      try {
+        return connection.getMetaData().getURL();
+      } catch (java.sql.SQLException e) {
+        return connection.toString();
+      }
+    }
+  }
+
+  private static final class TransactionFrame {
+    /** The enclosing transaction, or the next spare frame. */
+    TransactionFrame parent;
+    SQLiteTransactionListener listener;
+    boolean successful;
+    boolean childFailed;
+
+    void reset(TransactionFrame parent, SQLiteTransactionListener listener) {
+      this.parent = parent;
+      this.listener = listener;
+      successful = false;
+      childFailed = false;
+    }
+  }
+
+  /**
+   * Keeps one {@link PreparedStatement} for a query and clears and re-binds its parameters for
+   * each run. Runs after it is closed prepare the query every time.
+   */
+  private static final class JdbcPreparedQuery implements Driver.PreparedQuery {
+    private final JdbcDatabase database;
+    private final String sql;
+    // Guarded by 'database.lock'. Prepared on the first run.
+    private PreparedStatement statement;
+    private boolean closed;
+
+    JdbcPreparedQuery(JdbcDatabase database, String sql) {
+      this.database = database;
+      this.sql = sql;
+    }
+
+    @Override public Cursor run(String[] args, QueryArgs typedArgs) {
+      database.lock.lock();
+      try {
+        if (closed) {
+          return database.query(sql, args, typedArgs);
+        }
+        if (statement == null) {
+          statement = database.connection.prepareStatement(sql);
+        } else {
+          statement.clearParameters();
+        }
+        return JdbcDatabase.execute(statement, args, typedArgs);
+      } catch (java.sql.SQLException e) {
+        throw new SQLException(e.getMessage(), e);
+      } finally {
+        database.lock.unlock();
+      }
+    }
+
+    @Override public void close() {
+      database.lock.lock();
+      try {
+        closed = true;
+        if (statement != null) {
+          statement.close();
+          statement = null;
+        }
+      } catch (java.sql.SQLException e) {
+        throw new SQLException(e.getMessage(), e);
+      } finally {
+        database.lock.unlock();
+      }
+    }
+  }
+
+  private static final class JdbcStatement implements Driver.Statement {
+    private final JdbcDatabase database;
+    private final PreparedStatement statement;
+
+    JdbcStatement(JdbcDatabase database, PreparedStatement statement) {
+      this.database = database;
+      this.statement = statement;
+    }
+
+    /** Binds like {@code DatabaseUtils.bindObjectToProgram}. */
+    @Override public void bind(int index, Object value) {
+      try {
+        if (value == null) {
+          statement.setNull(index, Types.NULL);
+        } else if (value instanceof Double || value instanceof Float) {
+          statement.setDouble(index, ((Number) value).doubleValue());
+        } else if (value instanceof Number) {
+          statement.setLong(index, ((Number) value).longValue());
+        } else if (value instanceof Boolean) {
+          statement.setLong(index, (Boolean) value ? 1 : 0);
+        } else if (value instanceof byte[]) {
+          statement.setBytes(index, (byte[]) value);
+        } else {
+          statement.setString(index, value.toString());
+        }
+      } catch (java.sql.SQLException e) {
+        throw new SQLException(e.getMessage(), e);
+      }
+    }
+
+    @Override public void clearBindings() {
+      try {
+        statement.clearParameters();
+      } catch (java.sql.SQLException e) {
+        throw new SQLException(e.getMessage(), e);
+      }
+    }
+
+    @Override public long executeInsert() {
+      database.lock.lock();
+      try {
+        if (statement.executeUpdate() == 0) {
+          return -1;
+        }
+        Cursor cursor = database.rawQuery("SELECT last_insert_rowid()", null);
+        try {
+          return cursor.moveToNext() ? cursor.getLong(0) : -1;
+        } finally {
+          cursor.close();
+        }
+      } catch (java.sql.SQLException e) {
+        throw new SQLException(e.getMessage(), e);
+      } finally {
+        database.lock.unlock();
+      }
+    }
+
+    @Override public int executeUpdateDelete() {
+      database.lock.lock();
+      try {
+        return statement.executeUpdate();
+      } catch (java.sql.SQLException e) {
+        throw new SQLException(e.getMessage(), e);
+      } finally {
+        database.lock.unlock();
+      }
+    }
+
+    @Override public void close() {
+      try {
+        statement.close();
+      } catch (java.sql.SQLException e) {
+        throw new SQLException(e.getMessage(), e);
+      }
+    }
+  }
+}
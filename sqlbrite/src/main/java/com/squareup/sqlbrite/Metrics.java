@@ -0,0 +1,195 @@
+/*
+ * Copyright (C) 2015 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.sqlbrite;
+
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * An {@link SqlBrite.EventListener} which aggregates events in memory. Install it with
+ * {@link SqlBrite#setEventListener} and periodically read its histograms to export them.
+ * <p>
+ * Recording an event is lock-free and, once a SQL statement or table has been seen, allocates
+ * nothing.
+ */
+public final class Metrics extends SqlBrite.EventListener {
+  private final ConcurrentMap<String, Histogram> queryNanos = new ConcurrentHashMap<>();
+  private final ConcurrentMap<String, Histogram> queryRows = new ConcurrentHashMap<>();
+  private final ConcurrentMap<String, Histogram> writeNanos = new ConcurrentHashMap<>();
+  private final ConcurrentMap<String, Histogram> triggerFanOut = new ConcurrentHashMap<>();
+  private final Histogram transactionNanos = new Histogram();
+  private final Histogram transactionDepth = new Histogram();
+  private final AtomicLong commits = new AtomicLong();
+  private final AtomicLong rollbacks = new AtomicLong();
+
+  @Override public void queryEnd(String sql, long durationNanos, int rowCount) {
+    histogram(queryNanos, sql).record(durationNanos);
+    histogram(queryRows, sql).record(rowCount);
+  }
+
+  @Override public void tableTriggered(String table, int subscriberCount) {
+    histogram(triggerFanOut, table).record(subscriberCount);
+  }
+
+  @Override public void writeEnd(String table, long durationNanos, int rowCount) {
+    histogram(writeNanos, table).record(durationNanos);
+  }
+
+  @Override public void transactionEnd(int depth, long durationNanos, boolean committed) {
+    transactionNanos.record(durationNanos);
+    transactionDepth.record(depth);
+    (committed ? commits : rollbacks).incrementAndGet();
+  }
+
+  private static Histogram histogram(ConcurrentMap<String, Histogram> histograms, String key) {
+    Histogram histogram = histograms.get(key);
+    if (histogram == null) {
+      Histogram created = new Histogram();
+      histogram = histograms.putIfAbsent(key, created);
+      if (histogram == null) histogram = created;
+    }
+    return histogram;
+  }
+
+  /** Every SQL statement which has been run by an observable or one-off query. */
+  public Set<String> queries() {
+    return Collections.unmodifiableSet(queryNanos.keySet());
+  }
+
+  /** Every table which has been written or triggered. */
+  public Set<String> tables() {
+    Set<String> tables = new LinkedHashSet<>(writeNanos.keySet());
+    tables.addAll(triggerFanOut.keySet());
+    return Collections.unmodifiableSet(tables);
+  }
+
+  /** Execution time of {@code sql} in nanoseconds, or null if it has not run. */
+  public Histogram queryTime(String sql) {
+    return queryNanos.get(sql);
+  }
+
+  /** Number of rows returned by {@code sql}, or null if it has not run. */
+  public Histogram queryRowCount(String sql) {
+    return queryRows.get(sql);
+  }
+
+  /** Time spent on each insert, update, delete, or batch insert into {@code table}. */
+  public Histogram writeTime(String table) {
+    return writeNanos.get(table);
+  }
+
+  /** Number of observable queries notified by each change to {@code table}. */
+  public Histogram triggerFanOut(String table) {
+    return triggerFanOut.get(table);
+  }
+
+  /** Duration of every transaction, including nested ones, in nanoseconds. */
+  public Histogram transactionTime() {
+    return transactionNanos;
+  }
+
+  /** Nesting depth of every transaction. The outermost transaction has a depth of 1. */
+  public Histogram transactionDepth() {
+    return transactionDepth;
+  }
+
+  public long commitCount() {
+    return commits.get();
+  }
+
+  public long rollbackCount() {
+    return rollbacks.get();
+  }
+
+  /**
+   * A histogram of non-negative values in power-of-two buckets. Bucket 0 holds zero and bucket
+   * {@code i} holds values from 2<sup>i-1</sup> up to but excluding 2<sup>i</sup>.
+   */
+  public static final class Histogram {
+    static final int BUCKETS = 64;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    void record(long value) {
+      if (value < 0) value = 0;
+      buckets.incrementAndGet(BUCKETS - Long.numberOfLeadingZeros(value));
+      count.incrementAndGet();
+      sum.addAndGet(value);
+      long current = max.get();
+      while (value > current && !max.compareAndSet(current, value)) {
+        current = max.get();
+      }
+    }
+
+    public long count() {
+      return count.get();
+    }
+
+    public long sum() {
+      return sum.get();
+    }
+
+    public long max() {
+      return max.get();
+    }
+
+    public double mean() {
+      long count = this.count.get();
+      return count == 0 ? 0 : (double) sum.get() / count;
+    }
+
+    /** The number of recorded values in {@code bucket}. */
+    public long bucketCount(int bucket) {
+      return buckets.get(bucket);
+    }
+
+    /**
+     * An upper bound of the value below which {@code percentile} percent of the recorded values
+     * fall. Accurate to within a factor of two.
+     */
+    public long percentile(double percentile) {
+      if (percentile < 0 || percentile > 100) {
+        throw new IllegalArgumentException("percentile < 0 || percentile > 100");
+      }
+      long target = (long) Math.ceil(count.get() * percentile / 100);
+      long seen = 0;
+      for (int i = 0; i < BUCKETS; i++) {
+        seen += buckets.get(i);
+        if (seen >= target && seen > 0) {
+          return Math.min(upperBound(i), max.get());
+        }
+      }
+      return 0;
+    }
+
+    private static long upperBound(int bucket) {
+      return bucket == BUCKETS - 1 ? Long.MAX_VALUE : (1L << bucket) - 1;
+    }
+
+    @Override public String toString() {
+      return "Histogram{count=" + count() + ", mean=" + mean() + ", p50=" + percentile(50)
+          + ", p99=" + percentile(99) + ", max=" + max() + '}';
+    }
+  }
+}
@@ -0,0 +1,317 @@
+/*
+ * Copyright (C) 2015 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.sqlbrite;
+
+import android.database.Cursor;
+import android.support.annotation.Nullable;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import rx.Observable;
+import rx.Observer;
+import rx.Scheduler;
+import rx.Subscription;
+import rx.functions.Consumer;
+
+/**
+ * An observable window over a large query result which is loaded a page at a time. Create one
+ * with {@link SqlBrite#createPagedQuery}.
+ * <p>
+ * Pages are found with keyset pagination: each page continues after the last key of the previous
+ * one, so the cost of loading a page does not grow with its distance from the start of the result
+ * as it would with {@code OFFSET}. The window starts at an anchor key and holds a whole number of
+ * pages. When the table changes only the rows of the window are queried again, in a single query
+ * from the anchor.
+ * <p>
+ * Report the rows a consumer displays with {@link #onPositionVisible(int)}. Once one comes within
+ * half a page of the end of the window the next page is loaded in the background and appended.
+ * <p>
+ * All loading happens on the scheduler given at creation, which is also where subscribers of
+ * {@link #windows()} are notified. Subscribers share the same window.
+ */
+public final class PagedQuery {
+  private final SqlBrite db;
+  private final Set<String> tables;
+  private final String keyColumn;
+  private final boolean descending;
+  private final int pageSize;
+  private final String[] args;
+  private final Scheduler scheduler;
+  /** Selects the rows from the anchor, inclusive, up to a limit. */
+  private final String windowSql;
+  /** Selects the rows after a key up to a limit. */
+  private final String nextPageSql;
+
+  // Additions and removals guarded by 'this'.
+  private final List<Observer<? super Window>> observers = new CopyOnWriteArrayList<>();
+  // Written while holding 'this'. Non-null while there are observers.
+  private volatile Scheduler.Worker worker;
+  /** True while a reload is scheduled on the worker which has not started. */
+  private final AtomicBoolean reloadScheduled = new AtomicBoolean();
+
+  // Confined to the worker.
+  private Long anchorKey;
+  private int pageCount = 1;
+  private Window window;
+
+  private final TableDispatcher.Listener listener = new TableDispatcher.Listener() {
+    @Override public void onTrigger(Map<String, RowSet> changes) {
+      Scheduler.Worker worker = PagedQuery.this.worker;
+      if (worker == null || !reloadScheduled.compareAndSet(false, true)) {
+        // Not observed, or the pending reload has not started yet and will see this change.
+        return;
+      }
+      worker.schedule(new Runnable() {
+        @Override public void run() {
+          reloadScheduled.set(false);
+          reload();
+        }
+      });
+    }
+  };
+
+  PagedQuery(SqlBrite db, String table, String keyColumn, boolean descending, int pageSize,
+      Scheduler scheduler, String sql, String[] args) {
+    this.db = db;
+    this.tables = Collections.singleton(table);
+    this.keyColumn = keyColumn;
+    this.descending = descending;
+    this.pageSize = pageSize;
+    this.scheduler = scheduler;
+    this.args = Arrays.copyOf(args, args.length + 2);
+
+    this.windowSql = keysetSql(sql, keyColumn, descending, true);
+    this.nextPageSql = keysetSql(sql, keyColumn, descending, false);
+  }
+
+  /**
+   * Wrap {@code sql} to select up to a limit of its rows from a key in key order. The key and the
+   * limit are bound as two additional arguments after those of {@code sql}.
+   */
+  static String keysetSql(String sql, String keyColumn, boolean descending, boolean inclusive) {
+    // Wrapping the query lets SQLite push the key range and order into it so an index on the key
+    // column is used. Keys are cast because arguments are bound as strings.
+    String comparison = descending ? " <" : " >";
+    return "SELECT * FROM (" + sql + ") WHERE " + keyColumn + comparison + (inclusive ? "=" : "")
+        + " CAST(? AS INTEGER) ORDER BY " + keyColumn + (descending ? " DESC" : " ASC")
+        + " LIMIT CAST(? AS INTEGER)";
+  }
+
+  /**
+   * An observable of the current window. The window is loaded when the first subscriber
+   * subscribes and again whenever it moves, grows, or its table changes. Subscribing inside a
+   * transaction starts observing once the transaction ends.
+   */
+  public Observable<Window> windows() {
+    return Observable.create(new Consumer<Observer<? super Window>>() {
+      @Override public void accept(final Observer<? super Window> observer) {
+        db.runOutsideTransaction(new Runnable() {
+          @Override public void run() {
+            if (!observer.isUnsubscribed()) {
+              addObserver(observer);
+            }
+          }
+        });
+      }
+    });
+  }
+
+  private void addObserver(final Observer<? super Window> observer) {
+    Scheduler.Worker worker;
+    boolean first;
+    synchronized (this) {
+      observers.add(observer);
+      first = observers.size() == 1;
+      if (first) {
+        this.worker = scheduler.createWorker();
+        db.dispatcher.register(listener, tables);
+      }
+      worker = this.worker;
+    }
+    observer.add(new Subscription(new Runnable() {
+      @Override public void run() {
+        removeObserver(observer);
+      }
+    }));
+
+    final boolean load = first;
+    worker.schedule(new Runnable() {
+      @Override public void run() {
+        if (load) {
+          reload();
+        } else if (window != null && !observer.isUnsubscribed()) {
+          observer.onNext(window);
+        }
+      }
+    });
+  }
+
+  private synchronized void removeObserver(Observer<? super Window> observer) {
+    if (!observers.remove(observer) || !observers.isEmpty()) return;
+    db.dispatcher.unregister(listener, tables);
+    worker.unsubscribe();
+    worker = null;
+  }
+
+  /**
+   * Move the window to start at the row whose key is {@code anchorKey}, or the nearest row after
+   * it in the result's order, and shrink it to a single page. Pass null to move to the start of
+   * the result.
+   */
+  public void moveTo(@Nullable final Long anchorKey) {
+    Scheduler.Worker worker = this.worker;
+    if (worker == null) {
+      throw new IllegalStateException("Cannot move a window which is not observed.");
+    }
+    worker.schedule(new Runnable() {
+      @Override public void run() {
+        PagedQuery.this.anchorKey = anchorKey;
+        pageCount = 1;
+        reload();
+      }
+    });
+  }
+
+  /**
+   * Report that the row at {@code position} of the current window is visible. If it is within
+   * half a page of the end of the window and the result has more rows, the next page is loaded.
+   */
+  public void onPositionVisible(final int position) {
+    Scheduler.Worker worker = this.worker;
+    if (worker == null) return;
+    worker.schedule(new Runnable() {
+      @Override public void run() {
+        Window current = window;
+        if (current == null || !current.hasMore) return;
+        if (position < current.size() - Math.max(pageSize / 2, 1)) return;
+        loadNextPage(current);
+      }
+    });
+  }
+
+  /** Query every row of the window from its anchor. */
+  private void reload() {
+    if (observers.isEmpty()) return;
+    long anchor = anchorKey != null
+        ? anchorKey
+        : descending ? Long.MAX_VALUE : Long.MIN_VALUE;
+    int limit = pageCount * pageSize;
+    try {
+      CursorSnapshot rows = CursorSnapshot.create(db.read(windowSql, pageArgs(anchor, limit)));
+      publish(new Window(rows, anchorKey, rows.count() == limit, lastKey(rows)));
+    } catch (RuntimeException e) {
+      fail(e);
+    }
+  }
+
+  /** Query the page after {@code current} and append it. */
+  private void loadNextPage(Window current) {
+    try {
+      CursorSnapshot.Builder builder = new CursorSnapshot.Builder(current.rows, pageSize);
+      Cursor page = db.read(nextPageSql, pageArgs(current.lastKey, pageSize));
+      try {
+        builder.addRows(page);
+      } finally {
+        page.close();
+      }
+      CursorSnapshot rows = builder.build();
+      pageCount++;
+      boolean hasMore = rows.count() - current.rows.count() == pageSize;
+      publish(new Window(rows, anchorKey, hasMore, lastKey(rows)));
+    } catch (RuntimeException e) {
+      fail(e);
+    }
+  }
+
+  private String[] pageArgs(long key, int limit) {
+    String[] pageArgs = args.clone();
+    pageArgs[pageArgs.length - 2] = Long.toString(key);
+    pageArgs[pageArgs.length - 1] = Integer.toString(limit);
+    return pageArgs;
+  }
+
+  private long lastKey(CursorSnapshot rows) {
+    if (rows.count() == 0) return 0L;
+    Cursor cursor = rows.newCursor();
+    try {
+      cursor.moveToLast();
+      return cursor.getLong(cursor.getColumnIndexOrThrow(keyColumn));
+    } finally {
+      cursor.close();
+    }
+  }
+
+  private void publish(Window window) {
+    this.window = window;
+    for (Observer<? super Window> observer : observers) {
+      observer.onNext(window);
+    }
+  }
+
+  /**
+   * Terminate every observer with {@code e}. They are removed first so no later trigger reaches
+   * them, and once none remain the listener is unregistered.
+   */
+  private void fail(RuntimeException e) {
+    for (Observer<? super Window> observer : observers) {
+      removeObserver(observer);
+      observer.onError(e);
+    }
+  }
+
+  /** The rows of a window at one point in time. */
+  public static final class Window implements SqlBrite.Query {
+    final CursorSnapshot rows;
+    private final Long anchorKey;
+    final boolean hasMore;
+    final long lastKey;
+
+    Window(CursorSnapshot rows, Long anchorKey, boolean hasMore, long lastKey) {
+      this.rows = rows;
+      this.anchorKey = anchorKey;
+      this.hasMore = hasMore;
+      this.lastKey = lastKey;
+    }
+
+    /** A new cursor over the rows of the window. Reading it does not touch the database. */
+    @Override public Cursor run() {
+      return rows.newCursor();
+    }
+
+    /** The number of rows in the window. */
+    public int size() {
+      return rows.count();
+    }
+
+    /** The key the window starts at, or null if it starts at the start of the result. */
+    @Nullable public Long anchorKey() {
+      return anchorKey;
+    }
+
+    /** True if the result may have rows after the end of this window. */
+    public boolean hasMore() {
+      return hasMore;
+    }
+
+    @Override public String toString() {
+      return "Window{anchorKey=" + anchorKey + ", size=" + size() + ", hasMore=" + hasMore + '}';
+    }
+  }
+}
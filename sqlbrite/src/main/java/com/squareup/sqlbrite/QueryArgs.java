@@ -0,0 +1,190 @@
+/*
+ * Copyright (C) 2015 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.sqlbrite;
+
+import android.database.Cursor;
+import android.support.annotation.Nullable;
+import java.util.Arrays;
+
+/**
+ * Arguments for the {@code ?} parameters of a query which are bound with their own types rather
+ * than as strings. Integers compare with integer columns without a conversion to text and back,
+ * and binding them allocates nothing.
+ * <p>
+ * A holder can be {@linkplain #clear() cleared} and reused for any number of one-shot queries.
+ * Observable queries copy their arguments when they are created so the holder may be reused
+ * immediately. Instances are not thread-safe.
+ * <pre>{@code
+ * QueryArgs args = new QueryArgs();
+ * Cursor cursor = db.query("SELECT name FROM users WHERE _id = ?", args.clear().addLong(id));
+ * }</pre>
+ */
+public final class QueryArgs {
+  // Parallel arrays like CursorSnapshot: the type of each argument, integers and the bits of
+  // floats, and strings and blobs.
+  private byte[] types;
+  private long[] numbers;
+  private Object[] objects;
+  private int size;
+
+  public QueryArgs() {
+    this(4);
+  }
+
+  /** @param capacity the expected number of arguments. More may be added. */
+  public QueryArgs(int capacity) {
+    if (capacity < 0) throw new IllegalArgumentException("capacity < 0");
+    types = new byte[capacity];
+    numbers = new long[capacity];
+    objects = new Object[capacity];
+  }
+
+  /** Remove every argument so the holder can be reused. */
+  public QueryArgs clear() {
+    Arrays.fill(objects, 0, size, null);
+    size = 0;
+    return this;
+  }
+
+  public QueryArgs addNull() {
+    return add(Cursor.FIELD_TYPE_NULL, 0L, null);
+  }
+
+  public QueryArgs addLong(long value) {
+    return add(Cursor.FIELD_TYPE_INTEGER, value, null);
+  }
+
+  public QueryArgs addDouble(double value) {
+    return add(Cursor.FIELD_TYPE_FLOAT, Double.doubleToRawLongBits(value), null);
+  }
+
+  /** Add {@code value}, or null if it is null. */
+  public QueryArgs addString(@Nullable String value) {
+    return value != null ? add(Cursor.FIELD_TYPE_STRING, 0L, value) : addNull();
+  }
+
+  /** Add {@code value}, or null if it is null. The array is not copied. */
+  public QueryArgs addBlob(@Nullable byte[] value) {
+    return value != null ? add(Cursor.FIELD_TYPE_BLOB, 0L, value) : addNull();
+  }
+
+  /** The number of arguments. */
+  public int size() {
+    return size;
+  }
+
+  /** The {@code Cursor.FIELD_TYPE_*} constant of the argument at {@code index}. */
+  int type(int index) {
+    return types[index];
+  }
+
+  long getLong(int index) {
+    return numbers[index];
+  }
+
+  double getDouble(int index) {
+    return Double.longBitsToDouble(numbers[index]);
+  }
+
+  String getString(int index) {
+    return (String) objects[index];
+  }
+
+  byte[] getBlob(int index) {
+    return (byte[]) objects[index];
+  }
+
+  /** A copy which is not affected by changes to this holder. */
+  QueryArgs copy() {
+    QueryArgs copy = new QueryArgs(size);
+    System.arraycopy(types, 0, copy.types, 0, size);
+    System.arraycopy(numbers, 0, copy.numbers, 0, size);
+    System.arraycopy(objects, 0, copy.objects, 0, size);
+    copy.size = size;
+    return copy;
+  }
+
+  private QueryArgs add(int type, long number, Object object) {
+    if (size == types.length) {
+      int capacity = Math.max(size * 2, 4);
+      types = Arrays.copyOf(types, capacity);
+      numbers = Arrays.copyOf(numbers, capacity);
+      objects = Arrays.copyOf(objects, capacity);
+    }
+    types[size] = (byte) type;
+    numbers[size] = number;
+    objects[size] = object;
+    size++;
+    return this;
+  }
+
+  @Override public boolean equals(Object o) {
+    if (o == this) return true;
+    if (!(o instanceof QueryArgs)) return false;
+    QueryArgs other = (QueryArgs) o;
+    if (size != other.size) return false;
+    for (int i = 0; i < size; i++) {
+      if (types[i] != other.types[i] || numbers[i] != other.numbers[i]) return false;
+      if (types[i] == Cursor.FIELD_TYPE_STRING && !objects[i].equals(other.objects[i])) {
+        return false;
+      }
+      if (types[i] == Cursor.FIELD_TYPE_BLOB
+          && !Arrays.equals((byte[]) objects[i], (byte[]) other.objects[i])) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  @Override public int hashCode() {
+    int result = size;
+    for (int i = 0; i < size; i++) {
+      result = 31 * result + types[i];
+      result = 31 * result + (int) (numbers[i] ^ (numbers[i] >>> 32));
+      if (types[i] == Cursor.FIELD_TYPE_STRING) {
+        result = 31 * result + objects[i].hashCode();
+      } else if (types[i] == Cursor.FIELD_TYPE_BLOB) {
+        result = 31 * result + Arrays.hashCode((byte[]) objects[i]);
+      }
+    }
+    return result;
+  }
+
+  @Override public String toString() {
+    StringBuilder result = new StringBuilder().append('[');
+    for (int i = 0; i < size; i++) {
+      if (i > 0) result.append(", ");
+      switch (types[i]) {
+        case Cursor.FIELD_TYPE_NULL:
+          result.append("null");
+          break;
+        case Cursor.FIELD_TYPE_INTEGER:
+          result.append(numbers[i]);
+          break;
+        case Cursor.FIELD_TYPE_FLOAT:
+          result.append(getDouble(i));
+          break;
+        case Cursor.FIELD_TYPE_STRING:
+          result.append('\'').append(objects[i]).append('\'');
+          break;
+        default:
+          result.append("<").append(((byte[]) objects[i]).length).append(" bytes>");
+          break;
+      }
+    }
+    return result.append(']').toString();
+  }
+}
@@ -0,0 +1,179 @@
+/*
+ * Copyright (C) 2015 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.sqlbrite;
+
+import android.database.Cursor;
+import android.database.CursorWrapper;
+import java.io.Closeable;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A bounded pool of read-only connections to a database in write-ahead logging mode. Each
+ * connection is checked out for the lifetime of a single cursor so that queries on different
+ * threads run in parallel with each other and with the writer.
+ * <p>
+ * Connections which have been idle for longer than the idle timeout are closed the next time the
+ * pool is used.
+ */
+final class ReadConnectionPool implements Closeable {
+  private final Driver driver;
+  private final int maxSize;
+  private final long idleTimeoutMillis;
+
+  // Guarded by 'this'. Most recently used first.
+  private final Deque<IdleConnection> idle = new ArrayDeque<>();
+  private int openCount;
+  private boolean closed;
+
+  ReadConnectionPool(Driver driver, int maxSize, long idleTimeoutMillis) {
+    this.driver = driver;
+    this.maxSize = maxSize;
+    this.idleTimeoutMillis = idleTimeoutMillis;
+  }
+
+  /**
+   * Run {@code sql} on a pooled connection, binding {@code typedArgs} if it is non-null and
+   * {@code args} otherwise. The connection returns to the pool when the cursor is closed. Returns
+   * null if every connection is in use.
+   */
+  Cursor query(String sql, String[] args, QueryArgs typedArgs) {
+    final Driver.Database db = acquire();
+    if (db == null) return null;
+    Cursor cursor;
+    try {
+      cursor = typedArgs != null ? db.rawQueryTyped(sql, typedArgs) : db.rawQuery(sql, args);
+    } catch (RuntimeException e) {
+      release(db);
+      throw e;
+    }
+    return new CursorWrapper(cursor) {
+      private boolean released;
+
+      @Override public void close() {
+        super.close();
+        if (!released) {
+          released = true;
+          release(db);
+        }
+      }
+    };
+  }
+
+  private Driver.Database acquire() {
+    List<Driver.Database> expired;
+    IdleConnection connection;
+    synchronized (this) {
+      if (closed) throw new IllegalStateException("Pool closed.");
+      expired = removeExpired(uptimeMillis());
+      connection = idle.pollFirst();
+      if (connection == null) {
+        if (openCount == maxSize) {
+          closeAll(expired);
+          return null;
+        }
+        openCount++;
+      }
+    }
+    closeAll(expired);
+    if (connection != null) {
+      return connection.db;
+    }
+    try {
+      return driver.openReadOnly();
+    } catch (RuntimeException e) {
+      synchronized (this) {
+        openCount--;
+      }
+      throw e;
+    }
+  }
+
+  private void release(Driver.Database db) {
+    List<Driver.Database> expired;
+    synchronized (this) {
+      if (closed) {
+        openCount--;
+        expired = new ArrayList<>();
+        expired.add(db);
+      } else {
+        long now = uptimeMillis();
+        idle.addFirst(new IdleConnection(db, now));
+        expired = removeExpired(now);
+      }
+    }
+    closeAll(expired);
+  }
+
+  // Guarded by 'this'.
+  private List<Driver.Database> removeExpired(long now) {
+    List<Driver.Database> expired = null;
+    // The least recently used connections are at the end.
+    for (Iterator<IdleConnection> i = idle.descendingIterator(); i.hasNext(); ) {
+      IdleConnection connection = i.next();
+      if (now - connection.idleSince < idleTimeoutMillis) break;
+      i.remove();
+      openCount--;
+      if (expired == null) expired = new ArrayList<>();
+      expired.add(connection.db);
+    }
+    return expired;
+  }
+
+  private static long uptimeMillis() {
+    return TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
+  }
+
+  private static void closeAll(List<Driver.Database> connections) {
+    if (connections == null) return;
+    for (Driver.Database db : connections) {
+      db.close();
+    }
+  }
+
+  /** The number of open connections, both idle and in use. */
+  synchronized int openCount() {
+    return openCount;
+  }
+
+  /** Close idle connections now and those in use as soon as their cursor is closed. */
+  @Override public void close() {
+    List<Driver.Database> connections = new ArrayList<>();
+    synchronized (this) {
+      closed = true;
+      for (IdleConnection connection : idle) {
+        connections.add(connection.db);
+      }
+      openCount -= idle.size();
+      idle.clear();
+    }
+    closeAll(connections);
+  }
+
+  private static final class IdleConnection {
+    final Driver.Database db;
+    final long idleSince;
+
+    IdleConnection(Driver.Database db, long idleSince) {
+      this.db = db;
+      this.idleSince = idleSince;
+    }
+  }
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright (C) 2015 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.sqlbrite;
+
+import android.database.Cursor;
+import android.database.SQLException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Determines from the schema how writers may identify the rows of a table by ID, and caches the
+ * result by table.
+ * <p>
+ * A table's rowid may be assigned through {@code rowid}, {@code oid}, {@code _rowid_}, or a
+ * primary key column, which {@code PRAGMA table_info} lists. Only an {@code INTEGER PRIMARY KEY}
+ * actually aliases the rowid, but every primary key column is conservatively treated as if it
+ * did. Tables created {@code WITHOUT ROWID} have no row IDs at all.
+ */
+final class RowIdResolver {
+  private static final Set<String> ROWID_NAMES = Collections.unmodifiableSet(
+      new TreeSet<>(Arrays.asList("rowid", "oid", "_rowid_")));
+
+  private final Map<String, Info> cache = new HashMap<>();
+
+  /** True if {@code table} has row IDs which can be selected. */
+  boolean hasRowId(Driver.Database db, String table) {
+    return info(db, table).hasRowId;
+  }
+
+  /** True if assigning any of {@code columns} of {@code table} may change a row's ID. */
+  boolean assignsRowId(Driver.Database db, String table, Set<String> columns) {
+    Set<String> rowIdColumns = info(db, table).rowIdColumns;
+    for (String column : columns) {
+      if (rowIdColumns.contains(column.toLowerCase(Locale.US))) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /** Forget every table's columns. Call this after changing the schema. */
+  void evictAll() {
+    synchronized (cache) {
+      cache.clear();
+    }
+  }
+
+  private Info info(Driver.Database db, String table) {
+    synchronized (cache) {
+      Info info = cache.get(table);
+      if (info != null) return info;
+    }
+    Info info = resolve(db, table);
+    synchronized (cache) {
+      cache.put(table, info);
+    }
+    return info;
+  }
+
+  private static Info resolve(Driver.Database db, String table) {
+    Set<String> rowIdColumns = new TreeSet<>(ROWID_NAMES);
+    Cursor columns = db.rawQuery("PRAGMA table_info(" + table + ")", null);
+    try {
+      int nameIndex = columns.getColumnIndexOrThrow("name");
+      int pkIndex = columns.getColumnIndexOrThrow("pk");
+      while (columns.moveToNext()) {
+        if (columns.getInt(pkIndex) > 0) {
+          rowIdColumns.add(columns.getString(nameIndex).toLowerCase(Locale.US));
+        }
+      }
+    } finally {
+      columns.close();
+    }
+
+    boolean hasRowId;
+    try {
+      // Compiling fails if the table was created WITHOUT ROWID.
+      db.rawQuery("SELECT _rowid_ FROM " + table + " LIMIT 0", null).close();
+      hasRowId = true;
+    } catch (SQLException e) {
+      hasRowId = false;
+    }
+    return new Info(hasRowId, Collections.unmodifiableSet(rowIdColumns));
+  }
+
+  private static final class Info {
+    final boolean hasRowId;
+    final Set<String> rowIdColumns;
+
+    Info(boolean hasRowId, Set<String> rowIdColumns) {
+      this.hasRowId = hasRowId;
+      this.rowIdColumns = rowIdColumns;
+    }
+  }
+}
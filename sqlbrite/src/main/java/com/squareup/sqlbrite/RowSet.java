@@ -0,0 +1,177 @@
+/*
+ * Copyright (C) 2015 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.sqlbrite;
+
+import java.util.Arrays;
+
+/**
+ * The row IDs of a single table which were affected by a change. Small changes are tracked as
+ * exact IDs. Once more than {@code limit} IDs are added only the range between the lowest and
+ * highest ID is kept. Changes whose rows are unknown affect {@linkplain #ALL_ROWS all rows}.
+ */
+final class RowSet {
+  private static final int IDS = 0;
+  private static final int RANGE = 1;
+  private static final int ALL = 2;
+
+  /** Every row of the table may have changed. Never modified. */
+  static final RowSet ALL_ROWS = new RowSet(0, ALL);
+
+  private final int limit;
+  private int state;
+  // Sorted and distinct. Only used while state is IDS.
+  private long[] ids;
+  private int size;
+  private long min = Long.MAX_VALUE;
+  private long max = Long.MIN_VALUE;
+
+  RowSet(int limit) {
+    this(limit, IDS);
+  }
+
+  private RowSet(int limit, int state) {
+    this.limit = limit;
+    this.state = state;
+  }
+
+  static RowSet of(long rowId, int limit) {
+    RowSet rows = new RowSet(limit);
+    rows.add(rowId);
+    return rows;
+  }
+
+  int limit() {
+    return limit;
+  }
+
+  /** True if the set holds exact IDs rather than a range or every row. */
+  boolean isExact() {
+    return state == IDS;
+  }
+
+  /** The number of exact IDs. Only meaningful if {@link #isExact()}. */
+  int size() {
+    return size;
+  }
+
+  /** The exact ID at {@code index} in ascending order. */
+  long get(int index) {
+    return ids[index];
+  }
+
+  /** Remove every row so the set can be reused. Must not be called on {@link #ALL_ROWS}. */
+  void clear() {
+    state = IDS;
+    size = 0;
+    min = Long.MAX_VALUE;
+    max = Long.MIN_VALUE;
+  }
+
+  void add(long rowId) {
+    if (state == ALL) return;
+    if (rowId < min) min = rowId;
+    if (rowId > max) max = rowId;
+    if (state != IDS) return;
+
+    // IDs usually arrive in ascending order so check the end before searching.
+    int index;
+    if (size == 0 || ids[size - 1] < rowId) {
+      index = size;
+    } else {
+      index = Arrays.binarySearch(ids, 0, size, rowId);
+      if (index >= 0) return;
+      index = -index - 1;
+    }
+    if (size == limit) {
+      state = RANGE;
+      ids = null;
+      size = 0;
+      return;
+    }
+    if (ids == null) {
+      ids = new long[Math.min(limit, 8)];
+    } else if (size == ids.length) {
+      ids = Arrays.copyOf(ids, Math.min(limit, size * 2));
+    }
+    System.arraycopy(ids, index, ids, index + 1, size - index);
+    ids[index] = rowId;
+    size++;
+  }
+
+  /** A copy which is not affected by later changes to this set. */
+  RowSet copy() {
+    if (state == ALL) return ALL_ROWS;
+    RowSet copy = new RowSet(limit);
+    copy.addAll(this);
+    return copy;
+  }
+
+  /** Merge the rows of {@code other} into this set. */
+  void addAll(RowSet other) {
+    if (state == ALL) return;
+    switch (other.state) {
+      case ALL:
+        state = ALL;
+        ids = null;
+        size = 0;
+        break;
+      case RANGE:
+        if (other.min < min) min = other.min;
+        if (other.max > max) max = other.max;
+        state = RANGE;
+        ids = null;
+        size = 0;
+        break;
+      case IDS:
+        for (int i = 0; i < other.size; i++) {
+          add(other.ids[i]);
+        }
+        break;
+      default:
+        throw new AssertionError();
+    }
+  }
+
+  /** True if a change to these rows may affect a query filtered by {@code filter}. */
+  boolean affects(SqlBrite.RowFilter filter) {
+    switch (state) {
+      case ALL:
+        return true;
+      case RANGE:
+        return filter.affects(min, max);
+      case IDS:
+        for (int i = 0; i < size; i++) {
+          if (filter.affects(ids[i], ids[i])) {
+            return true;
+          }
+        }
+        return false;
+      default:
+        throw new AssertionError();
+    }
+  }
+
+  @Override public String toString() {
+    switch (state) {
+      case ALL:
+        return "*";
+      case RANGE:
+        return "[" + min + ".." + max + "]";
+      default:
+        return size == 0 ? "[]" : Arrays.toString(Arrays.copyOf(ids, size));
+    }
+  }
+}
@@ -23,21 +23,31 @@ import android.database.sqlite.SQLiteTransactionListener;
 import android.support.annotation.IntDef;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
-import android.util.Log;
 import java.io.Closeable;
 import java.io.IOException;
 import java.lang.annotation.Retention;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 
 import rx.Observable;
-import rx.functions.Function;
-import rx.functions.Predicate;
-import rx.subjects.Subject;
+import rx.Observer;
+import rx.Scheduler;
+import rx.Subscription;
+import rx.functions.Consumer;
 
 import static android.database.sqlite.SQLiteDatabase.CONFLICT_ABORT;
 import static android.database.sqlite.SQLiteDatabase.CONFLICT_FAIL;
@@ -49,19 +59,31 @@ import static java.lang.annotation.RetentionPolicy.SOURCE;
 
 /**
  * A lightweight wrapper around {@link SQLiteOpenHelper} which allows for continuously observing
- * the result of a query.
+ * the result of a query. On the JVM it wraps a JDBC connection to a SQLite database instead.
  * <p>
  * While not strictly required, instances of this class assume that they will be the only ones
- * interacting with the underlying {@link SQLiteOpenHelper} and it is required for automatic
- * notifications of table changes to work. See {@linkplain #createQuery the <code>query</code>
+ * interacting with the underlying database and it is required for automatic notifications of
+ * table changes to work. See {@linkplain #createQuery the <code>query</code>
  * method} for more information on that behavior.
  */
 public final class SqlBrite implements Closeable {
-  private static final Set<String> INITIAL_TRIGGER = Collections.singleton("<initial>");
+  private static final Map<String, RowSet> INITIAL_TRIGGER =
+      Collections.singletonMap("<initial>", RowSet.ALL_ROWS);
+  private static final int DEFAULT_ROW_CHANGE_LIMIT = 100;
+  private static final String[] NO_ARGS = new String[0];
 
   /** Create an instance around the specified {@code helper} using appropriate defaults. */
   public static SqlBrite create(@NonNull SQLiteOpenHelper helper) {
-    return new SqlBrite(helper);
+    return new SqlBrite(new AndroidDriver(helper));
+  }
+
+  /**
+   * Create an instance around an open JDBC {@code connection} to a SQLite database, for use on the
+   * JVM. Create the schema before calling this and do not use the connection directly afterwards.
+   * Closing the returned instance closes the connection.
+   */
+  public static SqlBrite create(@NonNull java.sql.Connection connection) {
+    return new SqlBrite(new JdbcDriver(connection));
   }
 
   /** An executable query. */
@@ -70,42 +92,134 @@ public final class SqlBrite implements Closeable {
     Cursor run();
   }
 
+  /**
+   * Decides whether a change to rows of a table can affect the result of a query. Rows are
+   * identified by their SQLite {@code rowid}, which is the {@code INTEGER PRIMARY KEY} column when
+   * a table has one.
+   *
+   * @see #createQuery(String, RowFilter, String, String...)
+   */
+  public interface RowFilter {
+    /**
+     * Return true if a change to any row whose ID is between {@code firstRowId} and
+     * {@code lastRowId}, inclusive, may affect the query. A change to a single row passes the same
+     * ID for both.
+     */
+    boolean affects(long firstRowId, long lastRowId);
+  }
+
   /** A simple indirection for logging debug messages. */
   public interface Logger {
     void log(String message);
   }
 
-  private final SQLiteOpenHelper helper;
-  private final ThreadLocal<Transaction> transactions = new ThreadLocal<>();
-  /** Publishes sets of tables which have changed. */
-  private final Subject<Set<String>> triggers = new Subject<>();
+  /**
+   * Receives structured events about the work done by a {@link SqlBrite}. Override the methods
+   * of interest. Events are delivered synchronously on the thread which did the work so
+   * implementations must be fast and thread-safe. Arguments are primitives or strings already
+   * held by the caller so delivering an event allocates nothing.
+   *
+   * @see Metrics
+   */
+  public abstract static class EventListener {
+    /**
+     * A query ran. {@code sql} is the statement as given to {@code SqlBrite}. The duration covers
+     * running the query up to and including counting its rows.
+     */
+    public void queryEnd(String sql, long durationNanos, int rowCount) {
+    }
+
+    /** A change to {@code table} notified {@code subscriberCount} observable queries. */
+    public void tableTriggered(String table, int subscriberCount) {
+    }
+
+    /**
+     * An insert, update, delete, batch insert, or {@code executeUpdateDelete} which changed
+     * {@code rowCount} rows ended. The last reports once for each of its tables.
+     */
+    public void writeEnd(String table, long durationNanos, int rowCount) {
+    }
+
+    /** A transaction ended. The outermost transaction has a {@code depth} of 1. */
+    public void transactionEnd(int depth, long durationNanos, boolean committed) {
+    }
+  }
+
+  /**
+   * A transaction begun by {@link #newTransaction()}. Call its methods on the thread which began
+   * it while it is that thread's innermost transaction.
+   */
+  public interface Transaction extends Closeable {
+    /** @see SqlBrite#setTransactionSuccessful() */
+    void markSuccessful();
+
+    /** @see SqlBrite#yieldIfContendedSafely() */
+    boolean yieldIfContendedSafely();
+
+    /** @see SqlBrite#endTransaction() */
+    void end();
+
+    /** Equivalent to {@link #end()}. */
+    @Override void close();
+  }
+
+  private final Driver driver;
+  private final ThreadLocal<TransactionStack> transactions = new ThreadLocal<TransactionStack>() {
+    @Override protected TransactionStack initialValue() {
+      return new TransactionStack();
+    }
+  };
+  /** Publishes sets of tables which have changed to the queries observing them. */
+  final TableDispatcher dispatcher = new TableDispatcher();
+  private final StatementCache statementCache =
+      new StatementCache(StatementCache.DEFAULT_MAX_SIZE);
+  /** The tables read by the SQL of queries created without a table list. */
+  private final TableResolver tableResolver = new TableResolver(TableResolver.DEFAULT_MAX_SIZE);
+  private final RowIdResolver rowIdResolver = new RowIdResolver();
+  /**
+   * Incremented when the queries prepared by observable queries may no longer be valid: after a
+   * schema change and when the connections are closed.
+   */
+  private final AtomicInteger preparedGeneration = new AtomicInteger();
+  /** Observable queries which are shared by all subscribers with the same tables, SQL, and args. */
+  private final Map<QueryKey, ObservedQuery> sharedQueries = new HashMap<>();
 
   // Read and write guarded by 'databaseLock'. Lazily initialized. Use methods to access.
-  private volatile SQLiteDatabase readableDatabase;
-  private volatile SQLiteDatabase writeableDatabase;
+  private volatile Driver.Database readableDatabase;
+  private volatile Driver.Database writeableDatabase;
   private final Object databaseLock = new Object();
+  /** Read-only connections used outside of transactions once write-ahead logging is enabled. */
+  private volatile ReadConnectionPool readPool;
 
   // Not volatile because we don't care if threads don't immediately see changes to this value.
   private boolean logging;
   private volatile Logger logger;
+  private volatile EventListener eventListener;
+  private boolean querySharing;
+  private boolean queryConflation;
+  private boolean distinctQueryResults;
+  private volatile Scheduler queryScheduler;
+  private volatile int rowChangeLimit = DEFAULT_ROW_CHANGE_LIMIT;
+  /**
+   * 1 if the database supports {@code INSERT ... ON CONFLICT DO UPDATE}, -1 if it does not, or 0
+   * if its version has not been read yet. Package-private so tests can force the fallback.
+   */
+  volatile int upsertSupport;
 
-  private SqlBrite(SQLiteOpenHelper helper) {
-    this.helper = helper;
+  private SqlBrite(Driver driver) {
+    this.driver = driver;
   }
 
   /**
    * Control whether debug logging is enabled.
    * <p>
-   * By default this method will log verbose message to {@linkplain Log Android's log}. Use a
-   * custom logger by calling {@link #setLogger}.
+   * By default this method will log verbose message to {@linkplain android.util.Log Android's
+   * log}, or to {@link java.util.logging} on the JVM. Use a custom logger by calling
+   * {@link #setLogger}.
    */
   public void setLoggingEnabled(boolean enabled) {
     if (enabled && logger == null) {
-      logger = new Logger() {
-        @Override public void log(String message) {
-          Log.v("SqlBrite", message);
-        }
-      };
+      logger = driver.defaultLogger();
     }
     logging = enabled;
   }
@@ -119,41 +233,206 @@ public final class SqlBrite implements Closeable {
     this.logger = logger;
   }
 
-  private SQLiteDatabase getReadableDatabase() {
-    SQLiteDatabase db = readableDatabase;
+  /**
+   * Receive structured events about queries, triggers, writes, and transactions, or pass null to
+   * stop. Use {@link Metrics} to aggregate them in memory.
+   */
+  public void setEventListener(@Nullable EventListener eventListener) {
+    this.eventListener = eventListener;
+  }
+
+  /**
+   * Control whether observable queries with the same tables, SQL, and arguments share a single
+   * underlying query. This only affects subscriptions made after the change.
+   * <p>
+   * When enabled, each distinct query runs at most once per change to its tables no matter how
+   * many subscribers it has. Its result is copied into memory and every call to
+   * {@link Query#run()} returns an independent cursor over that copy. The shared query and its
+   * result are released when its last subscriber unsubscribes.
+   */
+  public void setQuerySharingEnabled(boolean enabled) {
+    querySharing = enabled;
+  }
+
+  /**
+   * Control whether observable queries conflate changes for subscribers which are still handling
+   * a previous notification. This only affects subscriptions made after the change.
+   * <p>
+   * When enabled, changes to a query's tables which arrive while a subscriber is still inside
+   * {@code onNext} only mark the query dirty for that subscriber. Once it returns it receives
+   * exactly one more notification, so a burst of writes costs a slow subscriber at most one
+   * additional run of its query. With a {@linkplain #setQueryScheduler query scheduler} at most
+   * one run of each query is pending on the scheduler at a time.
+   */
+  public void setQueryConflationEnabled(boolean enabled) {
+    queryConflation = enabled;
+  }
+
+  /**
+   * Control whether observable queries skip notifications when their result has not changed. This
+   * only affects subscriptions made after the change.
+   * <p>
+   * When enabled, each change to a query's tables runs its query and copies the result into
+   * memory, hashing every value as it is copied. A subscriber is only notified when the hash
+   * differs from that of the last result it was notified of, so writes which touch a table
+   * without changing the rows a query returns cost a query but no emission. Calls to
+   * {@link Query#run()} return a cursor over the copy.
+   */
+  public void setDistinctQueryResultsEnabled(boolean enabled) {
+    distinctQueryResults = enabled;
+  }
+
+  /**
+   * Run observable queries on {@code scheduler} instead of on the thread which changed their
+   * tables, or pass null to run them synchronously. This only affects subscriptions made after the
+   * change.
+   * <p>
+   * With a scheduler each change schedules its dependent queries on the scheduler's worker where
+   * they are run and their results are copied into memory before subscribers are notified. Calls
+   * to {@link Query#run()} from subscribers then return a cursor over that copy without touching
+   * the database, so writes no longer pay for the queries they trigger. Subscribers are notified
+   * on the scheduler. Use a scheduler with a bounded number of threads, such as a
+   * {@link com.applied_duality.rxmobile_android.HandlerThreadScheduler HandlerThreadScheduler}
+   * over a dedicated {@code HandlerThread}.
+   */
+  public void setQueryScheduler(@Nullable Scheduler scheduler) {
+    queryScheduler = scheduler;
+  }
+
+  /**
+   * Set the maximum number of row IDs tracked for each table changed by a write or transaction.
+   * Changes to more rows are reported as the range between the lowest and highest changed row ID,
+   * which causes every {@linkplain #createQuery(String, RowFilter, String, String...)
+   * row-filtered query} whose rows overlap the range to be re-run.
+   */
+  public void setRowChangeLimit(int limit) {
+    if (limit < 0) throw new IllegalArgumentException("limit < 0");
+    rowChangeLimit = limit;
+  }
+
+  /**
+   * The cache of compiled statements used by {@code insert}, {@code update}, and {@code delete}.
+   * Use it to observe hit rates and to change its size.
+   */
+  public StatementCache statementCache() {
+    return statementCache;
+  }
+
+  private Driver.Database getReadableDatabase() {
+    Driver.Database db = readableDatabase;
     if (db == null) {
       synchronized (databaseLock) {
         db = readableDatabase;
         if (db == null) {
           if (logging) log("Creating readable database");
-          db = readableDatabase = helper.getReadableDatabase();
+          db = readableDatabase = driver.openReadable();
         }
       }
     }
     return db;
   }
 
-  private SQLiteDatabase getWriteableDatabase() {
-    SQLiteDatabase db = writeableDatabase;
+  private Driver.Database getWriteableDatabase() {
+    Driver.Database db = writeableDatabase;
     if (db == null) {
       synchronized (databaseLock) {
         db = writeableDatabase;
         if (db == null) {
           if (logging) log("Creating writeable database");
-          db = writeableDatabase = helper.getWritableDatabase();
+          db = writeableDatabase = driver.openWritable();
         }
       }
     }
     return db;
   }
 
-  private void sendTableTrigger(Set<String> tables) {
-    Transaction transaction = transactions.get();
+  /** The calling thread's innermost transaction, or null if it is not in a transaction. */
+  private TransactionFrame currentTransaction() {
+    return transactions.get().top();
+  }
+
+  private boolean inTransaction() {
+    return currentTransaction() != null;
+  }
+
+  // Changes inside a transaction accumulate in its frame without allocating. Outside of one a
+  // trigger is only built if something will see it.
+
+  private void sendTableTrigger(String table, RowSet rows) {
+    TransactionFrame transaction = currentTransaction();
+    if (transaction != null) {
+      transaction.addTrigger(table, rows);
+    } else if (observed(table)) {
+      dispatch(Collections.singletonMap(table, rows));
+    }
+  }
+
+  private void sendTableTrigger(String table, long rowId) {
+    TransactionFrame transaction = currentTransaction();
+    if (transaction != null) {
+      transaction.addTrigger(table, rowId);
+    } else if (observed(table)) {
+      dispatch(Collections.singletonMap(table, RowSet.of(rowId, rowChangeLimit)));
+    }
+  }
+
+  private void sendTableTrigger(Map<String, RowSet> changes) {
+    TransactionFrame transaction = currentTransaction();
     if (transaction != null) {
-      transaction.triggers.addAll(tables);
+      for (Map.Entry<String, RowSet> change : changes.entrySet()) {
+        transaction.addTrigger(change.getKey(), change.getValue());
+      }
     } else {
-      if (logging) log("TRIGGER %s", tables);
-      triggers.onNext(tables);
+      dispatch(changes);
+    }
+  }
+
+  /** True if a change to {@code table} would reach a query, the event listener, or the log. */
+  private boolean observed(String table) {
+    return logging || eventListener != null || dispatcher.hasListeners(table);
+  }
+
+  private void dispatch(Map<String, RowSet> changes) {
+    if (logging) log("TRIGGER %s", changes);
+    dispatcher.dispatch(changes, eventListener);
+  }
+
+  /**
+   * Enable write-ahead logging and run queries on a pool of up to {@code readConnections}
+   * read-only connections. Queries then run in parallel with each other and with writes, seeing
+   * the data as of the last commit. Queries made inside a transaction continue to use the
+   * transaction's connection so they see its uncommitted changes.
+   * <p>
+   * A connection is held from the start of a query until its cursor is closed. Queries which find
+   * every pooled connection in use fall back to the primary connection. Connections idle for
+   * longer than {@code idleTimeout} are closed the next time the pool is used.
+   *
+   * @throws IllegalStateException if called inside a transaction or if the database does not
+   * support write-ahead logging, such as an in-memory database.
+   * @see SQLiteDatabase#enableWriteAheadLogging()
+   */
+  public void enableWriteAheadLogging(int readConnections, long idleTimeout,
+      @NonNull TimeUnit unit) {
+    if (readConnections <= 0) throw new IllegalArgumentException("readConnections <= 0");
+    if (idleTimeout < 0) throw new IllegalArgumentException("idleTimeout < 0");
+    if (inTransaction()) {
+      throw new IllegalStateException("Cannot enable write-ahead logging in a transaction.");
+    }
+    Driver.Database db = getWriteableDatabase();
+    if (!db.enableWriteAheadLogging()) {
+      throw new IllegalStateException("Write-ahead logging is not supported by " + db);
+    }
+    if (logging) {
+      log("WAL enabled\n  readConnections: %s\n  idleTimeout: %sms", readConnections,
+          unit.toMillis(idleTimeout));
+    }
+    ReadConnectionPool previous;
+    synchronized (databaseLock) {
+      previous = readPool;
+      readPool = new ReadConnectionPool(driver, readConnections, unit.toMillis(idleTimeout));
+    }
+    if (previous != null) {
+      previous.close();
     }
   }
 
@@ -169,7 +448,9 @@ public final class SqlBrite implements Closeable {
    * is not successful, or if any of its nested transactions were not successful, then the entire
    * transaction will be rolled back when the outermost transaction is ended.
    * <p>
-   * Transactions queue up all query notifications until they have been applied.
+   * Transactions queue up all query notifications until they have been applied. Observable
+   * queries subscribed to inside a transaction emit their first query once the outermost
+   * transaction ends, whether it commits or rolls back, so it reflects committed data.
    * <p>
    * Here is the standard idiom for transactions:
    *
@@ -186,10 +467,32 @@ public final class SqlBrite implements Closeable {
    * @see SQLiteDatabase#beginTransaction()
    */
   public void beginTransaction() {
-    Transaction transaction = new Transaction(transactions.get());
-    transactions.set(transaction);
+    begin();
+  }
+
+  /**
+   * Begin a transaction like {@link #beginTransaction()} and return a handle to it. Closing the
+   * handle ends the transaction, so on API 19 and newer it can be used with try-with-resources:
+   *
+   * <pre>{@code
+   * try (Transaction transaction = db.newTransaction()) {
+   *   ...
+   *   transaction.markSuccessful();
+   * }
+   * }</pre>
+   *
+   * Handles are reused by later transactions on the same thread so beginning a transaction does
+   * not allocate. Do not use a handle after its transaction ends.
+   */
+  public Transaction newTransaction() {
+    return begin();
+  }
+
+  private TransactionFrame begin() {
+    TransactionFrame transaction = transactions.get().push(System.nanoTime());
     if (logging) log("TXN BEGIN %s", transaction);
     getWriteableDatabase().beginTransactionWithListener(transaction);
+    return transaction;
   }
 
   /**
@@ -201,7 +504,7 @@ public final class SqlBrite implements Closeable {
    * @see SQLiteDatabase#setTransactionSuccessful()
    */
   public void setTransactionSuccessful() {
-    if (logging) log("TXN SUCCESS %s", transactions.get());
+    if (logging) log("TXN SUCCESS %s", currentTransaction());
     getWriteableDatabase().setTransactionSuccessful();
   }
 
@@ -212,26 +515,93 @@ public final class SqlBrite implements Closeable {
    * @see SQLiteDatabase#endTransaction()
    */
   public void endTransaction() {
-    Transaction transaction = transactions.get();
-    if (transaction == null) {
-      throw new IllegalStateException("Not in transaction.");
-    }
-    Transaction newTransaction = transaction.parent;
-    transactions.set(newTransaction);
+    TransactionFrame transaction = transactions.get().pop();
     if (logging) log("TXN END %s", transaction);
-    getWriteableDatabase().endTransaction();
+    // The first failure is rethrown once every deferred action has run and the end is reported.
+    RuntimeException failure = null;
+    transaction.ending = true;
+    try {
+      getWriteableDatabase().endTransaction();
+    } catch (RuntimeException e) {
+      failure = e;
+    }
+    // Read the frame now. A deferred action may begin a transaction which reuses it.
+    int depth = transaction.depth;
+    long durationNanos = System.nanoTime() - transaction.startNanos;
+    boolean committed = transaction.committed;
+    try {
+      if (failure == null) {
+        transaction.dispatchCommitted();
+      }
+    } catch (RuntimeException e) {
+      failure = e;
+    } finally {
+      transaction.ending = false;
+    }
+
+    List<Runnable> deferred = transaction.deferred;
+    if (deferred != null) {
+      transaction.deferred = null;
+      for (int i = 0, size = deferred.size(); i < size; i++) {
+        try {
+          deferred.get(i).run();
+        } catch (RuntimeException e) {
+          if (failure == null) failure = e;
+        }
+      }
+    }
+
+    EventListener listener = eventListener;
+    if (listener != null) {
+      listener.transactionEnd(depth, durationNanos, committed);
+    }
+    if (failure != null) {
+      throw failure;
+    }
+  }
+
+  /**
+   * Run {@code action} once the calling thread's outermost transaction has ended, or now if the
+   * thread is not in a transaction.
+   */
+  void runOutsideTransaction(Runnable action) {
+    if (inTransaction()) {
+      transactions.get().deferUntilEnd(action);
+    } else {
+      action.run();
+    }
+  }
+
+  /**
+   * Run {@code action} when the calling thread's transaction commits, before any other transaction
+   * can begin, or now if the thread is not in a transaction. It is dropped if the transaction rolls
+   * back. {@code action} must not throw or use the database.
+   */
+  void runWhenCommitted(Runnable action) {
+    TransactionFrame transaction = currentTransaction();
+    if (transaction != null) {
+      transaction.addCommitAction(action);
+    } else {
+      action.run();
+    }
   }
 
   /**
-   * Close the underlying {@link SQLiteOpenHelper} and remove cached readable and writeable
-   * databases. This does not prevent existing observables from retaining existing references as
-   * well as attempting to create new ones for new subscriptions.
+   * Close the underlying {@link SQLiteOpenHelper} or JDBC connection and remove cached readable and writeable
+   * databases and compiled statements. This does not prevent existing observables from retaining
+   * existing references as well as attempting to create new ones for new subscriptions.
    */
   @Override public void close() throws IOException {
     synchronized (databaseLock) {
+      statementCache.evictAll();
+      preparedGeneration.incrementAndGet();
+      if (readPool != null) {
+        readPool.close();
+        readPool = null;
+      }
       readableDatabase = null;
       writeableDatabase = null;
-      helper.close();
+      driver.close();
     }
   }
 
@@ -245,23 +615,48 @@ public final class SqlBrite implements Closeable {
    * {@code update}, and {@code delete} methods of this class. Unsubscribe when you no longer want
    * updates to a query.
    * <p>
+   * A query subscribed to inside a transaction is first notified when the outermost transaction
+   * ends. Changes made by the transaction do not notify it separately.
+   * <p>
    * <b>Warning:</b> this method does not perform the query! Only by subscribing to the returned
    * {@link Observable} will the operation occur.
    *
    * @see SQLiteDatabase#rawQuery(String, String[])
    */
-  public Observable<Query> createQuery(@NonNull final String table, @NonNull String sql,
+  public Observable<Query> createQuery(@NonNull String table, @NonNull String sql,
       @NonNull String... args) {
-    Predicate<Set<String>> tableFilter = new Predicate<Set<String>>() {
-      @Override public boolean test(Set<String> triggers) {
-        return triggers.contains(table);
-      }
+    return createQuery(Collections.singleton(table), null, sql, args, null);
+  }
 
-      @Override public String toString() {
-        return table;
-      }
-    };
-    return createQuery(tableFilter, sql, args);
+  /**
+   * See {@link #createQuery(String, String, String...)} for usage. This overload binds each of
+   * {@code args} with its own type instead of as a string, so re-running the query converts
+   * nothing. {@code args} is copied so the holder may be reused once this returns.
+   *
+   * @see SQLiteDatabase#rawQueryWithFactory
+   */
+  public Observable<Query> createQuery(@NonNull String table, @NonNull String sql,
+      @NonNull QueryArgs args) {
+    return createQuery(Collections.singleton(table), null, sql, NO_ARGS, args.copy());
+  }
+
+  /**
+   * See {@link #createQuery(String, String, String...)} for usage. This overload only notifies
+   * subscribers when a change to {@code table} affects rows which pass {@code rowFilter}. Use it
+   * for queries whose result depends on a known subset of rows, such as a single row by ID.
+   * <p>
+   * Inserts report exactly the inserted row. Updates and deletes determine the rows which match
+   * their where clause before changing them, but only while a row-filtered query of the table is
+   * subscribed. Writes whose rows cannot be known, such as those using
+   * {@link SQLiteDatabase#CONFLICT_REPLACE CONFLICT_REPLACE} or updates which assign a row ID,
+   * notify every subscriber.
+   *
+   * @see SQLiteDatabase#rawQuery(String, String[])
+   */
+  public Observable<Query> createQuery(@NonNull String table, @NonNull RowFilter rowFilter,
+      @NonNull String sql, @NonNull String... args) {
+    if (rowFilter == null) throw new NullPointerException("rowFilter == null");
+    return createQuery(Collections.singleton(table), rowFilter, sql, args, null);
   }
 
   /**
@@ -270,61 +665,141 @@ public final class SqlBrite implements Closeable {
    *
    * @see SQLiteDatabase#rawQuery(String, String[])
    */
-  public Observable<Query> createQuery(@NonNull final Iterable<String> tables, @NonNull String sql,
+  public Observable<Query> createQuery(@NonNull Iterable<String> tables, @NonNull String sql,
       @NonNull String... args) {
-    Predicate<Set<String>> tableFilter = new Predicate<Set<String>>() {
-      @Override public boolean test(Set<String> triggers) {
-        for (String table : tables) {
-          if (triggers.contains(table)) {
-            return true;
-          }
-        }
-        return false;
-      }
-
-      @Override public String toString() {
-        return tables.toString();
-      }
-    };
-    return createQuery(tableFilter, sql, args);
+    Set<String> tableSet = new LinkedHashSet<>();
+    for (String table : tables) {
+      tableSet.add(table);
+    }
+    return createQuery(tableSet, null, sql, args, null);
   }
 
-  private Observable<Query> createQuery(final Predicate<Set<String>> tableFilter,
-      final String sql, final String... args) {
-    if (transactions.get() != null) {
-      throw new IllegalStateException("Cannot create observable query in transaction. "
-          + "Use query() for a query inside a transaction.");
-    }
+  /**
+   * See {@link #createQuery(String, String, String...)} for usage. This overload observes the
+   * tables which {@code sql} reads, as determined by SQLite when it compiles the query. Tables
+   * referenced through joins, sub-selects, and views are included and no others. The tables of
+   * each SQL string are determined once and cached.
+   * <p>
+   * Unlike the other overloads, this one compiles {@code sql} immediately and throws if it is
+   * invalid. Queries of virtual tables or attached databases are not supported; pass their tables
+   * explicitly.
+   *
+   * @see SQLiteDatabase#rawQuery(String, String[])
+   */
+  public Observable<Query> createQueryForSql(@NonNull String sql, @NonNull String... args) {
+    return createQuery(tableResolver.tables(getReadableDatabase(), sql, args), null, sql, args,
+        null);
+  }
 
-    final Query query = new Query() {
-      @Override public Cursor run() {
-        if (transactions.get() != null) {
-          throw new IllegalStateException("Cannot execute observable query in a transaction.");
+  /** Either {@code args} or, if it is non-null, {@code typedArgs} is bound. */
+  private Observable<Query> createQuery(final Set<String> tables, final RowFilter rowFilter,
+      final String sql, final String[] args, final QueryArgs typedArgs) {
+    return Observable.create(new Consumer<Observer<? super Query>>() {
+      @Override public void accept(final Observer<? super Query> observer) {
+        final Scheduler scheduler = queryScheduler;
+        final boolean conflate = queryConflation;
+        final boolean distinct = distinctQueryResults;
+        final ObservedQuery query;
+        final ObservedQuery.Delivery delivery;
+        if (querySharing) {
+          final QueryKey key = new QueryKey(tables, rowFilter, sql, args, typedArgs, scheduler,
+              conflate, distinct);
+          synchronized (sharedQueries) {
+            ObservedQuery shared = sharedQueries.get(key);
+            if (shared == null) {
+              shared = new ObservedQuery(tables, rowFilter, sql, args, typedArgs, scheduler, true,
+                  conflate, distinct);
+              sharedQueries.put(key, shared);
+            }
+            delivery = shared.addObserver(observer);
+            query = shared;
+          }
+          observer.add(new Subscription(new Runnable() {
+            @Override public void run() {
+              synchronized (sharedQueries) {
+                if (query.removeObserver(delivery)) {
+                  sharedQueries.remove(key);
+                }
+              }
+            }
+          }));
+        } else {
+          query = new ObservedQuery(tables, rowFilter, sql, args, typedArgs, scheduler, false,
+              conflate, distinct);
+          delivery = query.addObserver(observer);
+          observer.add(new Subscription(new Runnable() {
+            @Override public void run() {
+              query.removeObserver(delivery);
+            }
+          }));
         }
-        return getReadableDatabase().rawQuery(sql, args);
-      }
 
-      @Override public String toString() {
-        return sql;
+        // Immediately execute the query for initial value.
+        query.emitInitial(delivery);
       }
-    };
+    });
+  }
 
-    return triggers.asObservable() //
-        .filter(tableFilter) // Only trigger on tables we care about.
-        .startWith(INITIAL_TRIGGER) // Immediately execute the query for initial value.
-        .map(new Function<Set<String>, Query>() {
-          @Override public Query apply(Set<String> trigger) {
-            if (transactions.get() != null) {
-              throw new IllegalStateException(
-                  "Cannot subscribe to observable query in a transaction.");
-            }
-            if (logging) {
-              log("QUERY\n  trigger: %s\n  tables: %s\n  sql: %s\n  args: %s", trigger, tableFilter,
-                  sql, Arrays.toString(args));
+  /**
+   * Create a {@link PagedQuery} over the result of {@code sql} which loads {@code pageSize} rows
+   * at a time and is reloaded when {@code table} changes. Pages are loaded and delivered on
+   * {@code scheduler}, which should run tasks one at a time in order.
+   * <p>
+   * {@code sql} must not have an {@code ORDER BY} or {@code LIMIT} clause. Its result is ordered
+   * by {@code keyColumn} instead.
+   *
+   * @param keyColumn an integer column of the result whose values are unique, such as
+   * {@code _id} or a timestamp. An index on it makes loading a page fast no matter where it is.
+   * @param descending true to order the result by decreasing key, such as newest first.
+   */
+  public PagedQuery createPagedQuery(@NonNull String table, @NonNull String keyColumn,
+      boolean descending, int pageSize, @NonNull Scheduler scheduler, @NonNull String sql,
+      @NonNull String... args) {
+    if (keyColumn == null) throw new NullPointerException("keyColumn == null");
+    if (scheduler == null) throw new NullPointerException("scheduler == null");
+    if (pageSize <= 0) throw new IllegalArgumentException("pageSize <= 0");
+    return new PagedQuery(this, table, keyColumn, descending, pageSize, scheduler, sql, args);
+  }
+
+  /**
+   * Create an observable which emits the {@link Aggregate} of {@code column} over the rows of
+   * {@code table} which match {@code whereClause}, initially and whenever it changes. Pass a null
+   * column to only count rows.
+   * <p>
+   * Each subscriber seeds the aggregate with SQLite's aggregate functions and keeps only the
+   * aggregate itself. Like {@linkplain #createQuery(String, RowFilter, String, String...)
+   * row-filtered queries} this makes updates and deletes of {@code table} determine the rows they
+   * change while subscribed, and inserts run in a transaction. Each write then reads only its rows,
+   * before and after, and the difference is applied when it commits. Writes whose rows cannot be
+   * known, and removing the minimum or maximum, run the aggregate again. Aggregates are emitted on
+   * the {@linkplain #setQueryScheduler query scheduler} if there is one. Subscribing inside a
+   * transaction computes the first aggregate once the transaction ends.
+   * <p>
+   * {@code whereClause} must only refer to columns of {@code table}.
+   */
+  public Observable<Aggregate> createAggregateQuery(@NonNull final String table,
+      @Nullable final String column, @Nullable final String whereClause,
+      @Nullable final String... whereArgs) {
+    if (table == null) throw new NullPointerException("table == null");
+    return Observable.create(new Consumer<Observer<? super Aggregate>>() {
+      @Override public void accept(final Observer<? super Aggregate> observer) {
+        final AggregateQuery query = new AggregateQuery(SqlBrite.this, table, column,
+            whereClause, whereArgs, observer, queryScheduler);
+        observer.add(new Subscription(new Runnable() {
+          @Override public void run() {
+            query.stop();
+          }
+        }));
+        // Seeding inside a transaction would count writes which may yet roll back.
+        runOutsideTransaction(new Runnable() {
+          @Override public void run() {
+            if (!observer.isUnsubscribed()) {
+              query.start();
             }
-            return query;
           }
         });
+      }
+    });
   }
 
   /**
@@ -334,7 +809,157 @@ public final class SqlBrite implements Closeable {
    */
   public Cursor query(@NonNull String sql, @NonNull String... args) {
     if (logging) log("QUERY\n  sql: %s\n  args: %s", sql, Arrays.toString(args));
-    return getReadableDatabase().rawQuery(sql, args);
+    return read(sql, args);
+  }
+
+  /**
+   * Runs the provided SQL binding each of {@code args} with its own type and returns a
+   * {@link Cursor} over the result set. The holder may be reused once this returns.
+   *
+   * @see SQLiteDatabase#rawQueryWithFactory
+   */
+  public Cursor query(@NonNull String sql, @NonNull QueryArgs args) {
+    if (args == null) throw new NullPointerException("args == null");
+    if (logging) log("QUERY\n  sql: %s\n  args: %s", sql, args);
+    return read(sql, NO_ARGS, args);
+  }
+
+  /**
+   * Create an observable which runs {@code sql} in chunks of at most {@code chunkSize} rows and
+   * emits a cursor over each chunk, in increasing order of {@code keyColumn}, then completes. Use
+   * it to scan results too large to hold in memory at once.
+   * <p>
+   * Each chunk is a separate query which continues after the last key of the previous chunk. Its
+   * rows are copied into memory and the query finishes before the chunk is emitted, so no
+   * connection or lock is held between chunks and writers may run while subscribers process them.
+   * A chunk also ends early once its values exceed roughly {@code maxChunkBytes}. Unsubscribing
+   * stops the scan before the next chunk is queried.
+   * <p>
+   * Chunks are queried on the subscribing thread. Subscribers are responsible for closing each
+   * cursor.
+   *
+   * @param keyColumn an integer column of the result whose values are unique, such as
+   * {@code _id}. An index on it keeps every chunk as fast as the first.
+   * @param sql a query without an {@code ORDER BY} or {@code LIMIT} clause.
+   */
+  public Observable<Cursor> streamRows(@NonNull final String keyColumn, final int chunkSize,
+      final long maxChunkBytes, @NonNull final String sql, @NonNull final String... args) {
+    if (keyColumn == null) throw new NullPointerException("keyColumn == null");
+    if (chunkSize <= 0) throw new IllegalArgumentException("chunkSize <= 0");
+    if (maxChunkBytes <= 0) throw new IllegalArgumentException("maxChunkBytes <= 0");
+    final String firstChunkSql = PagedQuery.keysetSql(sql, keyColumn, false, true);
+    final String nextChunkSql = PagedQuery.keysetSql(sql, keyColumn, false, false);
+
+    return Observable.create(new Consumer<Observer<? super Cursor>>() {
+      @Override public void accept(Observer<? super Cursor> observer) {
+        String[] chunkArgs = Arrays.copyOf(args, args.length + 2);
+        chunkArgs[chunkArgs.length - 1] = Integer.toString(chunkSize);
+        long lastKey = Long.MIN_VALUE;
+        boolean first = true;
+        try {
+          while (!observer.isUnsubscribed()) {
+            chunkArgs[chunkArgs.length - 2] = Long.toString(lastKey);
+            if (logging) {
+              log("QUERY CHUNK\n  sql: %s\n  args: %s\n  after: %s", sql, Arrays.toString(args),
+                  first ? "<start>" : lastKey);
+            }
+            Cursor cursor = read(first ? firstChunkSql : nextChunkSql, chunkArgs);
+            first = false;
+            CursorSnapshot.Builder chunk;
+            boolean exhausted;
+            try {
+              int keyIndex = cursor.getColumnIndexOrThrow(keyColumn);
+              chunk = new CursorSnapshot.Builder(cursor.getColumnNames(), cursor.getCount());
+              while (cursor.moveToNext()) {
+                chunk.addRow(cursor);
+                lastKey = cursor.getLong(keyIndex);
+                if (chunk.byteCount() >= maxChunkBytes) break;
+              }
+              // Fewer rows than requested means the query reached the end of the result.
+              exhausted = cursor.isAfterLast() && cursor.getCount() < chunkSize;
+            } finally {
+              cursor.close();
+            }
+            CursorSnapshot rows = chunk.build();
+            if (rows.count() > 0 && !observer.isUnsubscribed()) {
+              Cursor rowsCursor = rows.newCursor();
+              rows.release();
+              observer.onNext(rowsCursor);
+            }
+            if (exhausted || rows.count() == 0) break;
+          }
+        } catch (RuntimeException e) {
+          observer.onError(e);
+          return;
+        }
+        if (!observer.isUnsubscribed()) {
+          observer.onCompleted();
+        }
+      }
+    });
+  }
+
+  /** True if {@code table} has row IDs, meaning it was not created {@code WITHOUT ROWID}. */
+  boolean hasRowId(String table) {
+    return rowIdResolver.hasRowId(getWriteableDatabase(), table);
+  }
+
+  /**
+   * Run a read on a pooled connection if possible. Reads inside a transaction always use the
+   * transaction's connection so that they see its changes.
+   */
+  Cursor read(String sql, String[] args) {
+    return read(sql, args, null);
+  }
+
+  /** Like {@link #read(String, String[])}, binding {@code typedArgs} instead if it is non-null. */
+  Cursor read(String sql, String[] args, QueryArgs typedArgs) {
+    return read(sql, args, typedArgs, null);
+  }
+
+  /**
+   * Like {@link #read(String, String[], QueryArgs)}. Reads which do not use a pooled connection run
+   * the query prepared by {@code owner} if it is non-null.
+   */
+  private Cursor read(String sql, String[] args, QueryArgs typedArgs, ObservedQuery owner) {
+    EventListener listener = eventListener;
+    if (listener == null) {
+      return open(sql, args, typedArgs, owner);
+    }
+    long start = System.nanoTime();
+    Cursor cursor = open(sql, args, typedArgs, owner);
+    int rowCount = cursor.getCount(); // Runs the query.
+    listener.queryEnd(sql, System.nanoTime() - start, rowCount);
+    return cursor;
+  }
+
+  private Cursor open(String sql, String[] args, QueryArgs typedArgs, ObservedQuery owner) {
+    ReadConnectionPool pool = readPool;
+    if (pool != null && !inTransaction()) {
+      Cursor cursor = pool.query(sql, args, typedArgs);
+      if (cursor != null) {
+        return cursor;
+      }
+    }
+    Driver.Database db = getReadableDatabase();
+    Driver.PreparedQuery prepared = owner != null ? owner.prepared(db) : null;
+    if (prepared != null) {
+      return prepared.run(args, typedArgs);
+    }
+    return typedArgs != null ? db.rawQueryTyped(sql, typedArgs) : db.rawQuery(sql, args);
+  }
+
+  /**
+   * Create a {@link WriteQueue} which applies writes on its own thread in transactions of up to
+   * {@code maxBatchSize} writes. A batch waits at most {@code maxDelay} after its first write for
+   * more to arrive. {@linkplain WriteQueue#close() Close} it to apply any pending writes and stop
+   * its thread.
+   */
+  public WriteQueue createWriteQueue(int maxBatchSize, long maxDelay, @NonNull TimeUnit unit) {
+    if (maxBatchSize <= 0) throw new IllegalArgumentException("maxBatchSize <= 0");
+    if (maxDelay < 0) throw new IllegalArgumentException("maxDelay < 0");
+    if (unit == null) throw new NullPointerException("unit == null");
+    return new WriteQueue(this, maxBatchSize, unit.toNanos(maxDelay));
   }
 
   /**
@@ -353,57 +978,248 @@ public final class SqlBrite implements Closeable {
    */
   public long insert(@NonNull String table, @NonNull ContentValues values,
       @ConflictAlgorithm int conflictAlgorithm) {
-    SQLiteDatabase db = getWriteableDatabase();
-
     if (logging) {
       log("INSERT\n  table: %s\n  values: %s\n  conflictAlgorithm: %s", table, values,
           conflictString(conflictAlgorithm));
     }
-    long rowId = db.insertWithOnConflict(table, null, values, conflictAlgorithm);
+    EventListener listener = eventListener;
+    long start = listener != null ? System.nanoTime() : 0L;
+    // Change listeners are shown the new row inside the transaction which inserts it. A replace
+    // may also delete rows with other IDs, so its rows are not known.
+    boolean showChange = conflictAlgorithm != CONFLICT_REPLACE
+        && dispatcher.hasChangeListeners(table);
+    if (showChange) beginTransaction();
+    try {
+      StatementCache.Entry entry =
+          acquireStatement(statementCache.insertKey(table, values.keySet(), conflictAlgorithm));
+      long rowId;
+      try {
+        bindValues(entry, values);
+        rowId = entry.statement.executeInsert();
+      } finally {
+        statementCache.release(entry);
+      }
 
-    if (logging) log("INSERT id: %s", rowId);
+      if (logging) log("INSERT id: %s", rowId);
+      if (listener != null) {
+        listener.writeEnd(table, System.nanoTime() - start, rowId != -1 ? 1 : 0);
+      }
 
-    if (rowId != -1) {
-      // Only send a table trigger if the insert was successful.
-      sendTableTrigger(Collections.singleton(table));
+      if (rowId != -1) {
+        // Only send a table trigger if the insert was successful.
+        if (conflictAlgorithm == CONFLICT_REPLACE) {
+          sendTableTrigger(table, RowSet.ALL_ROWS);
+        } else {
+          if (showChange) dispatcher.afterChange(table, RowSet.of(rowId, rowChangeLimit));
+          sendTableTrigger(table, rowId);
+        }
+      }
+      if (showChange) setTransactionSuccessful();
+      return rowId;
+    } finally {
+      if (showChange) endTransaction();
     }
-    return rowId;
   }
 
   /**
-   * Delete rows from the specified {@code table} and notify any subscribed queries. This method
-   * will not trigger a notification if no rows were deleted.
+   * Insert rows into the specified {@code table} and notify any subscribed queries once.
+   * <p>
+   * All rows are inserted in a single transaction using one compiled statement for each distinct
+   * set of columns. The returned array holds the row ID of each row in iteration order, or -1 for
+   * rows which were not inserted. No notification is sent if no rows were inserted.
    *
-   * @see SQLiteDatabase#delete(String, String, String[])
+   * @see SQLiteDatabase#insertWithOnConflict(String, String, ContentValues, int)
    */
-  public int delete(@NonNull String table, @Nullable String whereClause,
-      @Nullable String... whereArgs) {
-    SQLiteDatabase db = getWriteableDatabase();
-
-    if (logging) {
-      log("DELETE\n  table: %s\n  whereClause: %s\n  whereArgs: %s", table, whereClause,
-          Arrays.toString(whereArgs));
-    }
-    int rows = db.delete(table, whereClause, whereArgs);
-
-    if (logging) log("DELETE affected %s %s", rows, rows != 1 ? "rows" : "row");
+  public long[] insertAll(@NonNull String table, @NonNull Iterable<ContentValues> values,
+      @ConflictAlgorithm int conflictAlgorithm) {
+    long[] rowIds = new long[values instanceof Collection ? ((Collection<?>) values).size() : 16];
+    int count = 0;
 
-    if (rows > 0) {
-      // Only send a table trigger if rows were affected.
-      sendTableTrigger(Collections.singleton(table));
+    beginTransaction();
+    BatchInsert batch = new BatchInsert(table, conflictAlgorithm);
+    try {
+      for (ContentValues row : values) {
+        long rowId = batch.insert(row);
+        if (count == rowIds.length) {
+          rowIds = Arrays.copyOf(rowIds, Math.max(16, count * 2));
+        }
+        rowIds[count++] = rowId;
+      }
+      batch.finish();
+      setTransactionSuccessful();
+    } finally {
+      batch.close();
+      endTransaction();
     }
-    return rows;
+    return count == rowIds.length ? rowIds : Arrays.copyOf(rowIds, count);
   }
 
   /**
-   * Update rows in the specified {@code table} and notify any subscribed queries. This method
-   * will not trigger a notification if no rows were updated.
+   * Insert rows into the specified {@code table} and notify any subscribed queries once. This
+   * variant consumes {@code values} one row at a time and does not retain row IDs which makes it
+   * suitable for large imports. See {@link #insertAll(String, Iterable, int)} for details.
    *
-   * @see SQLiteDatabase#update(String, ContentValues, String, String[])
+   * @return the number of rows which were inserted.
    */
-  public int update(@NonNull String table, @NonNull ContentValues values,
-      @Nullable String whereClause, @Nullable String... whereArgs) {
-    return update(table, values, CONFLICT_NONE, whereClause, whereArgs);
+  public int insertAll(@NonNull String table, @NonNull Iterator<ContentValues> values,
+      @ConflictAlgorithm int conflictAlgorithm) {
+    beginTransaction();
+    BatchInsert batch = new BatchInsert(table, conflictAlgorithm);
+    try {
+      while (values.hasNext()) {
+        batch.insert(values.next());
+      }
+      batch.finish();
+      setTransactionSuccessful();
+    } finally {
+      batch.close();
+      endTransaction();
+    }
+    return batch.inserted;
+  }
+
+  /**
+   * Insert a row into the specified {@code table} or, if it conflicts with an existing row on
+   * {@code conflictColumns}, update that row instead. Any subscribed queries are notified once if
+   * a row was inserted or updated.
+   * <p>
+   * This runs a single {@code INSERT ... ON CONFLICT DO UPDATE} statement on SQLite 3.24.0 and
+   * newer. Older versions run an {@code UPDATE} matching the conflict columns followed by an
+   * {@code INSERT} if no row matched, both in one transaction.
+   *
+   * @param conflictColumns the columns of a unique index or primary key. Each must have a value.
+   * @param updateColumns the columns of an existing row to overwrite with their new values, or
+   * null for every column in {@code values} except the conflict columns. If empty, a conflicting
+   * row is left unchanged.
+   * @return 1 if a row was inserted or updated, or 0 if a conflicting row was left unchanged.
+   */
+  public int upsert(@NonNull String table, @NonNull ContentValues values,
+      @NonNull String[] conflictColumns, @Nullable String[] updateColumns) {
+    BatchUpsert batch = new BatchUpsert(table, conflictColumns, updateColumns);
+    // Without native support the update and insert must be atomic.
+    boolean transaction = !batch.isNative();
+    if (transaction) beginTransaction();
+    try {
+      batch.upsert(values);
+      batch.finish();
+      if (transaction) setTransactionSuccessful();
+    } finally {
+      batch.close();
+      if (transaction) endTransaction();
+    }
+    return batch.changed;
+  }
+
+  /**
+   * Insert or update rows in the specified {@code table} and notify any subscribed queries once.
+   * All rows are written in a single transaction using one compiled statement for each distinct
+   * set of columns. See {@link #upsert(String, ContentValues, String[], String[])} for details.
+   *
+   * @return the number of rows which were inserted or updated.
+   */
+  public int upsertAll(@NonNull String table, @NonNull Iterable<ContentValues> values,
+      @NonNull String[] conflictColumns, @Nullable String[] updateColumns) {
+    beginTransaction();
+    BatchUpsert batch = new BatchUpsert(table, conflictColumns, updateColumns);
+    try {
+      for (ContentValues row : values) {
+        batch.upsert(row);
+      }
+      batch.finish();
+      setTransactionSuccessful();
+    } finally {
+      batch.close();
+      endTransaction();
+    }
+    return batch.changed;
+  }
+
+  /** True if the database understands {@code INSERT ... ON CONFLICT DO UPDATE}. */
+  private boolean supportsUpsert() {
+    int support = upsertSupport;
+    if (support == 0) {
+      String version;
+      Cursor cursor = getReadableDatabase().rawQuery("SELECT sqlite_version()", null);
+      try {
+        version = cursor.moveToFirst() ? cursor.getString(0) : "";
+      } finally {
+        cursor.close();
+      }
+      support = isAtLeast(version, 3, 24) ? 1 : -1;
+      upsertSupport = support;
+    }
+    return support > 0;
+  }
+
+  /** True if {@code version}, such as "3.22.0", is at least {@code major.minor}. */
+  static boolean isAtLeast(String version, int major, int minor) {
+    String[] parts = version.split("\\.");
+    try {
+      int actualMajor = Integer.parseInt(parts[0]);
+      int actualMinor = parts.length > 1 ? Integer.parseInt(parts[1]) : 0;
+      return actualMajor > major || actualMajor == major && actualMinor >= minor;
+    } catch (NumberFormatException e) {
+      return false;
+    }
+  }
+
+  /**
+   * Delete rows from the specified {@code table} and notify any subscribed queries. This method
+   * will not trigger a notification if no rows were deleted.
+   *
+   * @see SQLiteDatabase#delete(String, String, String[])
+   */
+  public int delete(@NonNull String table, @Nullable String whereClause,
+      @Nullable String... whereArgs) {
+    if (logging) {
+      log("DELETE\n  table: %s\n  whereClause: %s\n  whereArgs: %s", table, whereClause,
+          Arrays.toString(whereArgs));
+    }
+    EventListener listener = eventListener;
+    long start = listener != null ? System.nanoTime() : 0L;
+    boolean captureRows = dispatcher.hasRowFilters(table);
+    if (captureRows) beginTransaction();
+    try {
+      RowSet changed = captureRows
+          ? selectRowIds(table, whereClause, whereArgs)
+          : RowSet.ALL_ROWS;
+      boolean showChange = changed.isExact() && dispatcher.hasChangeListeners(table);
+      if (showChange) dispatcher.beforeChange(table, changed);
+
+      StatementCache.Entry entry =
+          acquireStatement(statementCache.deleteKey(table, whereClause));
+      int rows;
+      try {
+        bindWhereArgs(entry.statement, 1, whereArgs);
+        rows = entry.statement.executeUpdateDelete();
+      } finally {
+        statementCache.release(entry);
+      }
+      if (showChange) dispatcher.afterChange(table, changed);
+
+      if (logging) log("DELETE affected %s %s", rows, rows != 1 ? "rows" : "row");
+      if (listener != null) listener.writeEnd(table, System.nanoTime() - start, rows);
+
+      if (rows > 0) {
+        // Only send a table trigger if rows were affected.
+        sendTableTrigger(table, changed);
+      }
+      if (captureRows) setTransactionSuccessful();
+      return rows;
+    } finally {
+      if (captureRows) endTransaction();
+    }
+  }
+
+  /**
+   * Update rows in the specified {@code table} and notify any subscribed queries. This method
+   * will not trigger a notification if no rows were updated.
+   *
+   * @see SQLiteDatabase#update(String, ContentValues, String, String[])
+   */
+  public int update(@NonNull String table, @NonNull ContentValues values,
+      @Nullable String whereClause, @Nullable String... whereArgs) {
+    return update(table, values, CONFLICT_NONE, whereClause, whereArgs);
   }
 
   /**
@@ -415,24 +1231,217 @@ public final class SqlBrite implements Closeable {
   public int update(@NonNull String table, @NonNull ContentValues values,
       @ConflictAlgorithm int conflictAlgorithm, @Nullable String whereClause,
       @Nullable String... whereArgs) {
-    SQLiteDatabase db = getWriteableDatabase();
-
     if (logging) {
       log("UPDATE\n  table: %s\n  values: %s\n  whereClause: %s\n  whereArgs: %s\n  conflictAlgorithm: %s",
           table, values, whereClause, Arrays.toString(whereArgs),
           conflictString(conflictAlgorithm));
     }
-    int rows = db.updateWithOnConflict(table, values, whereClause, whereArgs, conflictAlgorithm);
+    EventListener listener = eventListener;
+    long start = listener != null ? System.nanoTime() : 0L;
+    // A replace may delete conflicting rows and assigning a row ID moves the row, so neither
+    // change can be described by the rows which matched the where clause.
+    boolean captureRows = conflictAlgorithm != CONFLICT_REPLACE
+        && dispatcher.hasRowFilters(table)
+        && !rowIdResolver.assignsRowId(getWriteableDatabase(), table, values.keySet());
+    if (captureRows) beginTransaction();
+    try {
+      RowSet changed = captureRows
+          ? selectRowIds(table, whereClause, whereArgs)
+          : RowSet.ALL_ROWS;
+      boolean showChange = changed.isExact() && dispatcher.hasChangeListeners(table);
+      if (showChange) dispatcher.beforeChange(table, changed);
 
-    if (logging) log("UPDATE affected %s %s", rows, rows != 1 ? "rows" : "row");
+      StatementCache.Entry entry = acquireStatement(
+          statementCache.updateKey(table, values.keySet(), conflictAlgorithm, whereClause));
+      int rows;
+      try {
+        bindValues(entry, values);
+        bindWhereArgs(entry.statement, entry.key.columns.length + 1, whereArgs);
+        rows = entry.statement.executeUpdateDelete();
+      } finally {
+        statementCache.release(entry);
+      }
+      if (showChange) dispatcher.afterChange(table, changed);
+
+      if (logging) log("UPDATE affected %s %s", rows, rows != 1 ? "rows" : "row");
+      if (listener != null) listener.writeEnd(table, System.nanoTime() - start, rows);
+
+      if (rows > 0) {
+        // Only send a table trigger if rows were affected.
+        sendTableTrigger(table, changed);
+      }
+      if (captureRows) setTransactionSuccessful();
+      return rows;
+    } finally {
+      if (captureRows) endTransaction();
+    }
+  }
+
+  /**
+   * Execute a single {@code INSERT}, {@code UPDATE}, or {@code DELETE} statement which may change
+   * {@code tables}, such as {@code INSERT INTO ... SELECT} or a delete with a sub-query, and notify
+   * any subscribed queries of those tables. This method will not trigger a notification if no
+   * rows were changed.
+   * <p>
+   * Arguments are bound by type: numbers as integers or floats, byte arrays as blobs, null as
+   * null, and anything else as its string.
+   *
+   * @return the number of rows inserted, updated, or deleted.
+   * @see SQLiteDatabase#execSQL(String, Object[])
+   */
+  public int executeUpdateDelete(@NonNull Set<String> tables, @NonNull String sql,
+      @NonNull Object... args) {
+    if (logging) {
+      log("EXECUTE\n  tables: %s\n  sql: %s\n  args: %s", tables, sql, Arrays.toString(args));
+    }
+    EventListener listener = eventListener;
+    long start = listener != null ? System.nanoTime() : 0L;
+    int rows = executeStatement(sql, args);
+
+    if (logging) log("EXECUTE affected %s %s", rows, rows != 1 ? "rows" : "row");
+    if (listener != null) {
+      long durationNanos = System.nanoTime() - start;
+      for (String table : tables) {
+        listener.writeEnd(table, durationNanos, rows);
+      }
+    }
 
     if (rows > 0) {
       // Only send a table trigger if rows were affected.
-      sendTableTrigger(Collections.singleton(table));
+      sendTableTrigger(allRows(tables));
     }
     return rows;
   }
 
+  /**
+   * Execute a single statement which is not a query, such as a schema change, and notify any
+   * subscribed queries of {@code tables}. SQLite does not report changes for all statements so
+   * the notification is always sent. Pass an empty set for statements which change no data.
+   * <p>
+   * Compiled statements and the tables of queries from {@link #createQueryForSql} are discarded
+   * after a {@code CREATE}, {@code ALTER}, or {@code DROP} statement since they may refer to the
+   * old schema.
+   *
+   * @see SQLiteDatabase#execSQL(String, Object[])
+   */
+  public void execute(@NonNull Set<String> tables, @NonNull String sql, @NonNull Object... args) {
+    if (logging) {
+      log("EXECUTE\n  tables: %s\n  sql: %s\n  args: %s", tables, sql, Arrays.toString(args));
+    }
+    executeStatement(sql, args);
+    if (changesSchema(sql)) {
+      statementCache.evictAll();
+      tableResolver.evictAll();
+      rowIdResolver.evictAll();
+      preparedGeneration.incrementAndGet();
+    }
+    if (!tables.isEmpty()) {
+      sendTableTrigger(allRows(tables));
+    }
+  }
+
+  private int executeStatement(String sql, Object[] args) {
+    Driver.Statement statement = getWriteableDatabase().compileStatement(sql);
+    try {
+      if (args != null) {
+        for (int i = 0; i < args.length; i++) {
+          statement.bind(i + 1, args[i]);
+        }
+      }
+      return statement.executeUpdateDelete();
+    } finally {
+      statement.close();
+    }
+  }
+
+  private static boolean changesSchema(String sql) {
+    String trimmed = sql.trim();
+    return startsWithKeyword(trimmed, "CREATE")
+        || startsWithKeyword(trimmed, "ALTER")
+        || startsWithKeyword(trimmed, "DROP");
+  }
+
+  private static boolean startsWithKeyword(String sql, String keyword) {
+    return sql.regionMatches(true, 0, keyword, 0, keyword.length())
+        && (sql.length() == keyword.length()
+            || !Character.isLetterOrDigit(sql.charAt(keyword.length())));
+  }
+
+  /** A copy of {@code trigger} which may be kept after it has been dispatched. */
+  private static Map<String, RowSet> copyOf(Map<String, RowSet> trigger) {
+    if (trigger.size() == 1) {
+      Map.Entry<String, RowSet> change = trigger.entrySet().iterator().next();
+      return Collections.singletonMap(change.getKey(), change.getValue().copy());
+    }
+    Map<String, RowSet> copy = new LinkedHashMap<>();
+    for (Map.Entry<String, RowSet> change : trigger.entrySet()) {
+      copy.put(change.getKey(), change.getValue().copy());
+    }
+    return copy;
+  }
+
+  private static Map<String, RowSet> allRows(Set<String> tables) {
+    Map<String, RowSet> changes = new LinkedHashMap<>();
+    for (String table : tables) {
+      changes.put(table, RowSet.ALL_ROWS);
+    }
+    return changes;
+  }
+
+  /**
+   * Query the IDs of the rows of {@code table} which match {@code whereClause}. Reads at most one
+   * more row than the row change limit and reports every row if there are more, or if the table
+   * has no row IDs.
+   */
+  private RowSet selectRowIds(String table, String whereClause, String[] whereArgs) {
+    Driver.Database db = getWriteableDatabase();
+    if (!rowIdResolver.hasRowId(db, table)) {
+      return RowSet.ALL_ROWS;
+    }
+    int limit = rowChangeLimit;
+    String sql = "SELECT _rowid_ FROM " + table;
+    if (whereClause != null && whereClause.length() > 0) {
+      sql += " WHERE " + whereClause;
+    }
+    sql += " LIMIT " + (limit + 1);
+    RowSet rows = new RowSet(limit);
+    Cursor cursor = db.rawQuery(sql, whereArgs);
+    try {
+      if (cursor.getCount() > limit) {
+        return RowSet.ALL_ROWS;
+      }
+      while (cursor.moveToNext()) {
+        rows.add(cursor.getLong(0));
+      }
+    } finally {
+      cursor.close();
+    }
+    return rows;
+  }
+
+  /** Check out the compiled statement for {@code key}, compiling it on a cache miss. */
+  private StatementCache.Entry acquireStatement(StatementCache.Key key) {
+    StatementCache.Entry entry = statementCache.acquire(key);
+    if (entry == null) {
+      entry = statementCache.newEntry(key, getWriteableDatabase().compileStatement(key.sql()));
+    }
+    return entry;
+  }
+
+  private static void bindValues(StatementCache.Entry entry, ContentValues values) {
+    String[] columns = entry.key.columns;
+    for (int i = 0; i < columns.length; i++) {
+      entry.statement.bind(i + 1, values.get(columns[i]));
+    }
+  }
+
+  private static void bindWhereArgs(Driver.Statement statement, int index, String[] whereArgs) {
+    if (whereArgs == null) return;
+    for (String whereArg : whereArgs) {
+      statement.bind(index++, whereArg);
+    }
+  }
+
   /**
    * Temporarily end the transaction to let other threads run. The transaction is assumed to be
    * successful so far. Do not call setTransactionSuccessful before calling this. When this
@@ -444,7 +1453,7 @@ public final class SqlBrite implements Closeable {
    * @see SQLiteDatabase#yieldIfContendedSafely()
    */
   public boolean yieldIfContendedSafely() {
-    return getWriteableDatabase().yieldIfContendedSafely();
+    return getWriteableDatabase().yieldIfContendedSafely(0);
   }
 
   /**
@@ -500,27 +1509,756 @@ public final class SqlBrite implements Closeable {
     }
   }
 
-  private final class Transaction implements SQLiteTransactionListener {
-    final Transaction parent;
-    final Set<String> triggers = new LinkedHashSet<>();
+  /**
+   * Delivers a query to its subscribers initially and whenever one of its tables changes. A
+   * shared instance serves every subscriber to the same {@link QueryKey} and runs its query at
+   * most once per trigger, handing each caller of {@link #run()} a cursor over a snapshot. With a
+   * scheduler the snapshot is taken on the scheduler's worker before subscribers are notified.
+   * A distinct query always snapshots its result and only notifies a subscriber when the
+   * snapshot's fingerprint differs from the last one it was notified of. While it has
+   * subscribers the query stays compiled on the readable connection and is re-bound for each run.
+   */
+  private final class ObservedQuery implements TableDispatcher.Listener, Query {
+    private final Set<String> tables;
+    private final RowFilter rowFilter;
+    private final String sql;
+    private final String[] args;
+    /** Bound instead of {@link #args} if non-null. */
+    private final QueryArgs typedArgs;
+    private final Scheduler scheduler;
+    private final boolean shared;
+    private final boolean conflate;
+    private final boolean distinct;
+    // Additions and removals guarded by 'this'.
+    private final List<Delivery> observers = new CopyOnWriteArrayList<>();
+    // Written while holding 'this'. Non-null while there are observers if a scheduler was given.
+    private volatile Scheduler.Worker worker;
+    /** True while a conflating query has a run scheduled on its worker which has not started. */
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+    /** Incremented for every trigger so a snapshot knows when it is stale. */
+    private volatile int generation;
+
+    private final Object snapshotLock = new Object();
+    // Guarded by 'snapshotLock'.
+    private CursorSnapshot snapshot;
+    private int snapshotGeneration;
+
+    private final Object preparedLock = new Object();
+    // Guarded by 'preparedLock'. The compiled query reused by every run while there are observers.
+    private Driver.PreparedQuery prepared;
+    private Driver.Database preparedDatabase;
+    private int preparedAt;
+
+    ObservedQuery(Set<String> tables, RowFilter rowFilter, String sql, String[] args,
+        QueryArgs typedArgs, Scheduler scheduler, boolean shared, boolean conflate,
+        boolean distinct) {
+      this.tables = tables;
+      this.rowFilter = rowFilter;
+      this.sql = sql;
+      this.args = args;
+      this.typedArgs = typedArgs;
+      this.scheduler = scheduler;
+      this.shared = shared;
+      this.conflate = conflate;
+      this.distinct = distinct;
+    }
+
+    synchronized Delivery addObserver(Observer<? super Query> observer) {
+      Delivery delivery = new Delivery(observer);
+      observers.add(delivery);
+      if (observers.size() == 1) {
+        if (scheduler != null) {
+          worker = scheduler.createWorker();
+        }
+        // Only trigger on tables (and rows) we care about.
+        if (rowFilter != null) {
+          dispatcher.register(this, tables.iterator().next(), rowFilter);
+        } else {
+          dispatcher.register(this, tables);
+        }
+      }
+      return delivery;
+    }
+
+    /** Returns true if {@code delivery} was the last one and the query was torn down. */
+    synchronized boolean removeObserver(Delivery delivery) {
+      if (!observers.remove(delivery) || !observers.isEmpty()) {
+        return false;
+      }
+      dispatcher.unregister(this, tables);
+      if (worker != null) {
+        worker.unsubscribe();
+        worker = null;
+      }
+      synchronized (snapshotLock) {
+        if (snapshot != null) {
+          snapshot.release();
+          snapshot = null;
+        }
+      }
+      synchronized (preparedLock) {
+        closePrepared();
+      }
+      return true;
+    }
+
+    /**
+     * The compiled query for {@code db}, compiling it again if the schema or the connection
+     * changed. Returns null once there are no observers so that nothing is left open.
+     */
+    Driver.PreparedQuery prepared(Driver.Database db) {
+      synchronized (preparedLock) {
+        if (observers.isEmpty()) return null;
+        int current = preparedGeneration.get();
+        if (prepared == null || preparedDatabase != db || preparedAt != current) {
+          closePrepared();
+          prepared = db.prepareQuery(sql);
+          preparedDatabase = db;
+          preparedAt = current;
+        }
+        return prepared;
+      }
+    }
+
+    // Guarded by 'preparedLock'.
+    private void closePrepared() {
+      if (prepared != null) {
+        prepared.close();
+        prepared = null;
+        preparedDatabase = null;
+      }
+    }
+
+    @Override public void onTrigger(Map<String, RowSet> trigger) {
+      generation++;
+      Scheduler.Worker worker = this.worker;
+      if (worker == null) {
+        for (Delivery delivery : observers) {
+          delivery.deliver(trigger);
+        }
+        return;
+      }
+      if (conflate && !scheduled.compareAndSet(false, true)) {
+        // The pending run has not started yet and will see this change.
+        if (logging) log("QUERY CONFLATED\n  trigger: %s\n  sql: %s", trigger, sql);
+        return;
+      }
+      final Map<String, RowSet> retained = copyOf(trigger);
+      worker.schedule(new Runnable() {
+        @Override public void run() {
+          scheduled.set(false);
+          if (observers.isEmpty() || !prepare(observers)) return;
+          for (Delivery delivery : observers) {
+            delivery.deliver(retained);
+          }
+        }
+      });
+    }
+
+    /** Emit the initial query to a new observer, on the worker if there is one. */
+    void emitInitial(final Delivery delivery) {
+      if (inTransaction()) {
+        // Hold every emission until the transaction ends so the first reflects committed data.
+        delivery.started = false;
+        transactions.get().deferUntilEnd(new Runnable() {
+          @Override public void run() {
+            delivery.started = true;
+            if (!delivery.observer.isUnsubscribed()) {
+              emitInitial(delivery);
+            }
+          }
+        });
+        return;
+      }
+      Scheduler.Worker worker = this.worker;
+      if (worker == null) {
+        delivery.deliver(INITIAL_TRIGGER);
+        return;
+      }
+      worker.schedule(new Runnable() {
+        @Override public void run() {
+          if (delivery.observer.isUnsubscribed()
+              || !prepare(Collections.singletonList(delivery))) {
+            return;
+          }
+          delivery.deliver(INITIAL_TRIGGER);
+        }
+      });
+    }
+
+    /**
+     * Take a snapshot of the current result so that {@code targets} can run the query without
+     * touching the database. Returns false after reporting the failure to {@code targets}.
+     */
+    private boolean prepare(List<Delivery> targets) {
+      try {
+        snapshot();
+        return true;
+      } catch (RuntimeException e) {
+        for (Delivery target : targets) {
+          target.observer.onError(e);
+        }
+        return false;
+      }
+    }
+
+    void emit(Delivery delivery, Map<String, RowSet> trigger) {
+      if (distinct) {
+        long fingerprint;
+        try {
+          fingerprint = snapshot().fingerprint();
+        } catch (RuntimeException e) {
+          delivery.observer.onError(e);
+          return;
+        }
+        if (!delivery.changed(fingerprint)) {
+          if (logging) log("QUERY UNCHANGED\n  trigger: %s\n  sql: %s", trigger, sql);
+          return;
+        }
+      }
+      if (logging) {
+        log("QUERY\n  trigger: %s\n  tables: %s\n  sql: %s\n  args: %s", trigger, tables, sql,
+            argsString());
+      }
+      delivery.observer.onNext(this);
+    }
+
+    /** Inside a transaction this reads the transaction's uncommitted changes. */
+    @Override public Cursor run() {
+      if (observers.isEmpty()) {
+        return read(sql, args, typedArgs);
+      }
+      if ((!shared && scheduler == null && !distinct) || inTransaction()) {
+        return read(sql, args, typedArgs, this);
+      }
+      synchronized (snapshotLock) {
+        return snapshot().newCursor();
+      }
+    }
+
+    /** The snapshot of the current generation, taking one if needed. */
+    private CursorSnapshot snapshot() {
+      synchronized (snapshotLock) {
+        int current = generation;
+        if (snapshot == null || snapshotGeneration != current) {
+          if (snapshot != null) {
+            snapshot.release();
+            snapshot = null;
+          }
+          if (logging) log("QUERY RUN\n  sql: %s\n  args: %s", sql, argsString());
+          snapshot = CursorSnapshot.create(read(sql, args, typedArgs, this));
+          snapshotGeneration = current;
+        }
+        return snapshot;
+      }
+    }
+
+    private String argsString() {
+      return typedArgs != null ? typedArgs.toString() : Arrays.toString(args);
+    }
+
+    @Override public String toString() {
+      return sql;
+    }
+
+    /**
+     * Delivers emissions to one observer. When conflating, triggers which arrive while the
+     * observer is still handling an emission only mark it dirty and are followed by exactly one
+     * more emission once it returns.
+     */
+    final class Delivery {
+      final Observer<? super Query> observer;
+      // Null unless conflating. The number of deliveries requested since the current one began.
+      private final AtomicInteger missed;
+      /** False until the initial emission of an observer which subscribed in a transaction. */
+      volatile boolean started = true;
+      // Guarded by 'this'. Only used by distinct queries.
+      private boolean notified;
+      private long fingerprint;
+
+      Delivery(Observer<? super Query> observer) {
+        this.observer = observer;
+        this.missed = conflate ? new AtomicInteger() : null;
+      }
+
+      void deliver(Map<String, RowSet> trigger) {
+        if (!started) return;
+        if (missed == null) {
+          emit(this, trigger);
+          return;
+        }
+        if (missed.getAndIncrement() != 0) {
+          if (logging) log("QUERY CONFLATED\n  trigger: %s\n  sql: %s", trigger, sql);
+          return;
+        }
+        int count = 1;
+        do {
+          emit(this, trigger);
+          // Any number of triggers during the emission collapse into one more.
+          count = missed.addAndGet(-count);
+        } while (count != 0);
+      }
+
+      /** Record {@code fingerprint} and return true if it differs from the last one notified. */
+      synchronized boolean changed(long fingerprint) {
+        if (notified && this.fingerprint == fingerprint) return false;
+        notified = true;
+        this.fingerprint = fingerprint;
+        return true;
+      }
+    }
+  }
+
+  /** Identifies observable queries which can share a single {@link ObservedQuery}. */
+  private static final class QueryKey {
+    private final Set<String> tables;
+    private final RowFilter rowFilter;
+    private final String sql;
+    /** A list of the string arguments, or the typed arguments. */
+    private final Object args;
+    private final Scheduler scheduler;
+    private final boolean conflate;
+    private final boolean distinct;
+
+    QueryKey(Set<String> tables, RowFilter rowFilter, String sql, String[] args,
+        QueryArgs typedArgs, Scheduler scheduler, boolean conflate, boolean distinct) {
+      this.tables = tables;
+      this.rowFilter = rowFilter;
+      this.sql = sql;
+      this.args = typedArgs != null ? typedArgs : Arrays.asList(args);
+      this.scheduler = scheduler;
+      this.conflate = conflate;
+      this.distinct = distinct;
+    }
+
+    @Override public boolean equals(Object o) {
+      if (o == this) return true;
+      if (!(o instanceof QueryKey)) return false;
+      QueryKey other = (QueryKey) o;
+      return tables.equals(other.tables)
+          && (rowFilter != null ? rowFilter.equals(other.rowFilter) : other.rowFilter == null)
+          && sql.equals(other.sql)
+          && args.equals(other.args)
+          && scheduler == other.scheduler
+          && conflate == other.conflate
+          && distinct == other.distinct;
+    }
+
+    @Override public int hashCode() {
+      int result = tables.hashCode();
+      result = 31 * result + (rowFilter != null ? rowFilter.hashCode() : 0);
+      result = 31 * result + sql.hashCode();
+      result = 31 * result + args.hashCode();
+      result = 31 * result + System.identityHashCode(scheduler);
+      result = 31 * result + (conflate ? 1 : 0);
+      result = 31 * result + (distinct ? 1 : 0);
+      return result;
+    }
+  }
+
+  /**
+   * Inserts rows into a single table inside the caller's transaction. The cached statement for
+   * each distinct set of columns is checked out once and re-bound for every row with that shape.
+   */
+  private final class BatchInsert implements Closeable {
+    private final String table;
+    private final int conflictAlgorithm;
+    private final Map<Set<String>, StatementCache.Entry> statements = new LinkedHashMap<>();
+    private final RowSet rows;
+    private final long startNanos = System.nanoTime();
+    int inserted;
+
+    BatchInsert(String table, int conflictAlgorithm) {
+      this.table = table;
+      this.conflictAlgorithm = conflictAlgorithm;
+      // A replace may also delete rows with other IDs.
+      this.rows = conflictAlgorithm == CONFLICT_REPLACE
+          ? RowSet.ALL_ROWS
+          : new RowSet(rowChangeLimit);
+      if (logging) {
+        log("INSERT BATCH\n  table: %s\n  conflictAlgorithm: %s", table,
+            conflictString(conflictAlgorithm));
+      }
+    }
+
+    long insert(ContentValues values) {
+      StatementCache.Entry entry = statements.get(values.keySet());
+      if (entry == null) {
+        Set<String> shape = new LinkedHashSet<>(values.keySet());
+        entry = acquireStatement(StatementCache.Key.insert(table, shape, conflictAlgorithm));
+        statements.put(shape, entry);
+      }
+      bindValues(entry, values);
+      long rowId = entry.statement.executeInsert();
+      if (rowId != -1) {
+        inserted++;
+        rows.add(rowId);
+      }
+      return rowId;
+    }
 
-    Transaction(Transaction parent) {
+    /** Send a single trigger for the whole batch. Must be called before the transaction ends. */
+    void finish() {
+      if (logging) log("INSERT BATCH inserted %s %s", inserted, inserted != 1 ? "rows" : "row");
+      EventListener listener = eventListener;
+      if (listener != null) listener.writeEnd(table, System.nanoTime() - startNanos, inserted);
+      if (inserted > 0) {
+        if (rows.isExact()) dispatcher.afterChange(table, rows);
+        // Only send a table trigger if at least one insert was successful.
+        sendTableTrigger(table, rows);
+      }
+    }
+
+    @Override public void close() {
+      for (StatementCache.Entry entry : statements.values()) {
+        statementCache.release(entry);
+      }
+      statements.clear();
+    }
+  }
+
+  /** Upserts rows into one table with cached statements and sends a single trigger at the end. */
+  private final class BatchUpsert implements Closeable {
+    private final String table;
+    private final Set<String> conflictColumns;
+    /** The conflict columns in the order the fallback's where clause compares them. */
+    private final String[] sortedConflictColumns;
+    /** Null to update every inserted column except the conflict columns. */
+    private final Set<String> updateColumns;
+    private final boolean nativeUpsert;
+    // Natively one upsert per shape, otherwise an update followed by an insert.
+    private final Map<Set<String>, StatementCache.Entry[]> statements = new LinkedHashMap<>();
+    private final long startNanos = System.nanoTime();
+    int changed;
+
+    BatchUpsert(String table, String[] conflictColumns, String[] updateColumns) {
+      if (conflictColumns.length == 0) {
+        throw new IllegalArgumentException("Empty conflictColumns");
+      }
+      this.table = table;
+      this.conflictColumns = new LinkedHashSet<>(Arrays.asList(conflictColumns));
+      this.sortedConflictColumns =
+          this.conflictColumns.toArray(new String[this.conflictColumns.size()]);
+      Arrays.sort(sortedConflictColumns);
+      this.updateColumns = updateColumns != null
+          ? new LinkedHashSet<>(Arrays.asList(updateColumns))
+          : null;
+      this.nativeUpsert = supportsUpsert();
+      if (logging) {
+        log("UPSERT\n  table: %s\n  conflictColumns: %s\n  updateColumns: %s\n  native: %s",
+            table, this.conflictColumns, updateColumns != null ? this.updateColumns : "others",
+            nativeUpsert);
+      }
+    }
+
+    boolean isNative() {
+      return nativeUpsert;
+    }
+
+    void upsert(ContentValues values) {
+      StatementCache.Entry[] entries = statements.get(values.keySet());
+      if (entries == null) {
+        Set<String> shape = new LinkedHashSet<>(values.keySet());
+        entries = prepare(shape);
+        statements.put(shape, entries);
+      }
+
+      if (nativeUpsert) {
+        StatementCache.Entry upsert = entries[0];
+        bindValues(upsert, values);
+        changed += upsert.statement.executeUpdateDelete();
+        return;
+      }
+
+      StatementCache.Entry update = entries[0];
+      bindValues(update, values);
+      int index = update.key.columns.length + 1;
+      for (String column : sortedConflictColumns) {
+        update.statement.bind(index++, values.get(column));
+      }
+      int rows = update.statement.executeUpdateDelete();
+      if (rows == 0) {
+        StatementCache.Entry insert = entries[1];
+        bindValues(insert, values);
+        if (insert.statement.executeInsert() != -1) changed++;
+      } else if (updateColumns != null
+          ? !updateColumns.isEmpty()
+          : values.size() > conflictColumns.size()) {
+        // Otherwise the conflicting row was only assigned its own values.
+        changed += rows;
+      }
+    }
+
+    private StatementCache.Entry[] prepare(Set<String> shape) {
+      if (!shape.containsAll(conflictColumns)) {
+        throw new IllegalArgumentException(
+            "Values " + shape + " missing conflict columns " + conflictColumns);
+      }
+      Set<String> updates;
+      if (updateColumns != null) {
+        if (!shape.containsAll(updateColumns)) {
+          throw new IllegalArgumentException(
+              "Values " + shape + " missing update columns " + updateColumns);
+        }
+        updates = updateColumns;
+      } else {
+        updates = new LinkedHashSet<>(shape);
+        updates.removeAll(conflictColumns);
+      }
+
+      if (nativeUpsert) {
+        return new StatementCache.Entry[] {
+            acquireStatement(StatementCache.Key.upsert(table, shape, conflictColumns, updates))
+        };
+      }
+      // Leaving a conflicting row unchanged still needs an update to learn whether it exists, so
+      // assign the conflict columns their own values.
+      StringBuilder where = new StringBuilder();
+      for (String column : sortedConflictColumns) {
+        if (where.length() > 0) where.append(" AND ");
+        where.append(column).append(" = ?");
+      }
+      StatementCache.Entry[] entries = new StatementCache.Entry[2];
+      entries[0] = acquireStatement(StatementCache.Key.update(table,
+          updates.isEmpty() ? conflictColumns : updates, CONFLICT_NONE, where.toString()));
+      try {
+        entries[1] = acquireStatement(StatementCache.Key.insert(table, shape, CONFLICT_NONE));
+      } catch (RuntimeException e) {
+        statementCache.release(entries[0]);
+        throw e;
+      }
+      return entries;
+    }
+
+    /** Send a single trigger for the whole batch. Must be called before the transaction ends. */
+    void finish() {
+      if (logging) log("UPSERT changed %s %s", changed, changed != 1 ? "rows" : "row");
+      EventListener listener = eventListener;
+      if (listener != null) listener.writeEnd(table, System.nanoTime() - startNanos, changed);
+      if (changed > 0) {
+        // The IDs of updated rows are not reported.
+        sendTableTrigger(table, RowSet.ALL_ROWS);
+      }
+    }
+
+    @Override public void close() {
+      for (StatementCache.Entry[] entries : statements.values()) {
+        for (StatementCache.Entry entry : entries) {
+          statementCache.release(entry);
+        }
+      }
+      statements.clear();
+    }
+  }
+
+  /**
+   * The transactions in progress on one thread. A frame is kept when its transaction ends and
+   * reused by the next transaction at the same depth.
+   */
+  private final class TransactionStack {
+    private TransactionFrame[] frames = new TransactionFrame[4];
+    private int size;
+
+    TransactionFrame top() {
+      return size != 0 ? frames[size - 1] : null;
+    }
+
+    TransactionFrame push(long startNanos) {
+      if (size == frames.length) {
+        frames = Arrays.copyOf(frames, size * 2);
+      }
+      TransactionFrame frame = frames[size];
+      if (frame == null || frame.ending) {
+        // A frame which is still ending may be delivering its triggers. Leave it be.
+        frame = new TransactionFrame(size + 1);
+        frames[size] = frame;
+      }
+      frame.reset(top(), startNanos);
+      size++;
+      return frame;
+    }
+
+    TransactionFrame pop() {
+      if (size == 0) {
+        throw new IllegalStateException("Not in transaction.");
+      }
+      return frames[--size];
+    }
+
+    /** Run {@code action} on this thread once the outermost transaction has ended. */
+    void deferUntilEnd(Runnable action) {
+      TransactionFrame outermost = frames[0];
+      if (outermost.deferred == null) {
+        outermost.deferred = new ArrayList<>();
+      }
+      outermost.deferred.add(action);
+    }
+  }
+
+  private final class TransactionFrame implements SQLiteTransactionListener, Transaction {
+    final int depth;
+    TransactionFrame parent;
+    long startNanos;
+    boolean committed;
+    /** True while the driver ends the transaction. */
+    boolean ending;
+    /**
+     * True if the outermost transaction committed and its triggers have not been dispatched.
+     * Drivers report the commit before running {@code COMMIT}, so dispatching then would let
+     * queries on pooled read connections see the data from before the transaction.
+     */
+    private boolean dispatchPending;
+    /** Actions to run after the transaction ends. Only used by the outermost transaction. */
+    List<Runnable> deferred;
+    /** Actions to run when the outermost transaction commits, or null if there are none yet. */
+    private List<Runnable> commitActions;
+    // The changed rows of each table in the order the tables first changed. Row sets past
+    // 'tableCount' are left over from earlier transactions and are cleared for reuse.
+    private String[] tables = new String[4];
+    private RowSet[] rows = new RowSet[4];
+    private int tableCount;
+    /** The triggers of a commit while they are dispatched. */
+    private final Map<String, RowSet> changes = new LinkedHashMap<>();
+
+    TransactionFrame(int depth) {
+      this.depth = depth;
+    }
+
+    void reset(TransactionFrame parent, long startNanos) {
       this.parent = parent;
+      this.startNanos = startNanos;
+      committed = false;
+      dispatchPending = false;
+      tableCount = 0;
+      if (commitActions != null) {
+        commitActions.clear();
+      }
+    }
+
+    void addCommitAction(Runnable action) {
+      if (commitActions == null) {
+        commitActions = new ArrayList<>();
+      }
+      commitActions.add(action);
+    }
+
+    private void runCommitActions() {
+      if (commitActions == null) return;
+      for (int i = 0, size = commitActions.size(); i < size; i++) {
+        commitActions.get(i).run();
+      }
+      commitActions.clear();
+    }
+
+    /** Merge {@code changed} into this transaction's triggers without modifying it. */
+    void addTrigger(String table, RowSet changed) {
+      rowsOf(table).addAll(changed);
+    }
+
+    void addTrigger(String table, long rowId) {
+      rowsOf(table).add(rowId);
+    }
+
+    private RowSet rowsOf(String table) {
+      for (int i = 0; i < tableCount; i++) {
+        if (tables[i].equals(table)) return rows[i];
+      }
+      if (tableCount == tables.length) {
+        tables = Arrays.copyOf(tables, tableCount * 2);
+        rows = Arrays.copyOf(rows, tableCount * 2);
+      }
+      RowSet set = rows[tableCount];
+      int limit = rowChangeLimit;
+      if (set == null || set.limit() != limit) {
+        set = new RowSet(limit);
+        rows[tableCount] = set;
+      } else {
+        set.clear();
+      }
+      tables[tableCount++] = table;
+      return set;
     }
 
     @Override public void onBegin() {
     }
 
     @Override public void onCommit() {
-      sendTableTrigger(triggers);
+      if (currentTransaction() == this) {
+        // Yielded. Queries cannot run on this thread until the transaction ends so the triggers
+        // are kept for the final commit, which alone decides whether it is reported as committed.
+        // The work so far is committed though.
+        runCommitActions();
+        return;
+      }
+      committed = true;
+      if (parent != null) {
+        for (int i = 0; i < tableCount; i++) {
+          parent.addTrigger(tables[i], rows[i]);
+        }
+        if (commitActions != null) {
+          for (int i = 0, size = commitActions.size(); i < size; i++) {
+            parent.addCommitAction(commitActions.get(i));
+          }
+          commitActions.clear();
+        }
+        return;
+      }
+      // Still holding the connection, so no other transaction can see the commit before these.
+      runCommitActions();
+      dispatchPending = true;
+    }
+
+    /** Dispatch the triggers of a committed outermost transaction once the driver has ended it. */
+    void dispatchCommitted() {
+      if (!dispatchPending) return;
+      dispatchPending = false;
+
+      boolean observed = logging || eventListener != null;
+      for (int i = 0; !observed && i < tableCount; i++) {
+        observed = dispatcher.hasListeners(tables[i]);
+      }
+      if (!observed) return;
+      // Listeners copy what they keep, so the map and row sets are reused.
+      for (int i = 0; i < tableCount; i++) {
+        changes.put(tables[i], rows[i]);
+      }
+      try {
+        dispatch(changes);
+      } finally {
+        changes.clear();
+      }
     }
 
     @Override public void onRollback() {
     }
 
+    private void checkCurrent() {
+      if (currentTransaction() != this) {
+        throw new IllegalStateException("Not the current transaction.");
+      }
+    }
+
+    @Override public void markSuccessful() {
+      checkCurrent();
+      setTransactionSuccessful();
+    }
+
+    @Override public boolean yieldIfContendedSafely() {
+      checkCurrent();
+      return SqlBrite.this.yieldIfContendedSafely();
+    }
+
+    @Override public void end() {
+      checkCurrent();
+      endTransaction();
+    }
+
+    @Override public void close() {
+      end();
+    }
+
     @Override public String toString() {
-      String name = String.format("%08x", System.identityHashCode(this));
-      return parent == null ? name : name + " [" + parent.toString() + ']';
+      return "depth " + depth;
     }
   }
 }
@@ -0,0 +1,417 @@
+/*
+ * Copyright (C) 2015 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.sqlbrite;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Set;
+
+import static android.database.sqlite.SQLiteDatabase.CONFLICT_ABORT;
+import static android.database.sqlite.SQLiteDatabase.CONFLICT_FAIL;
+import static android.database.sqlite.SQLiteDatabase.CONFLICT_IGNORE;
+import static android.database.sqlite.SQLiteDatabase.CONFLICT_NONE;
+import static android.database.sqlite.SQLiteDatabase.CONFLICT_REPLACE;
+import static android.database.sqlite.SQLiteDatabase.CONFLICT_ROLLBACK;
+
+/**
+ * A bounded, least-recently-used cache of the compiled statements used by a {@link SqlBrite}'s
+ * {@code insert}, {@code update}, {@code upsert}, and {@code delete} methods.
+ * <p>
+ * Statements are checked out of the cache while they are bound and executed so concurrent writers
+ * never share one. A checked out statement stays in the cache, marked in use, so checking it out
+ * and back in does not allocate. A writer which misses because another thread holds the statement
+ * compiles its own copy and offers it back to the cache when done.
+ */
+public final class StatementCache {
+  static final int DEFAULT_MAX_SIZE = 25;
+  private static final int RECENT_KEYS = 8;
+
+  // Guarded by 'this'. Statements in least- to most-recently-used order.
+  private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+  private int maxSize;
+  private int generation;
+  private int hitCount;
+  private int missCount;
+  private int evictionCount;
+  // Guarded by 'this'. Keys of recent writes, reused so that repeating a write builds no key.
+  private final Key[] recentKeys = new Key[RECENT_KEYS];
+  private int nextRecentKey;
+
+  StatementCache(int maxSize) {
+    if (maxSize <= 0) throw new IllegalArgumentException("maxSize <= 0");
+    this.maxSize = maxSize;
+  }
+
+  /** The key of an insert, reusing the key of a recent identical insert if there is one. */
+  Key insertKey(String table, Set<String> columns, int conflictAlgorithm) {
+    Key key = recentKey(Key.INSERT, table, columns, null, conflictAlgorithm);
+    return key != null ? key : remember(Key.insert(table, columns, conflictAlgorithm));
+  }
+
+  /** The key of an update, reusing the key of a recent identical update if there is one. */
+  Key updateKey(String table, Set<String> columns, int conflictAlgorithm, String whereClause) {
+    Key key = recentKey(Key.UPDATE, table, columns, whereClause, conflictAlgorithm);
+    return key != null
+        ? key
+        : remember(Key.update(table, columns, conflictAlgorithm, whereClause));
+  }
+
+  /** The key of a delete, reusing the key of a recent identical delete if there is one. */
+  Key deleteKey(String table, String whereClause) {
+    Key key = recentKey(Key.DELETE, table, Collections.<String>emptySet(), whereClause,
+        CONFLICT_NONE);
+    return key != null ? key : remember(Key.delete(table, whereClause));
+  }
+
+  private synchronized Key recentKey(int type, String table, Set<String> columns,
+      String whereClause, int conflictAlgorithm) {
+    for (Key key : recentKeys) {
+      if (key != null && key.matches(type, table, columns, whereClause, conflictAlgorithm)) {
+        return key;
+      }
+    }
+    return null;
+  }
+
+  private synchronized Key remember(Key key) {
+    recentKeys[nextRecentKey] = key;
+    nextRecentKey = (nextRecentKey + 1) % RECENT_KEYS;
+    return key;
+  }
+
+  /**
+   * Check out the idle statement for {@code key}, or return null if the caller must compile one
+   * and wrap it with {@link #newEntry}.
+   */
+  synchronized Entry acquire(Key key) {
+    Entry entry = entries.get(key);
+    if (entry != null && !entry.inUse) {
+      entry.inUse = true;
+      hitCount++;
+      return entry;
+    }
+    missCount++;
+    return null;
+  }
+
+  synchronized Entry newEntry(Key key, Driver.Statement statement) {
+    Entry entry = new Entry(key, statement, generation);
+    entry.inUse = true;
+    return entry;
+  }
+
+  /** Return a statement obtained from {@link #acquire} or {@link #newEntry} to the cache. */
+  void release(Entry entry) {
+    entry.statement.clearBindings();
+    boolean close = false;
+    synchronized (this) {
+      entry.inUse = false;
+      if (entry.generation != generation) {
+        // The cache was cleared while this statement was in use.
+        close = true;
+      } else {
+        Entry cached = entries.get(entry.key);
+        if (cached == null) {
+          entries.put(entry.key, entry);
+          trimToSize(maxSize);
+        } else if (cached != entry) {
+          // Compiled while the cached copy was in use.
+          close = true;
+        }
+      }
+    }
+    if (close) {
+      entry.statement.close();
+    }
+  }
+
+  /** Change the maximum number of statements held, closing any in excess. */
+  public void resize(int maxSize) {
+    if (maxSize <= 0) throw new IllegalArgumentException("maxSize <= 0");
+    synchronized (this) {
+      this.maxSize = maxSize;
+      trimToSize(maxSize);
+    }
+  }
+
+  /**
+   * Close all cached statements. Statements which are currently in use are closed when they are
+   * released. Call this after changing the database schema outside of {@link SqlBrite}.
+   */
+  public synchronized void evictAll() {
+    generation++;
+    trimToSize(0);
+  }
+
+  // Guarded by 'this'.
+  private void trimToSize(int maxSize) {
+    Iterator<Entry> iterator = entries.values().iterator();
+    while (entries.size() > maxSize && iterator.hasNext()) {
+      Entry eldest = iterator.next();
+      iterator.remove();
+      if (!eldest.inUse) {
+        // Otherwise it is offered back to the cache when released.
+        eldest.statement.close();
+      }
+      evictionCount++;
+    }
+  }
+
+  /** The number of statements currently held, including those in use. */
+  public synchronized int size() {
+    return entries.size();
+  }
+
+  public synchronized int maxSize() {
+    return maxSize;
+  }
+
+  /** The number of times a write found its statement in the cache. */
+  public synchronized int hitCount() {
+    return hitCount;
+  }
+
+  /** The number of times a write had to compile its statement. */
+  public synchronized int missCount() {
+    return missCount;
+  }
+
+  /** The number of statements which have been closed to make room or on {@link #evictAll()}. */
+  public synchronized int evictionCount() {
+    return evictionCount;
+  }
+
+  @Override public synchronized String toString() {
+    int accesses = hitCount + missCount;
+    int hitPercent = accesses != 0 ? (100 * hitCount / accesses) : 0;
+    return String.format(Locale.US, "StatementCache[maxSize=%d,hits=%d,misses=%d,hitRate=%d%%]",
+        maxSize, hitCount, missCount, hitPercent);
+  }
+
+  static final class Entry {
+    final Key key;
+    final Driver.Statement statement;
+    final int generation;
+    // Guarded by the cache.
+    boolean inUse;
+
+    Entry(Key key, Driver.Statement statement, int generation) {
+      this.key = key;
+      this.statement = statement;
+      this.generation = generation;
+    }
+  }
+
+  /** Identifies a write statement by its shape. Columns are sorted so their order is stable. */
+  static final class Key {
+    static final int INSERT = 1;
+    static final int UPDATE = 2;
+    static final int DELETE = 3;
+    static final int UPSERT = 4;
+    private static final String[] NO_COLUMNS = new String[0];
+
+    final int type;
+    final String table;
+    final String[] columns;
+    final String whereClause;
+    final int conflictAlgorithm;
+    /** The target and assigned columns of an upsert's {@code ON CONFLICT} clause. */
+    final String[] conflictColumns;
+    final String[] updateColumns;
+    private final int hashCode;
+
+    static Key insert(String table, Set<String> columns, int conflictAlgorithm) {
+      return new Key(INSERT, table, sorted(columns), null, conflictAlgorithm, NO_COLUMNS,
+          NO_COLUMNS);
+    }
+
+    /**
+     * An insert which updates {@code updateColumns} of the existing row from the inserted values
+     * when it conflicts on {@code conflictColumns}, or does nothing if there are none to update.
+     */
+    static Key upsert(String table, Set<String> columns, Set<String> conflictColumns,
+        Set<String> updateColumns) {
+      if (conflictColumns.isEmpty()) throw new IllegalArgumentException("Empty conflictColumns");
+      return new Key(UPSERT, table, sorted(columns), null, CONFLICT_NONE, sorted(conflictColumns),
+          sorted(updateColumns));
+    }
+
+    static Key update(String table, Set<String> columns, int conflictAlgorithm,
+        String whereClause) {
+      if (columns.isEmpty()) throw new IllegalArgumentException("Empty values");
+      return new Key(UPDATE, table, sorted(columns), whereClause, conflictAlgorithm, NO_COLUMNS,
+          NO_COLUMNS);
+    }
+
+    static Key delete(String table, String whereClause) {
+      return new Key(DELETE, table, NO_COLUMNS, whereClause, CONFLICT_NONE, NO_COLUMNS,
+          NO_COLUMNS);
+    }
+
+    private Key(int type, String table, String[] columns, String whereClause,
+        int conflictAlgorithm, String[] conflictColumns, String[] updateColumns) {
+      this.type = type;
+      this.table = table;
+      this.columns = columns;
+      this.whereClause = isEmpty(whereClause) ? null : whereClause;
+      this.conflictAlgorithm = conflictAlgorithm;
+      this.conflictColumns = conflictColumns;
+      this.updateColumns = updateColumns;
+
+      int result = type;
+      result = 31 * result + table.hashCode();
+      result = 31 * result + Arrays.hashCode(columns);
+      result = 31 * result + (this.whereClause != null ? this.whereClause.hashCode() : 0);
+      result = 31 * result + conflictAlgorithm;
+      result = 31 * result + Arrays.hashCode(conflictColumns);
+      result = 31 * result + Arrays.hashCode(updateColumns);
+      hashCode = result;
+    }
+
+    String sql() {
+      StringBuilder sql = new StringBuilder(64);
+      switch (type) {
+        case INSERT:
+        case UPSERT:
+          sql.append("INSERT").append(conflictClause(conflictAlgorithm)).append(" INTO ")
+              .append(table);
+          if (columns.length == 0) {
+            sql.append(" DEFAULT VALUES");
+          } else {
+            sql.append(" (");
+            for (int i = 0; i < columns.length; i++) {
+              if (i > 0) sql.append(',');
+              sql.append(columns[i]);
+            }
+            sql.append(") VALUES (");
+            for (int i = 0; i < columns.length; i++) {
+              sql.append(i > 0 ? ",?" : "?");
+            }
+            sql.append(')');
+          }
+          if (type == UPSERT) {
+            sql.append(" ON CONFLICT (");
+            for (int i = 0; i < conflictColumns.length; i++) {
+              if (i > 0) sql.append(',');
+              sql.append(conflictColumns[i]);
+            }
+            if (updateColumns.length == 0) {
+              sql.append(") DO NOTHING");
+            } else {
+              sql.append(") DO UPDATE SET ");
+              for (int i = 0; i < updateColumns.length; i++) {
+                if (i > 0) sql.append(',');
+                sql.append(updateColumns[i]).append("=excluded.").append(updateColumns[i]);
+              }
+            }
+          }
+          break;
+        case UPDATE:
+          sql.append("UPDATE").append(conflictClause(conflictAlgorithm)).append(' ')
+              .append(table).append(" SET ");
+          for (int i = 0; i < columns.length; i++) {
+            if (i > 0) sql.append(',');
+            sql.append(columns[i]).append("=?");
+          }
+          break;
+        case DELETE:
+          sql.append("DELETE FROM ").append(table);
+          break;
+        default:
+          throw new AssertionError();
+      }
+      if (whereClause != null) {
+        sql.append(" WHERE ").append(whereClause);
+      }
+      return sql.toString();
+    }
+
+    /** True if this is the key of a write with the given shape. Does not allocate. */
+    boolean matches(int type, String table, Set<String> columns, String whereClause,
+        int conflictAlgorithm) {
+      if (this.type != type
+          || this.conflictAlgorithm != conflictAlgorithm
+          || !this.table.equals(table)
+          || conflictColumns.length != 0
+          || columns.size() != this.columns.length) {
+        return false;
+      }
+      if (this.whereClause != null
+          ? !this.whereClause.equals(whereClause)
+          : !isEmpty(whereClause)) {
+        return false;
+      }
+      for (String column : this.columns) {
+        if (!columns.contains(column)) return false;
+      }
+      return true;
+    }
+
+    @Override public boolean equals(Object o) {
+      if (o == this) return true;
+      if (!(o instanceof Key)) return false;
+      Key other = (Key) o;
+      return type == other.type
+          && conflictAlgorithm == other.conflictAlgorithm
+          && table.equals(other.table)
+          && Arrays.equals(columns, other.columns)
+          && Arrays.equals(conflictColumns, other.conflictColumns)
+          && Arrays.equals(updateColumns, other.updateColumns)
+          && (whereClause != null ? whereClause.equals(other.whereClause)
+              : other.whereClause == null);
+    }
+
+    @Override public int hashCode() {
+      return hashCode;
+    }
+
+    @Override public String toString() {
+      return sql();
+    }
+
+    private static String[] sorted(Set<String> columns) {
+      String[] sorted = columns.toArray(new String[columns.size()]);
+      Arrays.sort(sorted);
+      return sorted;
+    }
+
+    private static boolean isEmpty(String string) {
+      return string == null || string.length() == 0;
+    }
+
+    private static String conflictClause(int conflictAlgorithm) {
+      switch (conflictAlgorithm) {
+        case CONFLICT_NONE:
+          return "";
+        case CONFLICT_ABORT:
+          return " OR ABORT";
+        case CONFLICT_FAIL:
+          return " OR FAIL";
+        case CONFLICT_IGNORE:
+          return " OR IGNORE";
+        case CONFLICT_REPLACE:
+          return " OR REPLACE";
+        case CONFLICT_ROLLBACK:
+          return " OR ROLLBACK";
+        default:
+          throw new IllegalArgumentException("Unknown conflict algorithm: " + conflictAlgorithm);
+      }
+    }
+  }
+}
@@ -0,0 +1,284 @@
+/*
+ * Copyright (C) 2015 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.sqlbrite;
+
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Routes changes to tables to the listeners which registered interest in them.
+ * <p>
+ * Listeners are indexed by table so the cost of a trigger grows with the number of listeners
+ * which care about the changed tables rather than with the total number of listeners. Each table
+ * holds a copy-on-write array of its registrations: registration is rare and pays for the copy
+ * while dispatch reads the current array without locking.
+ * <p>
+ * Tables are interned to small integer ids when first registered. A listener of several tables
+ * carries a bit mask of their ids so that, when a trigger changes more than one of them, the
+ * listener is notified only at the first with a single {@code AND} against the tables already
+ * visited. Tables past the first 64 fall back to tracking notified listeners in a set.
+ * <p>
+ * A listener of a single table may also supply a {@link SqlBrite.RowFilter} in which case it is
+ * only notified of changes to rows which pass the filter. Such a listener may also be a
+ * {@link ChangeListener} to be shown each change while it is made.
+ */
+final class TableDispatcher {
+  private static final Registration[] EMPTY = new Registration[0];
+  private static final int MASK_BITS = 64;
+
+  interface Listener {
+    /**
+     * Called with the changed rows of each changed table. The map and its row sets are reused by
+     * the writer once this returns, so copy them to keep them.
+     */
+    void onTrigger(Map<String, RowSet> changes);
+  }
+
+  /**
+   * A listener which is also shown the rows of each write while the writer makes it, on the
+   * writer's thread inside its transaction. Every write which reports exactly which rows it changed
+   * calls {@link #beforeChange} with the rows it is about to update or delete, and then
+   * {@link #afterChange} with the rows it updated, deleted, or inserted.
+   */
+  interface ChangeListener extends Listener {
+    void beforeChange(String table, RowSet rows);
+
+    void afterChange(String table, RowSet rows);
+  }
+
+  /** A table's id and listeners. Tables are never removed so their ids stay stable. */
+  private static final class Table {
+    final int id;
+    // Replaced while holding 'writeLock'.
+    volatile Registration[] registrations = EMPTY;
+    // Written while holding 'writeLock'.
+    volatile int rowFilterCount;
+    // Written while holding 'writeLock'.
+    volatile int changeListenerCount;
+
+    Table(int id) {
+      this.id = id;
+    }
+  }
+
+  private static final class Registration {
+    final Listener listener;
+    final SqlBrite.RowFilter rowFilter;
+    /** The ids of the registered tables which are below {@link #MASK_BITS}. */
+    final long tableMask;
+    /** True if any registered table has an id which does not fit in the mask. */
+    final boolean overflow;
+
+    Registration(Listener listener, SqlBrite.RowFilter rowFilter, long tableMask,
+        boolean overflow) {
+      this.listener = listener;
+      this.rowFilter = rowFilter;
+      this.tableMask = tableMask;
+      this.overflow = overflow;
+    }
+  }
+
+  private final ConcurrentMap<String, Table> tables = new ConcurrentHashMap<>();
+  private final Object writeLock = new Object();
+  // Guarded by 'writeLock'.
+  private int nextId;
+
+  /** Notify {@code listener} whenever any of {@code tables} change. */
+  void register(Listener listener, Set<String> tables) {
+    synchronized (writeLock) {
+      Table[] targets = new Table[tables.size()];
+      long tableMask = 0L;
+      boolean overflow = false;
+      int i = 0;
+      for (String name : tables) {
+        Table table = intern(name);
+        targets[i++] = table;
+        if (table.id < MASK_BITS) {
+          tableMask |= 1L << table.id;
+        } else {
+          overflow = true;
+        }
+      }
+      Registration registration = new Registration(listener, null, tableMask, overflow);
+      for (Table table : targets) {
+        add(table, registration);
+      }
+    }
+  }
+
+  /**
+   * Notify {@code listener} whenever rows of {@code table} which pass {@code rowFilter} change. If
+   * it is a {@link ChangeListener} it is also shown each change to {@code table}.
+   */
+  void register(Listener listener, String table, SqlBrite.RowFilter rowFilter) {
+    synchronized (writeLock) {
+      Table target = intern(table);
+      // A single table is never notified twice for one trigger so it needs no mask.
+      add(target, new Registration(listener, rowFilter, 0L, false));
+      target.rowFilterCount++;
+      if (listener instanceof ChangeListener) {
+        target.changeListenerCount++;
+      }
+    }
+  }
+
+  /** Stop notifying {@code listener} of changes to {@code tables}. */
+  void unregister(Listener listener, Set<String> tables) {
+    synchronized (writeLock) {
+      for (String name : tables) {
+        Table table = this.tables.get(name);
+        if (table == null) continue;
+        Registration[] current = table.registrations;
+        int index = indexOf(current, listener);
+        if (index == -1) continue;
+        if (current[index].rowFilter != null) {
+          table.rowFilterCount--;
+          if (listener instanceof ChangeListener) {
+            table.changeListenerCount--;
+          }
+        }
+        if (current.length == 1) {
+          table.registrations = EMPTY;
+          continue;
+        }
+        Registration[] updated = new Registration[current.length - 1];
+        System.arraycopy(current, 0, updated, 0, index);
+        System.arraycopy(current, index + 1, updated, index, updated.length - index);
+        table.registrations = updated;
+      }
+    }
+  }
+
+  /** True if any listener is registered for {@code table}. */
+  boolean hasListeners(String table) {
+    Table target = tables.get(table);
+    return target != null && target.registrations.length != 0;
+  }
+
+  /**
+   * True if any listener of {@code table} filters by row. Writers use this to decide whether it is
+   * worth determining which rows a change affects.
+   */
+  boolean hasRowFilters(String table) {
+    Table target = tables.get(table);
+    return target != null && target.rowFilterCount != 0;
+  }
+
+  /** True if any listener of {@code table} is a {@link ChangeListener}. */
+  boolean hasChangeListeners(String table) {
+    Table target = tables.get(table);
+    return target != null && target.changeListenerCount != 0;
+  }
+
+  /** Show {@code rows} of {@code table}, which a write is about to change, to change listeners. */
+  void beforeChange(String table, RowSet rows) {
+    Table target = tables.get(table);
+    if (target == null || target.changeListenerCount == 0) return;
+    for (Registration registration : target.registrations) {
+      if (registration.listener instanceof ChangeListener) {
+        ((ChangeListener) registration.listener).beforeChange(table, rows);
+      }
+    }
+  }
+
+  /** Show {@code rows} of {@code table}, which a write has just changed, to change listeners. */
+  void afterChange(String table, RowSet rows) {
+    Table target = tables.get(table);
+    if (target == null || target.changeListenerCount == 0) return;
+    for (Registration registration : target.registrations) {
+      if (registration.listener instanceof ChangeListener) {
+        ((ChangeListener) registration.listener).afterChange(table, rows);
+      }
+    }
+  }
+
+  /**
+   * Notify every listener registered for at least one of the changed tables. A listener
+   * registered for more than one of the changed tables is notified only once.
+   */
+  void dispatch(Map<String, RowSet> changes) {
+    dispatch(changes, null);
+  }
+
+  /**
+   * Like {@link #dispatch(Map)}, reporting the number of listeners notified for each table to
+   * {@code eventListener} if it is non-null. A listener notified once for several tables counts
+   * towards the first of them.
+   */
+  void dispatch(Map<String, RowSet> changes, SqlBrite.EventListener eventListener) {
+    long visited = 0L; // The ids of the changed tables already dispatched.
+    Set<Listener> notified = null; // Listeners of tables outside the mask which were notified.
+    for (Map.Entry<String, RowSet> change : changes.entrySet()) {
+      Table table = tables.get(change.getKey());
+      int count = 0;
+      if (table != null) {
+        for (Registration target : table.registrations) {
+          if (target.rowFilter != null && !change.getValue().affects(target.rowFilter)) continue;
+          if (target.overflow) {
+            if (notified == null) {
+              notified = Collections.newSetFromMap(new IdentityHashMap<Listener, Boolean>());
+            }
+            if (!notified.add(target.listener)) continue;
+          } else if ((target.tableMask & visited) != 0) {
+            continue; // Notified for an earlier table.
+          }
+          target.listener.onTrigger(changes);
+          count++;
+        }
+        if (table.id < MASK_BITS) {
+          visited |= 1L << table.id;
+        }
+      }
+      if (eventListener != null) eventListener.tableTriggered(change.getKey(), count);
+    }
+  }
+
+  /** The number of listeners registered for {@code table}. */
+  int listenerCount(String table) {
+    Table target = tables.get(table);
+    return target != null ? target.registrations.length : 0;
+  }
+
+  // Guarded by 'writeLock'.
+  private Table intern(String name) {
+    Table table = tables.get(name);
+    if (table == null) {
+      table = new Table(nextId++);
+      tables.put(name, table);
+    }
+    return table;
+  }
+
+  // Guarded by 'writeLock'.
+  private static void add(Table table, Registration registration) {
+    Registration[] current = table.registrations;
+    Registration[] updated = new Registration[current.length + 1];
+    System.arraycopy(current, 0, updated, 0, current.length);
+    updated[current.length] = registration;
+    table.registrations = updated;
+  }
+
+  private static int indexOf(Registration[] registrations, Listener listener) {
+    for (int i = 0; i < registrations.length; i++) {
+      if (registrations[i].listener == listener) return i;
+    }
+    return -1;
+  }
+}
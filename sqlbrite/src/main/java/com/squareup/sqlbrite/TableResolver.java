@@ -0,0 +1,131 @@
+/*
+ * Copyright (C) 2015 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.sqlbrite;
+
+import android.database.Cursor;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Determines the tables a query reads from the program SQLite compiles for it, and caches them
+ * by SQL.
+ * <p>
+ * The program is listed with {@code EXPLAIN}, which compiles the query without running it. Each
+ * table or index the program opens for reading is identified by the root page of its b-tree,
+ * which is mapped back to a table through the schema. Because this is SQLite's own plan, joins,
+ * sub-selects, and views resolve to exactly the tables they read.
+ */
+final class TableResolver {
+  static final int DEFAULT_MAX_SIZE = 64;
+
+  private final Map<String, Set<String>> cache;
+
+  TableResolver(final int maxSize) {
+    cache = new LinkedHashMap<String, Set<String>>(16, 0.75f, true) {
+      @Override protected boolean removeEldestEntry(Map.Entry<String, Set<String>> eldest) {
+        return size() > maxSize;
+      }
+    };
+  }
+
+  /**
+   * The tables read by {@code sql}. Its arguments are bound only because some drivers refuse to
+   * compile a statement with unbound parameters; they do not change the result.
+   *
+   * @throws IllegalArgumentException if {@code sql} reads a virtual table or an attached database.
+   */
+  Set<String> tables(Driver.Database db, String sql, String[] args) {
+    synchronized (cache) {
+      Set<String> tables = cache.get(sql);
+      if (tables != null) return tables;
+    }
+    Set<String> tables = Collections.unmodifiableSet(resolve(db, sql, args));
+    synchronized (cache) {
+      cache.put(sql, tables);
+    }
+    return tables;
+  }
+
+  /** Forget every query's tables. Call this after changing the schema. */
+  void evictAll() {
+    synchronized (cache) {
+      cache.clear();
+    }
+  }
+
+  private static Set<String> resolve(Driver.Database db, String sql, String[] args) {
+    StringBuilder mainPages = new StringBuilder();
+    StringBuilder tempPages = new StringBuilder();
+    Cursor program = db.rawQuery("EXPLAIN " + sql, args);
+    try {
+      int opcodeIndex = program.getColumnIndexOrThrow("opcode");
+      int p2Index = program.getColumnIndexOrThrow("p2");
+      int p3Index = program.getColumnIndexOrThrow("p3");
+      while (program.moveToNext()) {
+        String opcode = program.getString(opcodeIndex);
+        if ("VOpen".equals(opcode)) {
+          throw new IllegalArgumentException(
+              "Cannot determine the tables of a query on a virtual table. Pass them explicitly.");
+        }
+        if (!"OpenRead".equals(opcode) && !"ReopenIdx".equals(opcode)) continue;
+
+        long rootPage = program.getLong(p2Index);
+        switch (program.getInt(p3Index)) {
+          case 0:
+            append(mainPages, rootPage);
+            break;
+          case 1:
+            append(tempPages, rootPage);
+            break;
+          default:
+            throw new IllegalArgumentException(
+                "Cannot determine the tables of a query on an attached database. "
+                    + "Pass them explicitly.");
+        }
+      }
+    } finally {
+      program.close();
+    }
+
+    Set<String> tables = new LinkedHashSet<>();
+    addTables(db, "sqlite_master", mainPages, tables);
+    addTables(db, "sqlite_temp_master", tempPages, tables);
+    return tables;
+  }
+
+  private static void append(StringBuilder pages, long rootPage) {
+    if (pages.length() > 0) pages.append(", ");
+    pages.append(rootPage);
+  }
+
+  /** Add the tables which own the b-trees rooted at {@code pages}, which are tables or indexes. */
+  private static void addTables(Driver.Database db, String schema, StringBuilder pages,
+      Set<String> tables) {
+    if (pages.length() == 0) return;
+    Cursor cursor = db.rawQuery(
+        "SELECT tbl_name FROM " + schema + " WHERE rootpage IN (" + pages + ")", null);
+    try {
+      while (cursor.moveToNext()) {
+        tables.add(cursor.getString(0));
+      }
+    } finally {
+      cursor.close();
+    }
+  }
+}
@@ -0,0 +1,210 @@
+/*
+ * Copyright (C) 2015 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.sqlbrite;
+
+import android.content.ContentValues;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import rx.Observable;
+import rx.subjects.AsyncSubject;
+
+import static android.database.sqlite.SQLiteDatabase.CONFLICT_NONE;
+
+/**
+ * Applies writes from any number of threads on a single writer thread, committing them in
+ * batches. Create one with {@link SqlBrite#createWriteQueue}.
+ * <p>
+ * Writing each row in its own transaction pays for a commit, and on most devices a sync to disk,
+ * per row. The writer instead takes every write which arrives within the maximum delay of the
+ * first, up to the maximum batch size, and applies them in order in one transaction. Queries
+ * observing the changed tables are notified once per batch with the merged changes of all of its
+ * writes.
+ * <p>
+ * Each method returns an observable which emits the result of the write once its batch has
+ * committed, or its error. The write is queued immediately whether or not the observable is
+ * subscribed. If any write of a batch fails the batch is rolled back and its writes are applied
+ * again one at a time so that a single bad write does not fail the others.
+ */
+public final class WriteQueue implements Closeable {
+  private final SqlBrite db;
+  private final int maxBatchSize;
+  private final long maxDelayNanos;
+  private final BlockingQueue<Write<?>> queue = new LinkedBlockingQueue<>();
+  private final Thread writer;
+  // Written while holding 'this' so that no write is queued after the writer sees it.
+  private volatile boolean closed;
+
+  WriteQueue(SqlBrite db, int maxBatchSize, long maxDelayNanos) {
+    this.db = db;
+    this.maxBatchSize = maxBatchSize;
+    this.maxDelayNanos = maxDelayNanos;
+    this.writer = new Thread(new Runnable() {
+      @Override public void run() {
+        drain();
+      }
+    }, "SqlBrite WriteQueue");
+    writer.setDaemon(true);
+    writer.start();
+  }
+
+  /** Queue an insert. Emits the row ID of the new row, or -1 if no row was inserted. */
+  public Observable<Long> insert(@NonNull String table, @NonNull ContentValues values) {
+    return insert(table, values, CONFLICT_NONE);
+  }
+
+  /** Queue an insert. Emits the row ID of the new row, or -1 if no row was inserted. */
+  public Observable<Long> insert(@NonNull final String table, @NonNull final ContentValues values,
+      @SqlBrite.ConflictAlgorithm final int conflictAlgorithm) {
+    return enqueue(new Write<Long>() {
+      @Override Long apply() {
+        return db.insert(table, values, conflictAlgorithm);
+      }
+    });
+  }
+
+  /** Queue an update. Emits the number of rows updated. */
+  public Observable<Integer> update(@NonNull final String table,
+      @NonNull final ContentValues values, @Nullable final String whereClause,
+      @Nullable final String... whereArgs) {
+    return enqueue(new Write<Integer>() {
+      @Override Integer apply() {
+        return db.update(table, values, whereClause, whereArgs);
+      }
+    });
+  }
+
+  /** Queue a delete. Emits the number of rows deleted. */
+  public Observable<Integer> delete(@NonNull final String table, @Nullable final String whereClause,
+      @Nullable final String... whereArgs) {
+    return enqueue(new Write<Integer>() {
+      @Override Integer apply() {
+        return db.delete(table, whereClause, whereArgs);
+      }
+    });
+  }
+
+  private <T> Observable<T> enqueue(Write<T> write) {
+    synchronized (this) {
+      if (closed) throw new IllegalStateException("WriteQueue closed.");
+      queue.add(write);
+    }
+    return write.result.asObservable();
+  }
+
+  /**
+   * Stop accepting writes and wait for those already queued to be applied. Returns early if the
+   * calling thread is interrupted.
+   */
+  @Override public void close() {
+    synchronized (this) {
+      if (closed) return;
+      closed = true;
+    }
+    writer.interrupt();
+    try {
+      writer.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private void drain() {
+    List<Write<?>> batch = new ArrayList<>(maxBatchSize);
+    while (true) {
+      try {
+        Write<?> first = closed ? queue.poll() : queue.take();
+        if (first == null) return; // Closed and drained.
+        batch.add(first);
+        long deadline = System.nanoTime() + maxDelayNanos;
+        while (batch.size() < maxBatchSize) {
+          long remaining = deadline - System.nanoTime();
+          Write<?> next = closed || remaining <= 0
+              ? queue.poll()
+              : queue.poll(remaining, TimeUnit.NANOSECONDS);
+          if (next == null) break;
+          batch.add(next);
+        }
+      } catch (InterruptedException e) {
+        // Interrupted by close. Apply what has been taken, then drain the rest without waiting.
+      }
+      if (!batch.isEmpty()) {
+        apply(batch);
+        batch.clear();
+      }
+    }
+  }
+
+  private void apply(List<Write<?>> batch) {
+    if (batch.size() > 1) {
+      boolean committed = false;
+      db.beginTransaction();
+      try {
+        for (int i = 0, size = batch.size(); i < size; i++) {
+          batch.get(i).run();
+        }
+        db.setTransactionSuccessful();
+        committed = true;
+      } catch (RuntimeException e) {
+        // Fall through to apply the writes one at a time below.
+      } finally {
+        try {
+          db.endTransaction();
+        } catch (RuntimeException e) {
+          committed = false;
+        }
+      }
+      if (committed) {
+        for (int i = 0, size = batch.size(); i < size; i++) {
+          batch.get(i).succeed();
+        }
+        return;
+      }
+    }
+    for (int i = 0, size = batch.size(); i < size; i++) {
+      Write<?> write = batch.get(i);
+      try {
+        write.run();
+      } catch (RuntimeException e) {
+        write.result.onError(e);
+        continue;
+      }
+      write.succeed();
+    }
+  }
+
+  private abstract static class Write<T> {
+    final AsyncSubject<T> result = new AsyncSubject<>();
+    private T value;
+
+    abstract T apply();
+
+    void run() {
+      value = apply();
+    }
+
+    /** Deliver the result once it has been committed. */
+    void succeed() {
+      result.onNext(value);
+      result.onCompleted();
+    }
+  }
+}